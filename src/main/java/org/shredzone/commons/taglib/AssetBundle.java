@@ -0,0 +1,424 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import javax.servlet.ServletContext;
+
+/**
+ * A bundle of CSS or JavaScript assets. The assets are concatenated, and CSS assets are
+ * minified by removing comments and redundant whitespaces. JavaScript assets are only
+ * concatenated, so they should be minified at build time.
+ * <p>
+ * The bundle name is derived from a hash of its content, so it can be cached by the
+ * browser forever. Bundles are kept in a cache of the {@link ServletContext}. Changes
+ * to the asset files are not detected, the web application needs to be reloaded.
+ * <p>
+ * A bundle that is not in the cache, e.g. after the web application was reloaded, or on
+ * another node of a cluster, can be rebuilt from its asset paths via
+ * {@link #forName(ServletContext, String, List)}.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+public final class AssetBundle {
+
+    private static final String CACHE_ATTRIBUTE = AssetBundle.class.getName() + ".cache";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Lock CACHE_LOCK = new ReentrantLock();
+
+    /**
+     * Type of the assets of a bundle.
+     */
+    public static enum Type {
+        CSS(".css", "text/css;charset=UTF-8", "\n"),
+        JAVASCRIPT(".js", "application/javascript;charset=UTF-8", "\n;\n");
+
+        private final String suffix;
+        private final String contentType;
+        private final String separator;
+
+        private Type(String suffix, String contentType, String separator) {
+            this.suffix = suffix;
+            this.contentType = contentType;
+            this.separator = separator;
+        }
+
+        /**
+         * File name suffix of the assets, including the dot.
+         */
+        public @Nonnull String getSuffix()      { return suffix; }
+
+        /**
+         * Content type of the bundle.
+         */
+        public @Nonnull String getContentType() { return contentType; }
+
+        /**
+         * Finds the asset type of the given path.
+         *
+         * @param path
+         *            Asset path
+         * @return {@link Type} of the asset
+         * @throws IllegalArgumentException
+         *             if the type is not supported
+         */
+        public static @Nonnull Type forPath(String path) {
+            for (Type type : values()) {
+                if (path.endsWith(type.suffix)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported asset type: " + path);
+        }
+    }
+
+    private final String name;
+    private final Type type;
+    private final List<String> paths;
+    private final byte[] content;
+
+    private AssetBundle(String name, Type type, List<String> paths, byte[] content) {
+        this.name = name;
+        this.type = type;
+        this.paths = paths;
+        this.content = content;
+    }
+
+    /**
+     * Gets the bundle of the given assets. The bundle is created on the first
+     * invocation, and is cached afterwards.
+     *
+     * @param servletContext
+     *            {@link ServletContext} to read the assets from
+     * @param type
+     *            {@link Type} of the assets
+     * @param paths
+     *            Paths of the assets, relative to the web application root. The order
+     *            is kept.
+     * @return {@link AssetBundle}
+     * @throws IOException
+     *             if an asset could not be read
+     */
+    public static @Nonnull AssetBundle forAssets(ServletContext servletContext, Type type, List<String> paths)
+    throws IOException {
+        Cache cache = getCache(servletContext);
+        AssetBundle bundle = cache.byAssets.get(paths);
+        if (bundle == null) {
+            bundle = create(servletContext, type, paths);
+            AssetBundle existing = cache.byName.putIfAbsent(bundle.getName(), bundle);
+            if (existing != null) {
+                bundle = existing;
+            }
+            cache.byAssets.putIfAbsent(new ArrayList<>(paths), bundle);
+        }
+        return bundle;
+    }
+
+    /**
+     * Gets a bundle that has been created before.
+     *
+     * @param servletContext
+     *            {@link ServletContext} of the cache
+     * @param name
+     *            Bundle name
+     * @return {@link AssetBundle}, or {@code null} if there is no such bundle
+     */
+    public static @CheckForNull AssetBundle forName(ServletContext servletContext, String name) {
+        return getCache(servletContext).byName.get(name);
+    }
+
+    /**
+     * Gets a bundle by its name. If the bundle is not cached, it is rebuilt from the
+     * given asset paths. The rebuilt bundle is only cached and returned if its name
+     * matches, so arbitrary asset lists cannot fill the cache.
+     * <p>
+     * Only assets of the bundle's type are read. Paths that are not absolute and
+     * normalized, or that refer to the {@code WEB-INF} or {@code META-INF} folders, are
+     * refused.
+     *
+     * @param servletContext
+     *            {@link ServletContext} to read the assets from
+     * @param name
+     *            Bundle name
+     * @param paths
+     *            Paths of the bundled assets, as returned by {@link #getPaths()}
+     * @return {@link AssetBundle}, or {@code null} if there is no such bundle, or if
+     *         the assets do not match the bundle name (e.g. because they have been
+     *         changed in the meantime)
+     * @throws IOException
+     *             if an asset could not be read
+     */
+    public static @CheckForNull AssetBundle forName(ServletContext servletContext, String name, List<String> paths)
+    throws IOException {
+        Cache cache = getCache(servletContext);
+        AssetBundle bundle = cache.byName.get(name);
+        if (bundle != null || paths.isEmpty()) {
+            return bundle;
+        }
+
+        Type type;
+        try {
+            type = Type.forPath(name);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        for (String path : paths) {
+            if (!isAssetPath(path, type)) {
+                return null;
+            }
+        }
+
+        bundle = create(servletContext, type, paths);
+        if (!bundle.getName().equals(name)) {
+            return null;
+        }
+
+        AssetBundle existing = cache.byName.putIfAbsent(name, bundle);
+        if (existing != null) {
+            return existing;
+        }
+        cache.byAssets.putIfAbsent(bundle.getPaths(), bundle);
+        return bundle;
+    }
+
+    /**
+     * Name of the bundle. It consists of a hash of the content and the suffix of the
+     * asset type.
+     */
+    public @Nonnull String getName()        { return name; }
+
+    /**
+     * {@link Type} of the bundled assets.
+     */
+    public @Nonnull Type getType()          { return type; }
+
+    /**
+     * Paths of the bundled assets, in the order they are bundled.
+     */
+    public @Nonnull List<String> getPaths() { return paths; }
+
+    /**
+     * Length of the bundle content, in bytes.
+     */
+    public int getContentLength()           { return content.length; }
+
+    /**
+     * Writes the UTF-8 encoded bundle content to an {@link OutputStream}.
+     *
+     * @param out
+     *            {@link OutputStream} to write to
+     * @throws IOException
+     *             when the content could not be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(content);
+    }
+
+    /**
+     * Reads, concatenates and minifies the assets.
+     */
+    private static AssetBundle create(ServletContext servletContext, Type type, List<String> paths)
+    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        for (String path : paths) {
+            InputStream in = servletContext.getResourceAsStream(path);
+            if (in == null) {
+                throw new IOException("Asset not found: " + path);
+            }
+
+            if (sb.length() > 0) {
+                sb.append(type.separator);
+            }
+
+            StringBuilder asset = (type == Type.CSS ? new StringBuilder() : sb);
+            try (Reader r = new InputStreamReader(in, UTF8)) {
+                int len;
+                while ((len = r.read(buffer)) >= 0) {
+                    asset.append(buffer, 0, len);
+                }
+            }
+
+            if (type == Type.CSS) {
+                minifyCss(asset, sb);
+            }
+        }
+
+        byte[] content = sb.toString().getBytes(UTF8);
+        List<String> bundlePaths = Collections.unmodifiableList(new ArrayList<>(paths));
+        return new AssetBundle(computeHash(content) + type.suffix, type, bundlePaths, content);
+    }
+
+    /**
+     * Checks if the path refers to a public asset of the given type.
+     */
+    private static boolean isAssetPath(String path, Type type) {
+        String lower = path.toLowerCase(Locale.ENGLISH);
+        return lower.startsWith("/")
+                && lower.endsWith(type.suffix)
+                && !lower.contains("..")
+                && !lower.contains("//")
+                && !lower.contains("/./")
+                && !lower.contains("\\")
+                && !lower.contains(";")
+                && !lower.startsWith("/web-inf/")
+                && !lower.startsWith("/meta-inf/");
+    }
+
+    /**
+     * Minifies CSS by removing comments and redundant whitespaces. Strings are kept
+     * unchanged.
+     *
+     * @param css
+     *            CSS to minify
+     * @param out
+     *            {@link StringBuilder} to append the minified CSS to
+     */
+    static void minifyCss(CharSequence css, StringBuilder out) {
+        int len = css.length();
+        int start = out.length();
+        boolean space = false;
+        for (int ix = 0; ix < len; ix++) {
+            char ch = css.charAt(ix);
+
+            if (ch == '/' && ix + 1 < len && css.charAt(ix + 1) == '*') {
+                int end = indexOf(css, "*/", ix + 2);
+                ix = (end < 0 ? len : end + 1);
+                space = true;
+                continue;
+            }
+
+            if (Character.isWhitespace(ch)) {
+                space = true;
+                continue;
+            }
+
+            if (space && out.length() > start
+                    && "{};,>".indexOf(ch) < 0 && "{};,>:".indexOf(out.charAt(out.length() - 1)) < 0) {
+                out.append(' ');
+            }
+            space = false;
+
+            out.append(ch);
+            if (ch == '"' || ch == '\'') {
+                // copy the string literal unchanged
+                while (++ix < len) {
+                    char sc = css.charAt(ix);
+                    out.append(sc);
+                    if (sc == '\\' && ix + 1 < len) {
+                        out.append(css.charAt(++ix));
+                    } else if (sc == ch || sc == '\n') {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds a string in a {@link CharSequence}.
+     */
+    private static int indexOf(CharSequence text, String find, int from) {
+        int last = text.length() - find.length();
+        outer:
+        for (int ix = from; ix <= last; ix++) {
+            for (int jx = 0; jx < find.length(); jx++) {
+                if (text.charAt(ix + jx) != find.charAt(jx)) {
+                    continue outer;
+                }
+            }
+            return ix;
+        }
+        return -1;
+    }
+
+    /**
+     * Computes a short hex hash of the content.
+     */
+    private static String computeHash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            char[] result = new char[16];
+            for (int ix = 0; ix < result.length / 2; ix++) {
+                result[ix * 2] = HEX[(digest[ix] >> 4) & 0x0F];
+                result[ix * 2 + 1] = HEX[digest[ix] & 0x0F];
+            }
+            return new String(result);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Gets the bundle cache of the web application.
+     */
+    private static Cache getCache(ServletContext servletContext) {
+        Object cache = servletContext.getAttribute(CACHE_ATTRIBUTE);
+        if (cache instanceof Cache) {
+            return (Cache) cache;
+        }
+
+        // Not a monitor, so virtual threads are not pinned to their carrier
+        CACHE_LOCK.lock();
+        try {
+            cache = servletContext.getAttribute(CACHE_ATTRIBUTE);
+            if (!(cache instanceof Cache)) {
+                cache = new Cache();
+                servletContext.setAttribute(CACHE_ATTRIBUTE, cache);
+            }
+            return (Cache) cache;
+        } finally {
+            CACHE_LOCK.unlock();
+        }
+    }
+
+    /**
+     * The bundle cache, by asset paths and by bundle name.
+     */
+    private static class Cache {
+        final ConcurrentMap<List<String>, AssetBundle> byAssets = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, AssetBundle> byName = new ConcurrentHashMap<>();
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the {@link AssetBundle} that were referenced by an
+ * {@link AssetBundleTagSupport} tag. The path info is the bundle name. As the name is
+ * derived from the bundle content, the response may be cached forever.
+ * <p>
+ * If the bundle is not cached, it is rebuilt from the asset paths given in the
+ * {@value #ASSET_PARAMETER} parameters of the bundle URL. This happens after the web
+ * application was reloaded, or when the request is served by another node of a cluster.
+ * <p>
+ * The servlet must be mapped to {@value AssetCollector#DEFAULT_ENDPOINT}{@code /*}, or
+ * to the path set via
+ * {@link AssetCollector#setEndpoint(javax.servlet.ServletRequest, String)}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class AssetBundleServlet extends HttpServlet {
+    private static final long serialVersionUID = 4611259744163207283L;
+    private static final Logger LOG = Logger.getLogger(AssetBundleServlet.class.getName());
+
+    /**
+     * Name of the request parameter that contains an asset path of the bundle.
+     */
+    public static final String ASSET_PARAMETER = "asset";
+
+    private static final String CACHE_CONTROL = "public, max-age=31536000";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException {
+        String pathInfo = req.getPathInfo();
+        AssetBundle bundle = null;
+        if (pathInfo != null && pathInfo.length() > 1) {
+            bundle = findBundle(req, pathInfo.substring(1));
+        }
+
+        if (bundle == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        String etag = '"' + bundle.getName() + '"';
+        resp.setHeader("Cache-Control", CACHE_CONTROL);
+        resp.setHeader("ETag", etag);
+
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        resp.setContentType(bundle.getType().getContentType());
+        resp.setContentLength(bundle.getContentLength());
+        bundle.writeTo(resp.getOutputStream());
+    }
+
+    /**
+     * Finds the bundle of the given name, rebuilding it from the asset paths of the
+     * request if it is not cached.
+     */
+    private AssetBundle findBundle(HttpServletRequest req, String name) {
+        String[] assets = req.getParameterValues(ASSET_PARAMETER);
+        List<String> paths = (assets != null ? Arrays.asList(assets) : Collections.<String>emptyList());
+        try {
+            return AssetBundle.forName(getServletContext(), name, paths);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not rebuild asset bundle " + name, ex);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.SimpleTagSupport;
+
+/**
+ * A base class for a tag that writes references to the {@link AssetBundle} of all assets
+ * that were collected by {@link AssetCollector} so far. It should be placed at the end of
+ * the page, after all tags that require assets. The collected assets are removed, so
+ * a second tag only writes the assets that were required in the meantime.
+ * <p>
+ * The tag must be annotated with {@code @Tag(type = SimpleTag.class, bodycontent =
+ * "empty")}. Subclasses may expose {@link #setType(String)} as tag parameter by
+ * overriding it with a {@code @TagParameter} annotation.
+ *
+ * @author Richard "Shred" Körber
+ */
+public abstract class AssetBundleTagSupport extends SimpleTagSupport {
+
+    private String type;
+
+    /**
+     * Type of the assets to be written, either "css" or "js". If not set, all assets are
+     * written.
+     */
+    public void setType(String type)                { this.type = type; }
+
+    @Override
+    public void doTag() throws JspException, IOException {
+        JspContext jspContext = getJspContext();
+        if (!(jspContext instanceof PageContext)) {
+            throw new JspException("Asset bundles require a PageContext");
+        }
+        PageContext pageContext = (PageContext) jspContext;
+
+        for (AssetBundle.Type bundleType : AssetBundle.Type.values()) {
+            if (type != null && !bundleType.getSuffix().equalsIgnoreCase('.' + type)) {
+                continue;
+            }
+
+            List<String> paths = AssetCollector.takeRequired(pageContext, bundleType);
+            if (!paths.isEmpty()) {
+                AssetBundle bundle = AssetBundle.forAssets(pageContext.getServletContext(), bundleType, paths);
+                writeReference(pageContext, bundle);
+            }
+        }
+    }
+
+    /**
+     * Writes a reference to the {@link AssetBundle}. The default implementation writes a
+     * {@code <link>} element for CSS, and a {@code <script>} element for JavaScript.
+     *
+     * @param pageContext
+     *            {@link PageContext} to write to
+     * @param bundle
+     *            {@link AssetBundle} to refer to
+     * @throws IOException
+     *             when the reference could not be written
+     */
+    protected void writeReference(PageContext pageContext, AssetBundle bundle) throws IOException {
+        JspWriter out = pageContext.getOut();
+        String url = getBundleUrl(pageContext, bundle);
+        switch (bundle.getType()) {
+            case CSS:
+                out.write("<link rel=\"stylesheet\" href=\"");
+                TaglibUtils.writeHtmlAttribute(out, url);
+                out.write("\">");
+                break;
+
+            case JAVASCRIPT:
+                out.write("<script src=\"");
+                TaglibUtils.writeHtmlAttribute(out, url);
+                out.write("\"></script>");
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown asset type " + bundle.getType());
+        }
+    }
+
+    /**
+     * Returns the URL of the {@link AssetBundle}. Besides the bundle name, it contains
+     * the paths of the bundled assets, so the {@link AssetBundleServlet} is able to
+     * rebuild a bundle that is not in its cache.
+     *
+     * @param pageContext
+     *            {@link PageContext} of the current request
+     * @param bundle
+     *            {@link AssetBundle} to refer to
+     * @return URL of the bundle
+     * @throws IOException
+     *             when the URL could not be built
+     */
+    protected String getBundleUrl(PageContext pageContext, AssetBundle bundle) throws IOException {
+        StringWriter url = new StringWriter();
+        url.write(AssetCollector.getEndpointUrl(pageContext));
+        url.write('/');
+        url.write(bundle.getName());
+
+        char separator = '?';
+        for (String path : bundle.getPaths()) {
+            url.write(separator);
+            url.write(AssetBundleServlet.ASSET_PARAMETER);
+            url.write('=');
+            TaglibUtils.writeUrlComponent(url, path);
+            separator = '&';
+        }
+
+        return url.toString();
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.PageContext;
+
+/**
+ * Collects the CSS and JavaScript assets that are required by the tags of a request.
+ * Tags declare their assets via {@link #require(JspContext, String)}, instead of writing
+ * {@code <link>} or {@code <script>} elements themselves. Each asset is only collected
+ * once per request.
+ * <p>
+ * A tag derived from {@link AssetBundleTagSupport} at the end of the page then writes a
+ * single reference to an {@link AssetBundle} of all collected assets, which is served
+ * by the {@link AssetBundleServlet}.
+ * <p>
+ * Asynchronously rendered tags (see
+ * {@link org.shredzone.commons.taglib.annotation.Tag#async()}) share the collected assets
+ * with the page, as the {@link org.shredzone.commons.taglib.proxy.RenderPipeline}
+ * prepares the collection via {@link #prepare(ServletRequest)}. However, they usually
+ * complete after the {@link AssetBundleTagSupport} tag has written its references, so
+ * their assets would be missing. Assets of asynchronous tags should rather be required
+ * by the page itself, before the {@link AssetBundleTagSupport} tag.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+public final class AssetCollector {
+
+    public static final String ASSETS_ATTRIBUTE = AssetCollector.class.getName() + ".assets";
+    public static final String ENDPOINT_ATTRIBUTE = AssetCollector.class.getName() + ".endpoint";
+    public static final String DEFAULT_ENDPOINT = "/taglib-assets";
+
+    private AssetCollector() {}
+
+    /**
+     * Declares that the current request requires an asset.
+     *
+     * @param jspContext
+     *            {@link JspContext} of the current request
+     * @param path
+     *            Path of the asset, relative to the web application root (e.g.
+     *            "/css/widget.css"). It must end with ".css" or ".js".
+     */
+    public static void require(JspContext jspContext, String path) {
+        AssetBundle.Type.forPath(path);
+
+        RequiredAssets assets = (RequiredAssets) jspContext.getAttribute(ASSETS_ATTRIBUTE, PageContext.REQUEST_SCOPE);
+        if (assets == null) {
+            // Only the page's thread gets here. If a RenderPipeline was started, the
+            // assets have already been prepared, and asynchronous tags share them.
+            assets = new RequiredAssets();
+            jspContext.setAttribute(ASSETS_ATTRIBUTE, assets, PageContext.REQUEST_SCOPE);
+        }
+        assets.add(path);
+    }
+
+    /**
+     * Prepares the collection of assets for a request, so it is shared with tags that
+     * are rendered in other threads, and use a copy of the request scope. It is invoked
+     * when a {@link org.shredzone.commons.taglib.proxy.RenderPipeline} is started.
+     *
+     * @param request
+     *            {@link ServletRequest} to prepare
+     */
+    public static void prepare(ServletRequest request) {
+        if (!(request.getAttribute(ASSETS_ATTRIBUTE) instanceof RequiredAssets)) {
+            request.setAttribute(ASSETS_ATTRIBUTE, new RequiredAssets());
+        }
+    }
+
+    /**
+     * Sets the path of the {@link AssetBundleServlet}, relative to the context path.
+     * Defaults to {@value #DEFAULT_ENDPOINT}.
+     *
+     * @param request
+     *            {@link ServletRequest}
+     * @param endpoint
+     *            Servlet path of the {@link AssetBundleServlet}
+     */
+    public static void setEndpoint(ServletRequest request, String endpoint) {
+        request.setAttribute(ENDPOINT_ATTRIBUTE, endpoint);
+    }
+
+    /**
+     * Removes all collected assets of the given type from the request, and returns them.
+     *
+     * @param jspContext
+     *            {@link JspContext} of the current request
+     * @param type
+     *            {@link AssetBundle.Type} of the assets
+     * @return Paths of the collected assets, in the order they were required first
+     */
+    static @Nonnull List<String> takeRequired(JspContext jspContext, AssetBundle.Type type) {
+        RequiredAssets assets = (RequiredAssets) jspContext.getAttribute(ASSETS_ATTRIBUTE, PageContext.REQUEST_SCOPE);
+        if (assets == null) {
+            return Collections.emptyList();
+        }
+        return assets.take(type);
+    }
+
+    /**
+     * Returns the absolute path of the {@link AssetBundleServlet}.
+     */
+    static @Nonnull String getEndpointUrl(JspContext jspContext) {
+        Object endpoint = jspContext.getAttribute(ENDPOINT_ATTRIBUTE, PageContext.REQUEST_SCOPE);
+        String path = endpoint instanceof String ? (String) endpoint : DEFAULT_ENDPOINT;
+
+        if (jspContext instanceof PageContext) {
+            ServletRequest request = ((PageContext) jspContext).getRequest();
+            if (request instanceof HttpServletRequest) {
+                return ((HttpServletRequest) request).getContextPath() + path;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * The assets required by a request, in the order they were required first. Assets
+     * may be added concurrently, without holding a monitor.
+     */
+    private static class RequiredAssets {
+        private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Queue<String> order = new ConcurrentLinkedQueue<>();
+
+        void add(String path) {
+            if (seen.add(path)) {
+                order.add(path);
+            }
+        }
+
+        List<String> take(AssetBundle.Type type) {
+            List<String> result = new ArrayList<>();
+            Iterator<String> it = order.iterator();
+            while (it.hasNext()) {
+                String path = it.next();
+                if (AssetBundle.Type.forPath(path) == type) {
+                    result.add(path);
+                    it.remove();
+                }
+            }
+            return result;
+        }
+    }
+
+}
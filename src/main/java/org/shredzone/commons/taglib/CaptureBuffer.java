@@ -0,0 +1,305 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A pooled character buffer for capturing the output of a tag body. The captured
+ * output can be read as {@link CharSequence} without copying it into a string first.
+ * <p>
+ * The character arrays of the buffers are pooled per thread. When a buffer is acquired,
+ * it is presized from a running estimate of the output size of its owner, so the buffer
+ * does not need to grow by repeated copying while the body is captured. The estimate is
+ * updated with the actual output size when the buffer is closed.
+ * <p>
+ * Each thread retains at most 128k characters in its pool. Arrays that have grown
+ * beyond 64k characters are shrunk when the buffer is closed. The pools only contain
+ * {@code char} arrays, so they do not keep the web application's class loader alive.
+ * {@link TaglibContextListener} discards all pools when the web application is stopped.
+ * <p>
+ * A buffer must be closed when it is not needed anymore, preferably by a
+ * try-with-resources statement. Closing returns the buffer to the pool, so neither the
+ * buffer nor any {@link #subSequence(int, int)} of it must be used afterwards.
+ *
+ * @author Richard "Shred" Körber
+ * @see TaglibUtils#capture(javax.servlet.jsp.tagext.JspFragment, Class)
+ * @see TaglibUtils#capture(javax.servlet.jsp.tagext.BodyContent, Class)
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+public final class CaptureBuffer extends Writer implements CharSequence {
+
+    private static final int MIN_CAPACITY = 256;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final int MAX_RETAINED_CHARS = 128 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final char[] EMPTY = new char[0];
+
+    private static final ConcurrentMap<Class<?>, AtomicInteger> ESTIMATES = new ConcurrentHashMap<>();
+
+    // A plain ThreadLocal holding plain arrays, so no thread refers to a class of ours
+    private static volatile ThreadLocal<char[][]> pool = new ThreadLocal<>();
+
+    private char[] chars;
+    private int count;
+    private AtomicInteger estimate;
+    private boolean acquired;
+
+    private CaptureBuffer(char[] chars) {
+        this.chars = chars;
+    }
+
+    /**
+     * Acquires an empty buffer from the pool of the current thread, or creates a new one
+     * if the pool is empty. Nested captures acquire separate buffers.
+     *
+     * @param owner
+     *            Class of the tag that captures its body. The buffer is presized from
+     *            the estimated output size of this class.
+     * @return Empty {@link CaptureBuffer}, must be closed after use
+     */
+    public static @Nonnull CaptureBuffer acquire(Class<?> owner) {
+        AtomicInteger ownerEstimate = ESTIMATES.get(owner);
+        if (ownerEstimate == null) {
+            AtomicInteger newEstimate = new AtomicInteger();
+            ownerEstimate = ESTIMATES.putIfAbsent(owner, newEstimate);
+            if (ownerEstimate == null) {
+                ownerEstimate = newEstimate;
+            }
+        }
+
+        char[] pooled = null;
+        char[][] slots = pool.get();
+        if (slots != null) {
+            for (int ix = slots.length - 1; ix >= 0 && pooled == null; ix--) {
+                pooled = slots[ix];
+                slots[ix] = null;
+            }
+        }
+
+        CaptureBuffer buffer = new CaptureBuffer(pooled != null ? pooled : new char[MIN_CAPACITY]);
+        int expected = ownerEstimate.get();
+        buffer.ensureCapacity(expected + (expected >> 2));
+        buffer.estimate = ownerEstimate;
+        buffer.acquired = true;
+        return buffer;
+    }
+
+    /**
+     * Returns the current output size estimate of the given tag class, in characters.
+     * 0 if nothing has been captured for that class yet.
+     *
+     * @param owner
+     *            Class of the tag
+     * @return Estimated output size
+     */
+    public static int getEstimate(Class<?> owner) {
+        AtomicInteger ownerEstimate = ESTIMATES.get(owner);
+        return ownerEstimate != null ? ownerEstimate.get() : 0;
+    }
+
+    /**
+     * Discards the pools of all threads, and the output size estimates. Buffers that are
+     * currently in use are not affected.
+     */
+    static void clearPools() {
+        ThreadLocal<char[][]> old = pool;
+        pool = new ThreadLocal<>();
+        old.remove();
+        ESTIMATES.clear();
+    }
+
+    /**
+     * Makes sure the buffer is able to hold the given number of characters without
+     * growing.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length << 1));
+        }
+    }
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(count + 1);
+        chars[count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(cbuf, off, chars, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        ensureCapacity(count + len);
+        str.getChars(off, off + len, chars, count);
+        count += len;
+    }
+
+    @Override
+    public CaptureBuffer append(@Nullable CharSequence csq) {
+        CharSequence text = (csq != null ? csq : "null");
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public CaptureBuffer append(@Nullable CharSequence csq, int start, int end) {
+        CharSequence text = (csq != null ? csq : "null");
+        if (text instanceof String) {
+            write((String) text, start, end - start);
+        } else {
+            ensureCapacity(count + end - start);
+            for (int ix = start; ix < end; ix++) {
+                chars[count++] = text.charAt(ix);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public CaptureBuffer append(char c) {
+        write(c);
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return count;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return chars[index];
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The subsequence is a view of the buffer. It is only valid until the buffer is
+     * closed or written to.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > count || start > end) {
+            throw new IndexOutOfBoundsException();
+        }
+        return CharBuffer.wrap(chars, start, end - start);
+    }
+
+    /**
+     * Writes the captured output to a {@link Writer}, usually the
+     * {@link javax.servlet.jsp.JspWriter} of a tag.
+     *
+     * @param out
+     *            {@link Writer} to write to
+     * @throws IOException
+     *             when the output could not be written
+     */
+    public void writeTo(Writer out) throws IOException {
+        out.write(chars, 0, count);
+    }
+
+    /**
+     * Discards the captured output, so the buffer can be reused by the same owner.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    @Override
+    public void flush() {
+        // nothing to flush
+    }
+
+    /**
+     * Updates the output size estimate of the owner, and returns the character array to
+     * the pool of the current thread. Arrays that have grown too large are shrunk, and
+     * arrays that exceed the pool's limit are not pooled. It is safe to invoke this
+     * method more than once.
+     */
+    @Override
+    public void close() {
+        if (!acquired) {
+            return;
+        }
+
+        int expected = estimate.get();
+        estimate.set(expected == 0 ? count : expected + ((count - expected) >> 2));
+        estimate = null;
+        acquired = false;
+        count = 0;
+
+        char[] released = chars;
+        chars = EMPTY;
+        if (released.length > MAX_POOLED_CAPACITY) {
+            released = new char[MIN_CAPACITY];
+        }
+
+        ThreadLocal<char[][]> current = pool;
+        char[][] slots = current.get();
+        if (slots == null) {
+            slots = new char[MAX_POOLED_BUFFERS][];
+            current.set(slots);
+        }
+
+        int retained = released.length;
+        int free = -1;
+        for (int ix = 0; ix < slots.length; ix++) {
+            if (slots[ix] != null) {
+                retained += slots[ix].length;
+            } else if (free < 0) {
+                free = ix;
+            }
+        }
+        if (free >= 0 && retained <= MAX_RETAINED_CHARS) {
+            slots[free] = released;
+        }
+    }
+
+    /**
+     * Returns a copy of the captured output as string.
+     */
+    @Override
+    public String toString() {
+        return new String(chars, 0, count);
+    }
+
+}
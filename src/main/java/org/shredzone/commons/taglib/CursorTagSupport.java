@@ -0,0 +1,216 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.TagSupport;
+import javax.servlet.jsp.tagext.TryCatchFinally;
+
+/**
+ * A base class for iteration tags that iterate over a very large number of items. The
+ * items are pulled lazily from a cursor, so they never need to be kept in a list.
+ * <p>
+ * For each item, the tag body is evaluated once, with the current item set as page
+ * attribute. The output is flushed every {@link #setFlushInterval(int)} items, so it is
+ * not kept in the output buffer either. The cursor is closed in {@link #doFinally()}, or
+ * on {@link #release()} at the latest.
+ * <p>
+ * The tag must be annotated with {@code @Tag(type = IterationTag.class)}. Subclasses may
+ * expose {@link #setVar(String)} and {@link #setFlushInterval(int)} as tag parameters by
+ * overriding them with a {@code @TagParameter} annotation.
+ *
+ * @param <E>
+ *            Type of the items
+ * @author Richard "Shred" Körber
+ */
+public abstract class CursorTagSupport<E> extends TagSupport implements TryCatchFinally {
+    private static final long serialVersionUID = 8233479157393417614L;
+
+    private String var = "item";
+    private int flushInterval = 0;
+    private transient Iterator<? extends E> cursor;
+    private transient E current;
+    private int index;
+
+    /**
+     * Name of the page attribute that contains the current item. Defaults to "item".
+     */
+    public void setVar(String var)                  { this.var = var; }
+
+    /**
+     * Number of items after which the output is flushed. 0 means that the output is
+     * never flushed by this tag. Nothing is flushed while the tag is rendered into a body
+     * content of an enclosing tag.
+     */
+    public void setFlushInterval(int flushInterval) { this.flushInterval = flushInterval; }
+
+    /**
+     * The current item, or {@code null} if the tag is not iterating.
+     */
+    protected @CheckForNull E getCurrent()          { return current; }
+
+    /**
+     * Index of the current item, starting from 0.
+     */
+    protected int getIndex()                        { return index; }
+
+    /**
+     * Opens the cursor that delivers the items. It is invoked in {@link #doStartTag()}.
+     * <p>
+     * {@link java.sql.ResultSet}, streams or other resources can be wrapped into an
+     * {@link Iterator} that also implements {@link AutoCloseable}, so they are closed
+     * when the iteration ends. Alternatively {@link #closeCursor(Iterator)} can be
+     * overridden.
+     *
+     * @return Cursor with the items
+     */
+    protected abstract @Nonnull Iterator<? extends E> openCursor() throws JspException;
+
+    /**
+     * Closes the cursor. By default, the cursor is closed if it implements
+     * {@link AutoCloseable}.
+     *
+     * @param cursor
+     *            Cursor that was returned by {@link #openCursor()}
+     */
+    protected void closeCursor(@Nonnull Iterator<? extends E> cursor) throws Exception {
+        if (cursor instanceof AutoCloseable) {
+            ((AutoCloseable) cursor).close();
+        }
+    }
+
+    @Override
+    public int doStartTag() throws JspException {
+        cursor = openCursor();
+        index = -1;
+        return nextItem() ? EVAL_BODY_INCLUDE : SKIP_BODY;
+    }
+
+    @Override
+    public int doAfterBody() throws JspException {
+        if (flushInterval > 0 && (index + 1) % flushInterval == 0) {
+            flush();
+        }
+        return nextItem() ? EVAL_BODY_AGAIN : SKIP_BODY;
+    }
+
+    @Override
+    public int doEndTag() throws JspException {
+        closeAll();
+        return EVAL_PAGE;
+    }
+
+    @Override
+    public void doCatch(Throwable t) throws Throwable {
+        throw t;
+    }
+
+    @Override
+    public void doFinally() {
+        try {
+            closeAll();
+        } catch (JspException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            closeAll();
+        } catch (JspException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            super.release();
+        }
+    }
+
+    /**
+     * Moves to the next item of the cursor, and sets it as page attribute.
+     *
+     * @return {@code true} if there is a next item, {@code false} if the cursor is
+     *         exhausted
+     */
+    private boolean nextItem() {
+        if (!cursor.hasNext()) {
+            current = null;
+            pageContext.removeAttribute(var, PageContext.PAGE_SCOPE);
+            return false;
+        }
+
+        current = cursor.next();
+        index++;
+        setItemAttribute(current);
+        return true;
+    }
+
+    /**
+     * Sets the current item as page attribute.
+     */
+    private void setItemAttribute(@Nullable E item) {
+        if (item != null) {
+            pageContext.setAttribute(var, item);
+        } else {
+            pageContext.removeAttribute(var, PageContext.PAGE_SCOPE);
+        }
+    }
+
+    /**
+     * Flushes the output, unless it is a body content.
+     */
+    private void flush() throws JspException {
+        JspWriter out = pageContext.getOut();
+        if (!(out instanceof BodyContent)) {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                throw new JspException(ex);
+            }
+        }
+    }
+
+    /**
+     * Closes the cursor if it is still open, and drops the current item.
+     */
+    private void closeAll() throws JspException {
+        Iterator<? extends E> open = cursor;
+        cursor = null;
+        current = null;
+        if (open != null) {
+            try {
+                closeCursor(open);
+            } catch (JspException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new JspException("Could not close cursor", ex);
+            }
+        }
+    }
+
+}
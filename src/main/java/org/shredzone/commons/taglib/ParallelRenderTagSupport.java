@@ -0,0 +1,253 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.JspFragment;
+import javax.servlet.jsp.tagext.SimpleTagSupport;
+
+/**
+ * A base class for simple iteration tags over independent items that are costly to
+ * render, like the cards of a grid that contain formatted values or generated charts.
+ * <p>
+ * Only {@link #renderItem(Object, Writer)} is invoked in parallel, on a
+ * {@link ForkJoinPool}. Each item is rendered into a buffer of its own. After all items
+ * are rendered, the tag body is evaluated sequentially in the request thread, once per
+ * item and in the order of the items. The current item is set as page attribute (see
+ * {@link #setVar(String)}), and its rendered content as another page attribute (see
+ * {@link #setContentVar(String)}). If the tag has no body, the rendered contents are
+ * just written in order.
+ * <p>
+ * The tag body itself is never evaluated in parallel, since all fragments of a page
+ * share the same {@link JspContext}, which is not thread-safe.
+ * <p>
+ * The shared pool is shut down by {@link TaglibContextListener}, which should be
+ * registered in the {@code web.xml}. Otherwise the pool threads are kept alive after the
+ * web application was stopped.
+ * <p>
+ * The tag must be annotated with {@code @Tag(type = SimpleTag.class)}. Subclasses may
+ * expose {@link #setVar(String)} and {@link #setContentVar(String)} as tag parameters
+ * by overriding them with a {@code @TagParameter} annotation.
+ *
+ * @param <E>
+ *            Type of the items
+ * @author Richard "Shred" Körber
+ */
+public abstract class ParallelRenderTagSupport<E> extends SimpleTagSupport {
+
+    private static final AtomicReference<ForkJoinPool> POOL = new AtomicReference<>();
+
+    private String var = "item";
+    private String contentVar = "content";
+
+    /**
+     * Name of the page attribute that contains the current item. Defaults to "item".
+     */
+    public void setVar(String var)                  { this.var = var; }
+
+    /**
+     * Name of the page attribute that contains the rendered content of the current item,
+     * as {@link CharSequence}. Defaults to "content".
+     */
+    public void setContentVar(String contentVar)    { this.contentVar = contentVar; }
+
+    /**
+     * Returns the items to iterate over. It is invoked in {@link #doTag()}.
+     *
+     * @return List of items
+     */
+    protected abstract @Nonnull List<? extends E> getItems() throws JspException;
+
+    /**
+     * Renders a single item. This method is invoked concurrently, in threads of the
+     * {@link ForkJoinPool}. It must not access the {@link JspContext}, request scoped
+     * beans, or anything else that is bound to the request thread. Everything that is
+     * needed should be fetched in {@link #getItems()}.
+     *
+     * @param item
+     *            Item to render
+     * @param out
+     *            {@link Writer} to render the item to
+     * @throws IOException
+     *             when the item could not be rendered
+     */
+    protected abstract void renderItem(E item, Writer out) throws IOException;
+
+    /**
+     * Returns the {@link ForkJoinPool} that renders the items. By default, a pool is
+     * shared by all tags, with a parallelism of the number of available processors.
+     */
+    protected @Nonnull ForkJoinPool getPool() {
+        ForkJoinPool result = POOL.get();
+        while (result == null) {
+            ForkJoinPool created = new ForkJoinPool();
+            if (POOL.compareAndSet(null, created)) {
+                result = created;
+            } else {
+                created.shutdown();
+                result = POOL.get();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Shuts down the shared {@link ForkJoinPool}. A new pool is created if another tag
+     * is rendered afterwards.
+     */
+    static void shutdownPool() {
+        ForkJoinPool result = POOL.getAndSet(null);
+        if (result != null) {
+            result.shutdown();
+        }
+    }
+
+    @Override
+    public void doTag() throws JspException, IOException {
+        List<? extends E> items = getItems();
+        int count = items.size();
+        if (count == 0) {
+            return;
+        }
+
+        // Buffers are acquired and closed in this thread, so they return to its pool
+        CaptureBuffer[] buffers = new CaptureBuffer[count];
+        try {
+            for (int ix = 0; ix < count; ix++) {
+                buffers[ix] = CaptureBuffer.acquire(getClass());
+            }
+
+            render(items, buffers);
+
+            JspContext jspContext = getJspContext();
+            JspFragment body = getJspBody();
+            for (int ix = 0; ix < count; ix++) {
+                if (body != null) {
+                    setItemAttribute(var, items.get(ix));
+                    setItemAttribute(contentVar, buffers[ix]);
+                    body.invoke(null);
+                } else {
+                    buffers[ix].writeTo(jspContext.getOut());
+                }
+            }
+        } finally {
+            if (getJspBody() != null) {
+                setItemAttribute(var, null);
+                setItemAttribute(contentVar, null);
+            }
+            for (CaptureBuffer buffer : buffers) {
+                if (buffer != null) {
+                    buffer.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders all items into their buffers. A single item is rendered in the current
+     * thread.
+     */
+    private void render(List<? extends E> items, CaptureBuffer[] buffers) throws IOException {
+        if (items.size() == 1) {
+            renderItem(items.get(0), buffers[0]);
+            return;
+        }
+
+        try {
+            getPool().invoke(new RenderTask(items, buffers, 0, items.size()));
+        } catch (ItemRenderException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Sets a page attribute, or removes it if the value is {@code null}.
+     */
+    private void setItemAttribute(String name, Object value) {
+        if (value != null) {
+            getJspContext().setAttribute(name, value);
+        } else {
+            getJspContext().removeAttribute(name, PageContext.PAGE_SCOPE);
+        }
+    }
+
+    /**
+     * Renders a range of items, splitting it until a single item is left.
+     */
+    private class RenderTask extends RecursiveAction {
+        private static final long serialVersionUID = -6030539187335640113L;
+
+        private final transient List<? extends E> items;
+        private final transient CaptureBuffer[] buffers;
+        private final int from;
+        private final int to;
+
+        RenderTask(List<? extends E> items, CaptureBuffer[] buffers, int from, int to) {
+            this.items = items;
+            this.buffers = buffers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    renderItem(items.get(from), buffers[from]);
+                } catch (IOException ex) {
+                    throw new ItemRenderException(ex);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new RenderTask(items, buffers, from, middle),
+                    new RenderTask(items, buffers, middle, to));
+        }
+    }
+
+    /**
+     * Passes an {@link IOException} of {@link #renderItem(Object, Writer)} through the
+     * {@link ForkJoinPool}.
+     */
+    private static class ItemRenderException extends RuntimeException {
+        private static final long serialVersionUID = 2286305286463826519L;
+
+        ItemRenderException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+}
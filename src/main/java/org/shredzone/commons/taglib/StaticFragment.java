@@ -0,0 +1,167 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A constant piece of content, like an SVG icon, inline CSS or a JSON-LD template. The
+ * content is prepared only once, and kept on the heap both as a character array and as
+ * an array of encoded bytes.
+ * <p>
+ * Tags write the fragment to the {@link javax.servlet.jsp.JspWriter} via
+ * {@link #writeTo(Writer)}. It passes the cached character array to the writer, so no
+ * string is created per request. The container still copies the characters into its
+ * buffer and encodes them, as it does with any other output of a JSP.
+ * <p>
+ * Servlets and filters that write to the response's {@link OutputStream} can use
+ * {@link #writeTo(OutputStream, Charset)}, which writes the pre-encoded bytes if the
+ * charset matches, so the content is not encoded again on every request.
+ * <p>
+ * Fragments are immutable and are meant to be kept in static fields or singleton beans.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+public final class StaticFragment {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final char[] chars;
+    private final byte[] bytes;
+    private final Charset charset;
+
+    private StaticFragment(char[] chars, byte[] bytes, Charset charset) {
+        this.chars = chars;
+        this.bytes = bytes;
+        this.charset = charset;
+    }
+
+    /**
+     * Creates a fragment of the given text, encoded in UTF-8.
+     *
+     * @param text
+     *            Fragment text
+     * @return {@link StaticFragment}
+     */
+    public static @Nonnull StaticFragment of(String text) {
+        return of(text, UTF8);
+    }
+
+    /**
+     * Creates a fragment of the given text.
+     *
+     * @param text
+     *            Fragment text
+     * @param charset
+     *            {@link Charset} to encode the text with
+     * @return {@link StaticFragment}
+     */
+    public static @Nonnull StaticFragment of(String text, Charset charset) {
+        ByteBuffer encoded = charset.encode(text);
+        byte[] bytes = Arrays.copyOfRange(encoded.array(), encoded.arrayOffset() + encoded.position(),
+                        encoded.arrayOffset() + encoded.limit());
+        return new StaticFragment(text.toCharArray(), bytes, charset);
+    }
+
+    /**
+     * Loads a fragment from a file. The file is read completely into the heap, so later
+     * changes to the file do not affect the fragment.
+     *
+     * @param file
+     *            File to load
+     * @param charset
+     *            {@link Charset} the file is encoded with
+     * @return {@link StaticFragment}
+     * @throws IOException
+     *             when the file could not be read
+     */
+    public static @Nonnull StaticFragment load(File file, Charset charset) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        CharBuffer decoded = charset.decode(ByteBuffer.wrap(bytes));
+        char[] chars = new char[decoded.remaining()];
+        decoded.get(chars);
+        return new StaticFragment(chars, bytes, charset);
+    }
+
+    /**
+     * {@link Charset} of the pre-encoded bytes.
+     */
+    public @Nonnull Charset getCharset()    { return charset; }
+
+    /**
+     * Number of characters of the fragment.
+     */
+    public int length()                     { return chars.length; }
+
+    /**
+     * Writes the fragment to a {@link Writer}, usually the
+     * {@link javax.servlet.jsp.JspWriter} of a tag.
+     *
+     * @param out
+     *            {@link Writer} to write to
+     * @throws IOException
+     *             when the fragment could not be written
+     */
+    public void writeTo(Writer out) throws IOException {
+        out.write(chars, 0, chars.length);
+    }
+
+    /**
+     * Writes the fragment to an {@link OutputStream}. If the given charset matches the
+     * fragment's charset, the pre-encoded bytes are written without further encoding.
+     * Otherwise the fragment is encoded to the given charset.
+     *
+     * @param out
+     *            {@link OutputStream} to write to
+     * @param outCharset
+     *            {@link Charset} that is expected by the {@link OutputStream}
+     * @throws IOException
+     *             when the fragment could not be written
+     */
+    public void writeTo(OutputStream out, Charset outCharset) throws IOException {
+        if (charset.equals(outCharset)) {
+            out.write(bytes);
+            return;
+        }
+
+        ByteBuffer buffer = outCharset.encode(CharBuffer.wrap(chars));
+        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.shredzone.commons.taglib.proxy.AllocationStats;
+import org.shredzone.commons.taglib.proxy.RenderGuard;
+
+/**
+ * Releases the resources that are kept by the taglib runtime beyond a single request,
+ * when the web application is stopped. Without it, pool threads and registered MBeans
+ * keep the web application's class loader alive after an undeployment.
+ * <p>
+ * The listener must be registered in the {@code web.xml}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class TaglibContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        // nothing to do
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        ParallelRenderTagSupport.shutdownPool();
+        CaptureBuffer.clearPools();
+        RenderGuard.unregisterMBeans();
+        AllocationStats.unregisterMBeans();
+        AllocationStats.stopLogSummary();
+    }
+
+}
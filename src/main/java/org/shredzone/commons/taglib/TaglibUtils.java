@@ -19,8 +19,19 @@
  */
 package org.shredzone.commons.taglib;
 
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.JspFragment;
+import javax.servlet.jsp.tagext.JspTag;
+import javax.servlet.jsp.tagext.SimpleTag;
 import javax.servlet.jsp.tagext.Tag;
+import javax.servlet.jsp.tagext.TagAdapter;
 import javax.servlet.jsp.tagext.TagSupport;
 
 import org.shredzone.commons.taglib.proxy.ProxiedTag;
@@ -33,6 +44,40 @@ import org.shredzone.commons.taglib.proxy.ProxiedTag;
 @ParametersAreNonnullByDefault
 public final class TaglibUtils {
 
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final char LINE_SEPARATOR = 0x2028;
+    private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+    private static final String[] HTML_ESCAPES = new String[128];
+    private static final String[] ATTRIBUTE_ESCAPES = new String[128];
+    private static final String[] JAVASCRIPT_ESCAPES = new String[128];
+
+    static {
+        HTML_ESCAPES['&'] = "&amp;";
+        HTML_ESCAPES['<'] = "&lt;";
+        HTML_ESCAPES['>'] = "&gt;";
+
+        System.arraycopy(HTML_ESCAPES, 0, ATTRIBUTE_ESCAPES, 0, HTML_ESCAPES.length);
+        ATTRIBUTE_ESCAPES['"'] = "&quot;";
+        ATTRIBUTE_ESCAPES['\''] = "&#39;";
+
+        for (int ch = 0; ch < ' '; ch++) {
+            JAVASCRIPT_ESCAPES[ch] = String.format("\\u%04X", ch);
+        }
+        JAVASCRIPT_ESCAPES['\b'] = "\\b";
+        JAVASCRIPT_ESCAPES['\t'] = "\\t";
+        JAVASCRIPT_ESCAPES['\n'] = "\\n";
+        JAVASCRIPT_ESCAPES['\f'] = "\\f";
+        JAVASCRIPT_ESCAPES['\r'] = "\\r";
+        JAVASCRIPT_ESCAPES['\\'] = "\\\\";
+        JAVASCRIPT_ESCAPES['\''] = "\\'";
+        JAVASCRIPT_ESCAPES['"'] = "\\\"";
+        JAVASCRIPT_ESCAPES['/'] = "\\/";
+        JAVASCRIPT_ESCAPES['<'] = "\\u003C";
+        JAVASCRIPT_ESCAPES['>'] = "\\u003E";
+        JAVASCRIPT_ESCAPES['&'] = "\\u0026";
+    }
+
     private TaglibUtils() {}
 
     /**
@@ -41,8 +86,9 @@ public final class TaglibUtils {
      * <p>
      * Use this method instead of {@link TagSupport#findAncestorWithClass(Tag, Class)}, as
      * it is aware of proxied tag classes, while findAncestorWithClass only sees the
-     * proxy instances instead of the tag classes behind it. Furthermore, this method is
-     * also able to locate interfaces.
+     * proxy instances instead of the tag classes behind it. Simple tags that are wrapped
+     * in a {@link TagAdapter} are unwrapped as well. Furthermore, this method is also
+     * able to locate interfaces.
      *
      * @param <T>
      *            Type to find and return
@@ -54,17 +100,263 @@ public final class TaglibUtils {
      */
     @SuppressWarnings("unchecked")
     public static <T> T findAncestorWithType(Tag from, Class<T> type) {
-        Tag parent = from.getParent();
+        JspTag parent = from.getParent();
         while (parent != null) {
+            if (parent instanceof TagAdapter) {
+                parent = ((TagAdapter) parent).getAdaptee();
+            }
             if (parent instanceof ProxiedTag) {
-                parent = ((ProxiedTag<Tag>) parent).getTargetBean();
+                parent = ((ProxiedTag<JspTag>) parent).getTargetBean();
             }
             if (type.isAssignableFrom(parent.getClass())) {
                 return (T) parent;
             }
-            parent = parent.getParent();
+            if (parent instanceof Tag) {
+                parent = ((Tag) parent).getParent();
+            } else if (parent instanceof SimpleTag) {
+                parent = ((SimpleTag) parent).getParent();
+            } else {
+                parent = null;
+            }
         }
         return null;
     }
 
+    /**
+     * Captures the output of a {@link JspFragment}, usually the body of a simple tag,
+     * into a pooled {@link CaptureBuffer}. Use this method instead of invoking the
+     * fragment with a {@link java.io.StringWriter}, as the buffer is presized from the
+     * output size of previous captures, and is readable without creating a string.
+     *
+     * @param body
+     *            {@link JspFragment} to invoke. If {@code null}, the buffer stays empty.
+     * @param owner
+     *            Class of the tag that captures its body
+     * @return {@link CaptureBuffer} containing the output. It must be closed after use.
+     * @throws JspException
+     *             when the fragment threw an exception
+     * @throws IOException
+     *             when the fragment could not be written
+     */
+    public static @Nonnull CaptureBuffer capture(@Nullable JspFragment body, Class<?> owner)
+            throws JspException, IOException {
+        CaptureBuffer buffer = CaptureBuffer.acquire(owner);
+        if (body != null) {
+            boolean success = false;
+            try {
+                body.invoke(buffer);
+                success = true;
+            } finally {
+                if (!success) {
+                    buffer.close();
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Captures the content of a {@link BodyContent} into a pooled
+     * {@link CaptureBuffer}. Use this method instead of
+     * {@link BodyContent#getString()}, as the content is copied into a presized buffer
+     * without creating a string.
+     *
+     * @param bodyContent
+     *            {@link BodyContent} to read. If {@code null}, the buffer stays empty.
+     * @param owner
+     *            Class of the tag that captures its body
+     * @return {@link CaptureBuffer} containing the content. It must be closed after use.
+     * @throws IOException
+     *             when the content could not be read
+     */
+    public static @Nonnull CaptureBuffer capture(@Nullable BodyContent bodyContent, Class<?> owner)
+            throws IOException {
+        CaptureBuffer buffer = CaptureBuffer.acquire(owner);
+        if (bodyContent != null) {
+            boolean success = false;
+            try {
+                bodyContent.writeOut(buffer);
+                success = true;
+            } finally {
+                if (!success) {
+                    buffer.close();
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes a text to the given {@link Writer}, escaping all characters that are not
+     * allowed in HTML body text. No intermediate strings are created.
+     *
+     * @param out
+     *            {@link Writer} to write to, usually a {@link javax.servlet.jsp.JspWriter}
+     * @param text
+     *            Text to be written. Nothing is written if {@code null}.
+     * @throws IOException
+     *             when the text could not be written
+     */
+    public static void writeHtml(Writer out, @Nullable CharSequence text) throws IOException {
+        if (text != null) {
+            writeEscaped(out, text, HTML_ESCAPES, false);
+        }
+    }
+
+    /**
+     * Writes a text to the given {@link Writer}, escaping all characters that are not
+     * allowed in a quoted HTML attribute value. No intermediate strings are created.
+     *
+     * @param out
+     *            {@link Writer} to write to, usually a {@link javax.servlet.jsp.JspWriter}
+     * @param text
+     *            Text to be written. Nothing is written if {@code null}.
+     * @throws IOException
+     *             when the text could not be written
+     */
+    public static void writeHtmlAttribute(Writer out, @Nullable CharSequence text) throws IOException {
+        if (text != null) {
+            writeEscaped(out, text, ATTRIBUTE_ESCAPES, false);
+        }
+    }
+
+    /**
+     * Writes a text to the given {@link Writer}, escaping it so it can be used in a
+     * JavaScript string literal. The result is also safe to be used in inline scripts.
+     * No intermediate strings are created.
+     *
+     * @param out
+     *            {@link Writer} to write to, usually a {@link javax.servlet.jsp.JspWriter}
+     * @param text
+     *            Text to be written. Nothing is written if {@code null}.
+     * @throws IOException
+     *             when the text could not be written
+     */
+    public static void writeJavaScript(Writer out, @Nullable CharSequence text) throws IOException {
+        if (text != null) {
+            writeEscaped(out, text, JAVASCRIPT_ESCAPES, true);
+        }
+    }
+
+    /**
+     * Writes a text to the given {@link Writer}, encoding it so it can be used as a URL
+     * path segment or query parameter. All characters except the unreserved characters
+     * of RFC 3986 are percent-encoded in UTF-8. No intermediate strings are created.
+     *
+     * @param out
+     *            {@link Writer} to write to, usually a {@link javax.servlet.jsp.JspWriter}
+     * @param text
+     *            Text to be written. Nothing is written if {@code null}.
+     * @throws IOException
+     *             when the text could not be written
+     */
+    public static void writeUrlComponent(Writer out, @Nullable CharSequence text) throws IOException {
+        if (text == null) {
+            return;
+        }
+
+        int len = text.length();
+        int start = 0;
+        for (int ix = 0; ix < len; ix++) {
+            char ch = text.charAt(ix);
+            if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                    || ch == '-' || ch == '_' || ch == '.' || ch == '~') {
+                continue;
+            }
+
+            writeRange(out, text, start, ix);
+
+            int cp = ch;
+            if (Character.isHighSurrogate(ch) && ix + 1 < len && Character.isLowSurrogate(text.charAt(ix + 1))) {
+                cp = Character.toCodePoint(ch, text.charAt(++ix));
+            } else if (Character.isSurrogate(ch)) {
+                cp = 0xFFFD; // unpaired surrogate, use replacement character
+            }
+
+            if (cp < 0x80) {
+                writePercent(out, cp);
+            } else if (cp < 0x800) {
+                writePercent(out, 0xC0 | (cp >> 6));
+                writePercent(out, 0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000) {
+                writePercent(out, 0xE0 | (cp >> 12));
+                writePercent(out, 0x80 | ((cp >> 6) & 0x3F));
+                writePercent(out, 0x80 | (cp & 0x3F));
+            } else {
+                writePercent(out, 0xF0 | (cp >> 18));
+                writePercent(out, 0x80 | ((cp >> 12) & 0x3F));
+                writePercent(out, 0x80 | ((cp >> 6) & 0x3F));
+                writePercent(out, 0x80 | (cp & 0x3F));
+            }
+
+            start = ix + 1;
+        }
+        writeRange(out, text, start, len);
+    }
+
+    /**
+     * Writes a text, replacing all characters that have a replacement in the given
+     * escape table. Runs of unescaped characters are written in one go.
+     *
+     * @param out
+     *            {@link Writer} to write to
+     * @param text
+     *            Text to be written
+     * @param escapes
+     *            Escape table, containing the replacements of ASCII characters
+     * @param escapeSeparators
+     *            {@code true}: Also escape the Unicode line and paragraph separators
+     */
+    private static void writeEscaped(Writer out, CharSequence text, String[] escapes,
+            boolean escapeSeparators) throws IOException {
+        int len = text.length();
+        int start = 0;
+        for (int ix = 0; ix < len; ix++) {
+            char ch = text.charAt(ix);
+            String replacement;
+            if (ch < escapes.length) {
+                replacement = escapes[ch];
+            } else if (escapeSeparators && (ch == LINE_SEPARATOR || ch == PARAGRAPH_SEPARATOR)) {
+                replacement = ch == LINE_SEPARATOR ? "\\u2028" : "\\u2029";
+            } else {
+                replacement = null;
+            }
+
+            if (replacement != null) {
+                writeRange(out, text, start, ix);
+                out.write(replacement);
+                start = ix + 1;
+            }
+        }
+        writeRange(out, text, start, len);
+    }
+
+    /**
+     * Writes a range of a text. Strings are written directly, other
+     * {@link CharSequence} are written character by character, so no substring needs
+     * to be created.
+     */
+    private static void writeRange(Writer out, CharSequence text, int start, int end) throws IOException {
+        if (start >= end) {
+            return;
+        }
+
+        if (text instanceof String) {
+            out.write((String) text, start, end - start);
+        } else {
+            for (int ix = start; ix < end; ix++) {
+                out.write(text.charAt(ix));
+            }
+        }
+    }
+
+    /**
+     * Writes a percent-encoded byte.
+     */
+    private static void writePercent(Writer out, int b) throws IOException {
+        out.write('%');
+        out.write(HEX[(b >> 4) & 0x0F]);
+        out.write(HEX[b & 0x0F]);
+    }
+
 }
@@ -0,0 +1,295 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A {@link Writer} that compacts the whitespaces of HTML output while it is written.
+ * Each run of whitespaces is replaced by a single line break if it contained one, or a
+ * single space otherwise. The content of {@code <pre>}, {@code <textarea>} and
+ * {@code <script>} elements, HTML comments, and whitespaces inside of tags, are kept as
+ * they are.
+ * <p>
+ * The output is not buffered, except for a pending whitespace. {@link #finish()} must be
+ * invoked after the last write, so a pending whitespace is written as well.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+public class WhitespaceCompactingWriter extends Writer {
+
+    private static final String[] RAW_ELEMENTS = { "pre", "textarea", "script" };
+    private static final int MAX_NAME_LENGTH = 8;
+
+    private static final int TEXT = 0;
+    private static final int TAG_START = 1;
+    private static final int TAG_NAME = 2;
+    private static final int TAG_REST = 3;
+    private static final int RAW = 4;
+    private static final int DECLARATION = 5;
+    private static final int COMMENT = 6;
+
+    private final Writer out;
+    private final char[] name = new char[MAX_NAME_LENGTH];
+    private final char[] single = new char[1];
+    private int nameLength;
+    private int state = TEXT;
+    private boolean closing;
+    private char quote;
+    private boolean afterEquals;
+    private int dashes;
+    private char pending;
+    private String rawElement;
+    private String rawEnd;
+    private int rawMatch;
+
+    /**
+     * Creates a new {@link WhitespaceCompactingWriter}.
+     *
+     * @param out
+     *            {@link Writer} to write the compacted output to
+     */
+    public WhitespaceCompactingWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int runStart = off;
+        for (int ix = off; ix < end; ix++) {
+            char ch = cbuf[ix];
+            if (state == TEXT && isWhitespace(ch)) {
+                // Hold back the whitespace, and write the run so far
+                if (ix > runStart) {
+                    out.write(cbuf, runStart, ix - runStart);
+                }
+                runStart = ix + 1;
+                if (ch == '\n' || pending == 0) {
+                    pending = ch == '\n' ? '\n' : ' ';
+                }
+                continue;
+            }
+
+            if (pending != 0) {
+                // A run always starts after a held back whitespace
+                out.write(pending);
+                pending = 0;
+            }
+
+            process(ch);
+        }
+
+        if (end > runStart) {
+            out.write(cbuf, runStart, end - runStart);
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        single[0] = (char) c;
+        write(single, 0, 1);
+    }
+
+    /**
+     * Writes a pending whitespace. Must be invoked after the last write. The underlying
+     * {@link Writer} is not closed.
+     */
+    public void finish() throws IOException {
+        if (pending != 0) {
+            out.write(pending);
+            pending = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Finishes the output. The underlying {@link Writer} is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * Updates the parser state with a character that is passed through.
+     *
+     * @param ch
+     *            Character that is written
+     */
+    private void process(char ch) {
+        switch (state) {
+            case TEXT:
+                if (ch == '<') {
+                    state = TAG_START;
+                    nameLength = 0;
+                    closing = false;
+                }
+                break;
+
+            case TAG_START:
+            case TAG_NAME:
+                if (state == TAG_START && ch == '/') {
+                    closing = true;
+                    state = TAG_NAME;
+                } else if (state == TAG_START && ch == '!') {
+                    state = DECLARATION;
+                    dashes = 0;
+                } else if (Character.isLetterOrDigit(ch)) {
+                    if (nameLength < MAX_NAME_LENGTH) {
+                        name[nameLength] = Character.toLowerCase(ch);
+                    }
+                    nameLength++;
+                    state = TAG_NAME;
+                } else {
+                    startTagRest();
+                    if (!closing) {
+                        rawElement = findRawElement();
+                    }
+                    process(ch);
+                }
+                break;
+
+            case DECLARATION:
+                if (ch == '-') {
+                    dashes++;
+                    if (dashes == 2) {
+                        // "<!--" starts a comment
+                        state = COMMENT;
+                        dashes = 0;
+                    }
+                } else {
+                    // Any other declaration, like <!DOCTYPE>, is handled like a tag
+                    startTagRest();
+                    process(ch);
+                }
+                break;
+
+            case COMMENT:
+                if (ch == '-') {
+                    dashes++;
+                } else if (ch == '>' && dashes >= 2) {
+                    state = TEXT;
+                } else {
+                    dashes = 0;
+                }
+                break;
+
+            case TAG_REST:
+                if (quote != 0) {
+                    if (ch == quote) {
+                        quote = 0;
+                    }
+                } else if (ch == '>') {
+                    afterEquals = false;
+                    if (rawElement != null) {
+                        state = RAW;
+                        rawEnd = "</" + rawElement;
+                        rawMatch = 0;
+                        rawElement = null;
+                    } else {
+                        state = TEXT;
+                    }
+                } else if (ch == '=') {
+                    afterEquals = true;
+                } else if (afterEquals && (ch == '"' || ch == '\'')) {
+                    // Only attribute values can be quoted
+                    quote = ch;
+                    afterEquals = false;
+                } else if (!isWhitespace(ch)) {
+                    afterEquals = false;
+                }
+                break;
+
+            case RAW:
+                char lower = Character.toLowerCase(ch);
+                if (lower == rawEnd.charAt(rawMatch)) {
+                    rawMatch++;
+                    if (rawMatch == rawEnd.length()) {
+                        // Closing tag found, continue with the rest of the tag
+                        startTagRest();
+                    }
+                } else {
+                    rawMatch = lower == '<' ? 1 : 0;
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("unknown state " + state);
+        }
+    }
+
+    /**
+     * Continues with the attributes of a tag.
+     */
+    private void startTagRest() {
+        state = TAG_REST;
+        quote = 0;
+        afterEquals = false;
+    }
+
+    /**
+     * Checks if the tag name that was just read is an element whose content must be
+     * kept as it is.
+     *
+     * @return Element name, or {@code null} if it is not such an element
+     */
+    private String findRawElement() {
+        for (String element : RAW_ELEMENTS) {
+            if (isName(element)) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the tag name that was just read matches the given element name.
+     */
+    private boolean isName(String element) {
+        if (element.length() != nameLength) {
+            return false;
+        }
+        for (int ix = 0; ix < nameLength; ix++) {
+            if (element.charAt(ix) != name[ix]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the character is a HTML whitespace.
+     */
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t' || ch == '\f';
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.shredzone.commons.taglib.proxy.TagInstanceProvider;
+
+/**
+ * Defines the {@link TagInstanceProvider} that creates the target beans of the tag
+ * proxies. If set at the package info, it is used for all tags of the tag library that
+ * do not have an own annotation.
+ *
+ * @author Richard "Shred" Körber
+ */
+@Target({ ElementType.TYPE, ElementType.PACKAGE })
+@Retention(RetentionPolicy.CLASS)
+@Documented
+public @interface InstanceProvider {
+
+    /**
+     * {@link TagInstanceProvider} implementation. It must have a public no-argument
+     * constructor.
+     */
+    Class<? extends TagInstanceProvider> value();
+
+}
@@ -27,7 +27,6 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 import javax.servlet.jsp.tagext.JspTag;
-import javax.servlet.jsp.tagext.TryCatchFinally;
 
 /**
  * Annotates a Tag implementation class.
@@ -69,8 +68,101 @@ public @interface Tag {
     String bean() default "";
 
     /**
-     * Does the tag class implements the {@link TryCatchFinally} implementation?
+     * Use a {@link javax.servlet.jsp.tagext.SimpleTag} proxy for a classic
+     * {@link javax.servlet.jsp.tagext.Tag} or {@link javax.servlet.jsp.tagext.IterationTag}
+     * implementation? The proxy emulates the classic tag lifecycle. Since web containers
+     * do not pool simple tags, the synchronization of the tag handler pool is avoided.
+     * The {@link #bodycontent()} must not be "JSP" then.
      */
-    boolean tryCatchFinally() default false;
+    boolean simpleProxy() default false;
+
+    /**
+     * Flush the page output after the tag has been rendered? This way, the client
+     * receives the content rendered so far before the rest of the page is completed.
+     * Nothing is flushed while the tag is rendered into a body content. Note that
+     * flushing commits the response, so headers cannot be changed afterwards.
+     */
+    boolean flush() default false;
+
+    /**
+     * Minimum number of characters that must be buffered before the output is flushed.
+     * Only used if {@link #flush()} is {@code true}. Defaults to 0, which means that the
+     * output is always flushed.
+     */
+    int flushThreshold() default 0;
+
+    /**
+     * Compact the whitespaces of the tag's body? Whitespaces in {@code <pre>},
+     * {@code <textarea>} and {@code <script>} elements are kept. The output of the tag
+     * implementation itself is not compacted. Only supported for
+     * {@link javax.servlet.jsp.tagext.SimpleTag} and {@link javax.servlet.jsp.tagext.BodyTag}
+     * types, and for {@link #simpleProxy()} tags.
+     */
+    boolean compactWhitespace() default false;
+
+    /**
+     * Render the tag asynchronously? Only a {@link #placeholder()} is rendered into the
+     * page then, while the tag is rendered concurrently and streamed at the end of the
+     * response. This requires a {@link org.shredzone.commons.taglib.proxy.RenderPipeline}
+     * for the request, otherwise the tag is rendered in place. Only supported for
+     * {@link javax.servlet.jsp.tagext.SimpleTag} types with an "empty" body content.
+     * <p>
+     * The tag's {@code JspContext} is not a {@link javax.servlet.jsp.PageContext} then,
+     * so there is no access to the request or response. The tag must not cast its
+     * context to {@link javax.servlet.jsp.PageContext}, and must not use helpers that
+     * need the request. Such a tag fails in the rendering thread, and its
+     * {@link #fallback()} is rendered instead.
+     */
+    boolean async() default false;
+
+    /**
+     * Content to be rendered while an {@link #async()} tag is rendering. Defaults to an
+     * empty string.
+     */
+    String placeholder() default "";
+
+    /**
+     * Name of the HTML element that wraps the {@link #placeholder()} of an
+     * {@link #async()} tag, e.g. {@code "span"} for tags that are rendered inside of a
+     * paragraph. The element is replaced by the rendered tag. Defaults to {@code "div"}.
+     */
+    String placeholderElement() default "div";
+
+    /**
+     * Render the tag as Edge Side Include? If the ESI mode is enabled for the request,
+     * only an {@code <esi:include>} element is rendered into the page, and the tag is
+     * rendered by the {@link org.shredzone.commons.taglib.proxy.EsiFragmentServlet}.
+     * Only supported for {@link javax.servlet.jsp.tagext.SimpleTag} types with an
+     * "empty" body content, and attributes of primitive or {@link String} types.
+     */
+    boolean esi() default false;
+
+    /**
+     * Maximum number of concurrent renderings of this tag. If the limit is reached, the
+     * {@link #fallback()} content is rendered instead, without creating a tag bean.
+     * Defaults to 0, which means that the concurrency is not limited.
+     */
+    int maxConcurrency() default 0;
+
+    /**
+     * Skip the tag if the render deadline of the request has been exceeded? If so, the
+     * {@link #fallback()} content is rendered instead, without creating a tag bean.
+     */
+    boolean skipOnDeadline() default false;
+
+    /**
+     * Content to be rendered if the tag was skipped. Defaults to an empty string.
+     */
+    String fallback() default "";
+
+    /**
+     * Number of tag beans to be created in advance by a background thread, so they do
+     * not need to be created while the page is rendered. The beans must not depend on
+     * request or session scoped beans. Defaults to 0, which means that the beans are
+     * created on demand.
+     *
+     * @see org.shredzone.commons.taglib.proxy.SpareTagInstanceProvider
+     */
+    int spares() default 0;
 
 }
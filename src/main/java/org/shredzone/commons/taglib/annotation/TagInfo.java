@@ -27,10 +27,11 @@ import java.lang.annotation.Target;
 
 /**
  * Annotates a tag library package with a long information text about the tag library.
+ * It can also be used at tag classes and {@link TagFunction} methods.
  *
  * @author Richard "Shred" Körber
  */
-@Target({ ElementType.TYPE, ElementType.PACKAGE })
+@Target({ ElementType.TYPE, ElementType.PACKAGE, ElementType.METHOD })
 @Retention(RetentionPolicy.CLASS)
 @Documented
 public @interface TagInfo {
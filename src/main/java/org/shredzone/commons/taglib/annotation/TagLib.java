@@ -60,4 +60,12 @@ public @interface TagLib {
      */
     String tld() default "META-INF/taglib.tld";
 
+    /**
+     * Simple class name of a Spring bean registrar to be generated in the tag library
+     * package. The registrar registers all tag beans as prototypes, so the tag packages
+     * do not need to be component scanned. Optional, no registrar is generated by
+     * default.
+     */
+    String registrar() default "";
+
 }
@@ -0,0 +1,89 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.processor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A bean that stores the parameters of an EL function.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+public class FunctionBean implements Comparable<FunctionBean> {
+
+    private final String name;
+    private final String className;
+    private final String signature;
+    private String info;
+
+    /**
+     * Creates and initializes a new {@link FunctionBean}.
+     *
+     * @param name
+     *            Function name
+     * @param className
+     *            Binary name of the class containing the function
+     * @param signature
+     *            Java signature of the static method
+     */
+    public FunctionBean(String name, String className, String signature) {
+        this.name = name;
+        this.className = className;
+        this.signature = signature;
+    }
+
+    public @Nonnull String getName()        { return name; }
+
+    public @Nonnull String getClassName()   { return className; }
+
+    public @Nonnull String getSignature()   { return signature; }
+
+    /**
+     * Information about the function.
+     */
+    public String getInfo()                 { return info; }
+    public void setInfo(String info)        { this.info = info; }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Two {@link FunctionBean} are considered equal if they have an equal name.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || !(obj instanceof FunctionBean)) {
+            return false;
+        }
+        return ((FunctionBean) obj).getName().equals(name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public int compareTo(FunctionBean o) {
+        return name.compareTo(o.name);
+    }
+
+}
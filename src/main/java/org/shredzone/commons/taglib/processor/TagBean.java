@@ -24,7 +24,6 @@ import java.util.HashMap;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
-import javax.servlet.jsp.tagext.TryCatchFinally;
 
 /**
  * This bean stores all information about a tag. Parts of this bean are immutable.
@@ -42,8 +41,19 @@ public class TagBean implements Comparable<TagBean> {
     private String info;
     private String proxyClassName;
     private String beanFactoryReference;
+    private String instanceProvider;
     private String beanName;
-    private boolean tryCatchFinally;
+    private boolean simpleProxy;
+    private int flushThreshold = -1;
+    private boolean compactWhitespace;
+    private boolean async;
+    private String placeholder;
+    private String placeholderElement;
+    private boolean esi;
+    private int maxConcurrency;
+    private boolean skipOnDeadline;
+    private String fallback;
+    private int spares;
 
     /**
      * Creates and initializes a new {@link TagBean}.
@@ -90,6 +100,12 @@ public class TagBean implements Comparable<TagBean> {
     public String getBeanFactoryReference()     { return beanFactoryReference; }
     public void setBeanFactoryReference(String beanFactoryReference) { this.beanFactoryReference = beanFactoryReference; }
 
+    /**
+     * Class name of the instance provider.
+     */
+    public String getInstanceProvider()         { return instanceProvider; }
+    public void setInstanceProvider(String instanceProvider) { this.instanceProvider = instanceProvider; }
+
     /**
      * Name of the bean.
      */
@@ -97,10 +113,71 @@ public class TagBean implements Comparable<TagBean> {
     public void setBeanName(String beanName)    { this.beanName = beanName; }
 
     /**
-     * Does the tag class implement the {@link TryCatchFinally} interface?
+     * Is a classic tag proxied by a simple tag proxy?
+     */
+    public boolean isSimpleProxy()              { return simpleProxy; }
+    public void setSimpleProxy(boolean simpleProxy) { this.simpleProxy = simpleProxy; }
+
+    /**
+     * Minimum number of buffered characters that triggers a flush after the tag was
+     * rendered. A negative number means that the output is never flushed.
+     */
+    public int getFlushThreshold()              { return flushThreshold; }
+    public void setFlushThreshold(int flushThreshold) { this.flushThreshold = flushThreshold; }
+
+    /**
+     * Are the whitespaces of the tag output compacted?
+     */
+    public boolean isCompactWhitespace()        { return compactWhitespace; }
+    public void setCompactWhitespace(boolean compactWhitespace) { this.compactWhitespace = compactWhitespace; }
+
+    /**
+     * Is the tag rendered asynchronously?
+     */
+    public boolean isAsync()                    { return async; }
+    public void setAsync(boolean async)         { this.async = async; }
+
+    /**
+     * Content to be rendered while an asynchronous tag is rendering.
+     */
+    public String getPlaceholder()              { return placeholder; }
+    public void setPlaceholder(String placeholder) { this.placeholder = placeholder; }
+
+    /**
+     * Name of the element that wraps the placeholder of an asynchronous tag.
+     */
+    public String getPlaceholderElement()       { return placeholderElement; }
+    public void setPlaceholderElement(String placeholderElement) { this.placeholderElement = placeholderElement; }
+
+    /**
+     * Is the tag rendered as Edge Side Include?
+     */
+    public boolean isEsi()                      { return esi; }
+    public void setEsi(boolean esi)             { this.esi = esi; }
+
+    /**
+     * Maximum number of concurrent renderings of the tag, or 0 if unlimited.
+     */
+    public int getMaxConcurrency()              { return maxConcurrency; }
+    public void setMaxConcurrency(int maxConcurrency) { this.maxConcurrency = maxConcurrency; }
+
+    /**
+     * Is the tag skipped when the render deadline of the request is exceeded?
+     */
+    public boolean isSkipOnDeadline()           { return skipOnDeadline; }
+    public void setSkipOnDeadline(boolean skipOnDeadline) { this.skipOnDeadline = skipOnDeadline; }
+
+    /**
+     * Content to be rendered if the tag was skipped.
+     */
+    public String getFallback()                 { return fallback; }
+    public void setFallback(String fallback)    { this.fallback = fallback; }
+
+    /**
+     * Number of tag beans to be created in advance.
      */
-    public boolean isTryCatchFinally()          { return tryCatchFinally; }
-    public void setTryCatchFinally(boolean tryCatchFinally) { this.tryCatchFinally = tryCatchFinally; }
+    public int getSpares()                      { return spares; }
+    public void setSpares(int spares)           { this.spares = spares; }
 
     /**
      * Adds a tag attribute to the tag bean.
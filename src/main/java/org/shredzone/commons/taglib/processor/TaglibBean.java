@@ -34,6 +34,8 @@ public class TaglibBean {
 
     private Map<String, TagBean> classTagMap = new HashMap<>();
     private Map<String, TagBean> tags = new HashMap<>();
+    private Map<String, FunctionBean> methodFunctionMap = new HashMap<>();
+    private Map<String, FunctionBean> functions = new HashMap<>();
 
     private String tlibversion;
     private String jspversion;
@@ -41,8 +43,10 @@ public class TaglibBean {
     private String uri;
     private String info;
     private String tldName;
+    private String registrarClassName;
 
     private String beanFactoryReference;
+    private String instanceProvider;
 
     /**
      * The tag lib version.
@@ -80,12 +84,25 @@ public class TaglibBean {
     public String getTldName()                      { return tldName; }
     public void setTldName(String tldName)          { this.tldName = tldName; }
 
+    /**
+     * Fully qualified name of the bean registrar class, or {@code null} if none is to
+     * be generated.
+     */
+    public String getRegistrarClassName()           { return registrarClassName; }
+    public void setRegistrarClassName(String registrarClassName) { this.registrarClassName = registrarClassName; }
+
     /**
      * A reference to the bean factory.
      */
     public String getBeanFactoryReference()         { return beanFactoryReference; }
     public void setBeanFactoryReference(String beanFactoryReference) { this.beanFactoryReference = beanFactoryReference; }
 
+    /**
+     * Class name of the instance provider.
+     */
+    public String getInstanceProvider()             { return instanceProvider; }
+    public void setInstanceProvider(String instanceProvider) { this.instanceProvider = instanceProvider; }
+
     /**
      * Adds a {@link TagBean} to this tag library.
      *
@@ -109,6 +126,42 @@ public class TaglibBean {
         return tags.values();
     }
 
+    /**
+     * Adds a {@link FunctionBean} to this tag library.
+     *
+     * @param method
+     *            Method that implements the function, for looking it up later
+     * @param function
+     *            {@link FunctionBean} to be added
+     */
+    public void addFunction(@Nonnull String method, @Nonnull FunctionBean function) {
+        if (functions.containsKey(function.getName())) {
+            throw new ProcessorException("Function '" + function.getName() + "' already defined");
+        }
+        functions.put(function.getName(), function);
+        methodFunctionMap.put(method, function);
+    }
+
+    /**
+     * Gets all functions of this tag library.
+     *
+     * @return Collection of {@link FunctionBean}
+     */
+    public @Nonnull Collection<FunctionBean> getFunctions() {
+        return functions.values();
+    }
+
+    /**
+     * Gets the {@link FunctionBean} that is related to the given method.
+     *
+     * @param method
+     *            Method that implements the function
+     * @return {@link FunctionBean} of that method, or {@code null} if there is none.
+     */
+    public FunctionBean getFunctionForMethod(@Nonnull String method) {
+        return methodFunctionMap.get(method);
+    }
+
     /**
      * Gets the {@link TagBean} that is related to the given implementation class.
      *
@@ -19,9 +19,14 @@
  */
 package org.shredzone.commons.taglib.processor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -39,8 +44,12 @@ import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.util.Types;
 import javax.servlet.jsp.tagext.BodyTag;
 import javax.servlet.jsp.tagext.IterationTag;
 import javax.servlet.jsp.tagext.JspTag;
@@ -51,13 +60,19 @@ import javax.tools.JavaFileObject;
 import javax.tools.StandardLocation;
 
 import org.shredzone.commons.taglib.annotation.BeanFactoryReference;
+import org.shredzone.commons.taglib.annotation.InstanceProvider;
 import org.shredzone.commons.taglib.annotation.Tag;
+import org.shredzone.commons.taglib.annotation.TagFunction;
 import org.shredzone.commons.taglib.annotation.TagInfo;
 import org.shredzone.commons.taglib.annotation.TagLib;
 import org.shredzone.commons.taglib.annotation.TagParameter;
 import org.shredzone.commons.taglib.proxy.BodyTagProxy;
 import org.shredzone.commons.taglib.proxy.IterationTagProxy;
+import org.shredzone.commons.taglib.proxy.SimpleTagAdapterProxy;
 import org.shredzone.commons.taglib.proxy.SimpleTagProxy;
+import org.shredzone.commons.taglib.proxy.SpareTagInstanceProvider;
+import org.shredzone.commons.taglib.proxy.SpringTagInstanceProvider;
+import org.shredzone.commons.taglib.proxy.TagInstanceProvider;
 import org.shredzone.commons.taglib.proxy.TagProxy;
 import org.springframework.util.StringUtils;
 
@@ -71,7 +86,10 @@ import org.springframework.util.StringUtils;
 @ParametersAreNonnullByDefault
 public class TaglibProcessor extends AbstractProcessor {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private static final Map<String, String> PROXY_MAP = new HashMap<>();
+    private static final Map<String, String> ESI_CONVERSIONS = new HashMap<>();
+    private static final Map<String, String> PRIMITIVE_WRAPPERS = new HashMap<>();
     private static final Pattern METHOD_PATTERN = Pattern.compile("^set([^(]+)\\((.+?)\\)$");
 
     static {
@@ -79,6 +97,33 @@ public class TaglibProcessor extends AbstractProcessor {
         PROXY_MAP.put(IterationTag.class.getName(), IterationTagProxy.class.getName());
         PROXY_MAP.put(BodyTag.class.getName(), BodyTagProxy.class.getName());
         PROXY_MAP.put(SimpleTag.class.getName(), SimpleTagProxy.class.getName());
+
+        ESI_CONVERSIONS.put("java.lang.String", "value");
+        ESI_CONVERSIONS.put("boolean", "java.lang.Boolean.parseBoolean(value)");
+        ESI_CONVERSIONS.put("java.lang.Boolean", "java.lang.Boolean.valueOf(value)");
+        ESI_CONVERSIONS.put("char", "value.charAt(0)");
+        ESI_CONVERSIONS.put("java.lang.Character", "java.lang.Character.valueOf(value.charAt(0))");
+        ESI_CONVERSIONS.put("byte", "java.lang.Byte.parseByte(value)");
+        ESI_CONVERSIONS.put("java.lang.Byte", "java.lang.Byte.valueOf(value)");
+        ESI_CONVERSIONS.put("short", "java.lang.Short.parseShort(value)");
+        ESI_CONVERSIONS.put("java.lang.Short", "java.lang.Short.valueOf(value)");
+        ESI_CONVERSIONS.put("int", "java.lang.Integer.parseInt(value)");
+        ESI_CONVERSIONS.put("java.lang.Integer", "java.lang.Integer.valueOf(value)");
+        ESI_CONVERSIONS.put("long", "java.lang.Long.parseLong(value)");
+        ESI_CONVERSIONS.put("java.lang.Long", "java.lang.Long.valueOf(value)");
+        ESI_CONVERSIONS.put("float", "java.lang.Float.parseFloat(value)");
+        ESI_CONVERSIONS.put("java.lang.Float", "java.lang.Float.valueOf(value)");
+        ESI_CONVERSIONS.put("double", "java.lang.Double.parseDouble(value)");
+        ESI_CONVERSIONS.put("java.lang.Double", "java.lang.Double.valueOf(value)");
+
+        PRIMITIVE_WRAPPERS.put("boolean", "java.lang.Boolean");
+        PRIMITIVE_WRAPPERS.put("byte", "java.lang.Byte");
+        PRIMITIVE_WRAPPERS.put("char", "java.lang.Character");
+        PRIMITIVE_WRAPPERS.put("short", "java.lang.Short");
+        PRIMITIVE_WRAPPERS.put("int", "java.lang.Integer");
+        PRIMITIVE_WRAPPERS.put("long", "java.lang.Long");
+        PRIMITIVE_WRAPPERS.put("float", "java.lang.Float");
+        PRIMITIVE_WRAPPERS.put("double", "java.lang.Double");
     }
 
     private TaglibBean taglib;
@@ -93,6 +138,10 @@ public class TaglibProcessor extends AbstractProcessor {
                 processTag(e);
             }
 
+            for (Element e : roundEnv.getElementsAnnotatedWith(TagFunction.class)) {
+                processTagFunction(e);
+            }
+
             for (Element e : roundEnv.getElementsAnnotatedWith(TagInfo.class)) {
                 processTagInfo(e);
             }
@@ -101,6 +150,10 @@ public class TaglibProcessor extends AbstractProcessor {
                 processBeanFactoryReference(e);
             }
 
+            for (Element e : roundEnv.getElementsAnnotatedWith(InstanceProvider.class)) {
+                processInstanceProvider(e);
+            }
+
             for (Element e : roundEnv.getElementsAnnotatedWith(TagParameter.class)) {
                 processTagParameter(e);
             }
@@ -109,11 +162,14 @@ public class TaglibProcessor extends AbstractProcessor {
                 processTagLib(e);
             }
 
-            if (!taglib.getTags().isEmpty()) {
+            if (!taglib.getTags().isEmpty() || !taglib.getFunctions().isEmpty()) {
                 for (TagBean tag : taglib.getTags()) {
                     generateProxyClass(tag);
                 }
                 generateTaglibTld(taglib.getTldName());
+                if (taglib.getRegistrarClassName() != null) {
+                    generateBeanRegistrar(taglib.getRegistrarClassName());
+                }
             }
 
         } catch (ProcessorException | IOException ex) {
@@ -165,7 +221,79 @@ public class TaglibProcessor extends AbstractProcessor {
             tag.setBeanName(StringUtils.uncapitalize(StringUtils.unqualify(className)));
         }
 
-        tag.setTryCatchFinally(tagAnno.tryCatchFinally());
+        if (tagAnno.simpleProxy()) {
+            if (!tagTypeClass.equals(javax.servlet.jsp.tagext.Tag.class.getName())
+                    && !tagTypeClass.equals(IterationTag.class.getName())) {
+                throw new ProcessorException("Tag " + tagName + ": simpleProxy only supports Tag and IterationTag");
+            }
+            if ("JSP".equalsIgnoreCase(tagAnno.bodycontent())) {
+                throw new ProcessorException("Tag " + tagName + ": simpleProxy does not support JSP body content");
+            }
+            tag.setSimpleProxy(true);
+        }
+
+        if (tagAnno.flushThreshold() < 0) {
+            throw new ProcessorException("Tag " + tagName + ": flushThreshold must not be negative");
+        }
+        if (tagAnno.flush()) {
+            tag.setFlushThreshold(tagAnno.flushThreshold());
+        }
+
+        if (tagAnno.compactWhitespace()) {
+            if (!tagTypeClass.equals(SimpleTag.class.getName())
+                    && !tagTypeClass.equals(BodyTag.class.getName())
+                    && !tagAnno.simpleProxy()) {
+                throw new ProcessorException("Tag " + tagName + ": compactWhitespace only supports SimpleTag, BodyTag, or simpleProxy");
+            }
+            tag.setCompactWhitespace(true);
+        }
+
+        if (tagAnno.async()) {
+            if (!tagTypeClass.equals(SimpleTag.class.getName()) || tagAnno.simpleProxy()) {
+                throw new ProcessorException("Tag " + tagName + ": async only supports SimpleTag");
+            }
+            if (!"empty".equalsIgnoreCase(tagAnno.bodycontent())) {
+                throw new ProcessorException("Tag " + tagName + ": async requires empty body content");
+            }
+            tag.setAsync(true);
+            if (StringUtils.hasLength(tagAnno.placeholder())) {
+                tag.setPlaceholder(tagAnno.placeholder());
+            }
+            if (!tagAnno.placeholderElement().matches("[A-Za-z][A-Za-z0-9-]*")) {
+                throw new ProcessorException("Tag " + tagName + ": invalid placeholder element '"
+                        + tagAnno.placeholderElement() + "'");
+            }
+            if (!"div".equals(tagAnno.placeholderElement())) {
+                tag.setPlaceholderElement(tagAnno.placeholderElement());
+            }
+        }
+
+        if (tagAnno.esi()) {
+            if (!tagTypeClass.equals(SimpleTag.class.getName()) || tagAnno.simpleProxy()) {
+                throw new ProcessorException("Tag " + tagName + ": esi only supports SimpleTag");
+            }
+            if (!"empty".equalsIgnoreCase(tagAnno.bodycontent())) {
+                throw new ProcessorException("Tag " + tagName + ": esi requires empty body content");
+            }
+            if (tagAnno.async()) {
+                throw new ProcessorException("Tag " + tagName + ": esi cannot be combined with async");
+            }
+            tag.setEsi(true);
+        }
+
+        if (tagAnno.maxConcurrency() < 0) {
+            throw new ProcessorException("Tag " + tagName + ": maxConcurrency must not be negative");
+        }
+        tag.setMaxConcurrency(tagAnno.maxConcurrency());
+        tag.setSkipOnDeadline(tagAnno.skipOnDeadline());
+        if (StringUtils.hasLength(tagAnno.fallback())) {
+            tag.setFallback(tagAnno.fallback());
+        }
+
+        if (tagAnno.spares() < 0) {
+            throw new ProcessorException("Tag " + tagName + ": spares must not be negative");
+        }
+        tag.setSpares(tagAnno.spares());
 
         taglib.addTag(tag);
     }
@@ -184,6 +312,15 @@ public class TaglibProcessor extends AbstractProcessor {
             return;
         }
 
+        if (element.getKind().equals(ElementKind.METHOD)) {
+            FunctionBean function = taglib.getFunctionForMethod(getMethodKey(element));
+            if (function == null) {
+                throw new ProcessorException("Missing @TagFunction on method: " + getMethodKey(element));
+            }
+            function.setInfo(tagAnno.value());
+            return;
+        }
+
         String className = element.toString();
 
         TagBean tag = taglib.getTagForClass(className);
@@ -221,6 +358,43 @@ public class TaglibProcessor extends AbstractProcessor {
         tag.setBeanFactoryReference(tagAnno.value());
     }
 
+    /**
+     * Processes an {@link InstanceProvider} annotation.
+     *
+     * @param element
+     *            Program element with that tag
+     */
+    private void processInstanceProvider(Element element) {
+        InstanceProvider tagAnno = element.getAnnotation(InstanceProvider.class);
+
+        // Try to evaluate the class name of the provider
+        String providerClass = null;
+        try {
+            providerClass = tagAnno.value().getName();
+        } catch(MirroredTypeException ex) {
+            // This is a hack, see http://forums.sun.com/thread.jspa?threadID=791053
+            Logger.getLogger(TaglibProcessor.class.getName()).log(Level.FINE, "use type mirror", ex);
+            providerClass = ex.getTypeMirror().toString();
+        }
+
+        if (element.getKind().equals(ElementKind.PACKAGE)) {
+            if (taglib.getInstanceProvider() != null) {
+                throw new ProcessorException("Package @InstanceProvider already defined");
+            }
+
+            taglib.setInstanceProvider(providerClass);
+            return;
+        }
+
+        String className = element.toString();
+        TagBean tag = taglib.getTagForClass(className);
+        if (tag == null) {
+            throw new ProcessorException("Missing @Tag on class: " + className);
+        }
+
+        tag.setInstanceProvider(providerClass);
+    }
+
     /**
      * Processes a {@link TagLib} annotation.
      *
@@ -246,9 +420,67 @@ public class TaglibProcessor extends AbstractProcessor {
             taglib.setUri(tagAnno.uri());
         }
 
+        if (StringUtils.hasText(tagAnno.registrar())) {
+            String registrar = tagAnno.registrar();
+            if (registrar.indexOf('.') >= 0) {
+                throw new ProcessorException("@TagLib registrar must be a simple class name: " + registrar);
+            }
+            taglib.setRegistrarClassName(element.toString() + '.' + registrar);
+        }
+
         taglibSet = true;
     }
 
+    /**
+     * Processes a {@link TagFunction} annotation.
+     *
+     * @param element
+     *            Program element with that tag
+     */
+    private void processTagFunction(Element element) {
+        TagFunction funcAnno = element.getAnnotation(TagFunction.class);
+        ExecutableElement method = (ExecutableElement) element;
+        TypeElement type = (TypeElement) method.getEnclosingElement();
+
+        if (!method.getModifiers().contains(Modifier.PUBLIC) || !method.getModifiers().contains(Modifier.STATIC)) {
+            throw new ProcessorException("@TagFunction must be used on a public static method: " + getMethodKey(element));
+        }
+        if (!type.getModifiers().contains(Modifier.PUBLIC)) {
+            throw new ProcessorException("@TagFunction must be used in a public class: " + type);
+        }
+
+        String methodName = method.getSimpleName().toString();
+        String functionName = StringUtils.hasText(funcAnno.name()) ? funcAnno.name() : methodName;
+
+        Types types = processingEnv.getTypeUtils();
+        StringBuilder signature = new StringBuilder();
+        signature.append(types.erasure(method.getReturnType())).append(' ');
+        signature.append(methodName).append('(');
+        boolean first = true;
+        for (VariableElement param : method.getParameters()) {
+            if (!first) {
+                signature.append(", ");
+            }
+            signature.append(types.erasure(param.asType()));
+            first = false;
+        }
+        signature.append(')');
+
+        String className = processingEnv.getElementUtils().getBinaryName(type).toString();
+        taglib.addFunction(getMethodKey(element), new FunctionBean(functionName, className, signature.toString()));
+    }
+
+    /**
+     * Returns a key that identifies a method.
+     *
+     * @param element
+     *            Method element
+     * @return Key of that method, containing the class name and the signature
+     */
+    private static @Nonnull String getMethodKey(Element element) {
+        return element.getEnclosingElement().toString() + '.' + element.toString();
+    }
+
     /**
      * Processes a {@link TagParameter} annotation.
      *
@@ -319,6 +551,11 @@ public class TaglibProcessor extends AbstractProcessor {
             beanFactoryReference = taglib.getBeanFactoryReference();
         }
 
+        String instanceProvider = tag.getInstanceProvider();
+        if (instanceProvider == null) {
+            instanceProvider = taglib.getInstanceProvider();
+        }
+
         JavaFileObject src = processingEnv.getFiler().createSourceFile(tag.getProxyClassName());
 
         String packageName = null;
@@ -328,6 +565,14 @@ public class TaglibProcessor extends AbstractProcessor {
         }
 
         String proxyClass = PROXY_MAP.get(tag.getType());
+        if (tag.isSimpleProxy()) {
+            proxyClass = SimpleTagAdapterProxy.class.getName();
+        }
+
+        // Classic tags need doFinally() for releasing the render permit, as the
+        // concurrency limit may also be set at runtime. Simple tag proxies handle
+        // TryCatchFinally themselves.
+        boolean classic = !tag.isSimpleProxy() && !SimpleTag.class.getName().equals(tag.getType());
 
         try (PrintWriter out = new PrintWriter(src.openWriter())) {
             if (packageName != null) {
@@ -343,7 +588,7 @@ public class TaglibProcessor extends AbstractProcessor {
                     StringUtils.unqualify(tag.getProxyClassName()),
                     proxyClass,
                     tag.getClassName(),
-                    tag.isTryCatchFinally() ? "implements javax.servlet.jsp.tagext.TryCatchFinally" : ""
+                    classic ? "implements javax.servlet.jsp.tagext.TryCatchFinally" : ""
             ).println();
 
             if (beanFactoryReference != null) {
@@ -363,6 +608,123 @@ public class TaglibProcessor extends AbstractProcessor {
             out.printf("    return \"%s\";", tag.getBeanName()).println();
             out.println("  }");
 
+            out.println("  protected java.lang.Class<?> getBeanClass() {");
+            out.printf("    return %s.class;", tag.getClassName()).println();
+            out.println("  }");
+
+            String providerInstance = null;
+            if (instanceProvider != null) {
+                providerInstance = "new " + instanceProvider + "()";
+            }
+            if (tag.getSpares() > 0) {
+                providerInstance = String.format("new %s(%s, %d)",
+                        SpareTagInstanceProvider.class.getName(),
+                        providerInstance != null ? providerInstance : "new " + SpringTagInstanceProvider.class.getName() + "()",
+                        tag.getSpares());
+            }
+
+            if (providerInstance != null) {
+                out.printf("  private static final %s INSTANCE_PROVIDER = %s;",
+                        TagInstanceProvider.class.getName(),
+                        providerInstance
+                ).println();
+                out.printf("  protected %s getInstanceProvider() {", TagInstanceProvider.class.getName()).println();
+                out.println("    return INSTANCE_PROVIDER;");
+                out.println("  }");
+            }
+
+            if (tag.getFlushThreshold() >= 0) {
+                out.println("  protected int getFlushThreshold() {");
+                out.printf("    return %d;", tag.getFlushThreshold()).println();
+                out.println("  }");
+            }
+
+            if (tag.isCompactWhitespace()) {
+                out.println("  protected boolean isCompactWhitespace() {");
+                out.println("    return true;");
+                out.println("  }");
+            }
+
+            if (tag.isAsync()) {
+                out.println("  protected boolean isAsync() {");
+                out.println("    return true;");
+                out.println("  }");
+            }
+
+            if (tag.getPlaceholder() != null) {
+                out.println("  protected java.lang.String getPlaceholder() {");
+                out.printf("    return \"%s\";", escapeJava(tag.getPlaceholder())).println();
+                out.println("  }");
+            }
+
+            if (tag.getPlaceholderElement() != null) {
+                out.println("  protected java.lang.String getPlaceholderElement() {");
+                out.printf("    return \"%s\";", tag.getPlaceholderElement()).println();
+                out.println("  }");
+            }
+
+            if (tag.isEsi()) {
+                out.println("  protected boolean isEsi() {");
+                out.println("    return true;");
+                out.println("  }");
+
+                out.println("  protected void setEsiAttribute(java.lang.String name, java.lang.String value) {");
+                for (AttributeBean attr : new TreeSet<>(tag.getAttributes())) {
+                    String conversion = ESI_CONVERSIONS.get(attr.getType());
+                    if (conversion == null) {
+                        throw new ProcessorException("Tag " + tag.getName() + ": esi does not support attribute type " + attr.getType());
+                    }
+                    out.printf("    if (\"%s\".equals(name)) {", attr.getName()).println();
+                    out.printf("      set%s(%s);", StringUtils.capitalize(attr.getName()), conversion).println();
+                    out.println("      return;");
+                    out.println("    }");
+                }
+                out.println("    super.setEsiAttribute(name, value);");
+                out.println("  }");
+            }
+
+            if (!tag.isSimpleProxy() && SimpleTag.class.getName().equals(tag.getType())) {
+                out.println("  @java.lang.SuppressWarnings(\"unchecked\")");
+                out.println("  protected void setTagAttribute(java.lang.String name, java.lang.Object value) {");
+                out.println("    switch (name) {");
+                for (AttributeBean attr : new TreeSet<>(tag.getAttributes())) {
+                    String wrapper = PRIMITIVE_WRAPPERS.get(attr.getType());
+                    out.printf("      case \"%s\":", attr.getName()).println();
+                    if (wrapper != null) {
+                        out.println("        if (value == null) {");
+                        out.printf("          throw new java.lang.IllegalArgumentException(\"%s must not be null\");", attr.getName()).println();
+                        out.println("        }");
+                    }
+                    out.printf("        set%s((%s) value);",
+                            StringUtils.capitalize(attr.getName()),
+                            wrapper != null ? wrapper : attr.getType()
+                    ).println();
+                    out.println("        return;");
+                }
+                out.println("      default:");
+                out.println("        super.setTagAttribute(name, value);");
+                out.println("    }");
+                out.println("  }");
+            }
+
+            if (tag.getMaxConcurrency() > 0) {
+                out.println("  protected int getMaxConcurrency() {");
+                out.printf("    return %d;", tag.getMaxConcurrency()).println();
+                out.println("  }");
+            }
+
+            if (tag.isSkipOnDeadline()) {
+                out.println("  protected boolean isSkipOnDeadline() {");
+                out.println("    return true;");
+                out.println("  }");
+            }
+
+            if (tag.getFallback() != null) {
+                out.println("  protected java.lang.String getFallback() {");
+                out.printf("    return \"%s\";", escapeJava(tag.getFallback())).println();
+                out.println("  }");
+            }
+
             for (AttributeBean attr : new TreeSet<>(tag.getAttributes())) {
                 out.printf("  public void set%s(%s _%s) {",
                         StringUtils.capitalize(attr.getName()),
@@ -370,7 +732,17 @@ public class TaglibProcessor extends AbstractProcessor {
                         attr.getName()
                 ).println();
 
-                out.printf("    getTargetBean().set%s(_%s);",
+                if (tag.isEsi()) {
+                    out.println("    if (isEsiInclude()) {");
+                    out.printf("      addEsiAttribute(\"%s\", _%s);", attr.getName(), attr.getName()).println();
+                    out.println("      return;");
+                    out.println("    }");
+                }
+
+                // Classic proxies keep their target bean if they are skipped, so it
+                // still receives all attributes. Skipped simple tags have no target bean.
+                out.printf("    %sgetTargetBean().set%s(_%s);",
+                        classic ? "" : "if (!isFallback()) ",
                         StringUtils.capitalize(attr.getName()),
                         attr.getName()
                 ).println();
@@ -382,6 +754,58 @@ public class TaglibProcessor extends AbstractProcessor {
         }
     }
 
+    /**
+     * Generates a {@link org.springframework.beans.factory.support.BeanDefinitionRegistryPostProcessor}
+     * that registers all tag classes as prototype scoped beans. This way, the tag
+     * packages do not need to be scanned for components.
+     *
+     * @param className
+     *            Fully qualified name of the registrar class to be generated
+     * @throws IOException
+     *             when the generated Java code could not be saved.
+     */
+    private void generateBeanRegistrar(String className) throws IOException {
+        JavaFileObject src = processingEnv.getFiler().createSourceFile(className);
+
+        try (PrintWriter out = new PrintWriter(src.openWriter())) {
+            int packPos = className.lastIndexOf('.');
+            if (packPos >= 0) {
+                out.printf("package %s;", className.substring(0, packPos)).println();
+                out.println();
+            }
+
+            out.print("@javax.annotation.Generated(\"");
+            out.print(TaglibProcessor.class.getName());
+            out.println("\")");
+
+            out.printf("public class %s implements org.springframework.beans.factory.support.BeanDefinitionRegistryPostProcessor {",
+                    StringUtils.unqualify(className)
+            ).println();
+
+            out.println("  public void postProcessBeanDefinitionRegistry(org.springframework.beans.factory.support.BeanDefinitionRegistry registry) {");
+            for (TagBean tag : new TreeSet<>(taglib.getTags())) {
+                out.printf("    register(registry, \"%s\", %s.class);",
+                        tag.getBeanName(),
+                        tag.getClassName()
+                ).println();
+            }
+            out.println("  }");
+
+            out.println("  public void postProcessBeanFactory(org.springframework.beans.factory.config.ConfigurableListableBeanFactory beanFactory) {");
+            out.println("  }");
+
+            out.println("  private static void register(org.springframework.beans.factory.support.BeanDefinitionRegistry registry, java.lang.String beanName, java.lang.Class<?> beanClass) {");
+            out.println("    if (!registry.containsBeanDefinition(beanName)) {");
+            out.println("      org.springframework.beans.factory.support.RootBeanDefinition bd = new org.springframework.beans.factory.support.RootBeanDefinition(beanClass);");
+            out.println("      bd.setScope(org.springframework.beans.factory.config.BeanDefinition.SCOPE_PROTOTYPE);");
+            out.println("      registry.registerBeanDefinition(beanName, bd);");
+            out.println("    }");
+            out.println("  }");
+
+            out.println("}");
+        }
+    }
+
     /**
      * Generates a TLD file for the tag library.
      *
@@ -391,39 +815,144 @@ public class TaglibProcessor extends AbstractProcessor {
      *             when the generated TLD file could not be saved.
      */
     private void generateTaglibTld(String tldfile) throws IOException {
-        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", tldfile);
-        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(file.openOutputStream(), "UTF-8"))) {
-            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-            out.println("<!DOCTYPE taglib PUBLIC \"-//Sun Microsystems, Inc.//DTD JSP Tag Library 1.1//EN\" \"http://java.sun.com/j2ee/dtds/web-jsptaglibrary_1_1.dtd\">");
-            out.println("<!-- Generated file, do not edit! -->");
-            out.println("<taglib>");
-            out.printf("  <tlibversion>%s</tlibversion>", taglib.getTlibversion()).println();
-            out.printf("  <jspversion>%s</jspversion>", taglib.getJspversion()).println();
-            out.printf("  <shortname>%s</shortname>", taglib.getShortname()).println();
-            out.printf("  <uri>%s</uri>", escapeXml(taglib.getUri())).println();
-            out.printf("  <info>%s</info>", escapeXml(taglib.getInfo())).println();
+        StringWriter sw = new StringWriter();
+        try (PrintWriter out = new PrintWriter(sw)) {
+            if (taglib.getFunctions().isEmpty()) {
+                writeTld11(out);
+            } else {
+                writeTld20(out);
+            }
+        }
 
-            for (TagBean tag : new TreeSet<>(taglib.getTags())) {
-                out.println("  <tag>");
-                out.printf("    <name>%s</name>", tag.getName()).println();
-                out.printf("    <tagclass>%s</tagclass>", tag.getProxyClassName()).println();
-                out.printf("    <bodycontent>%s</bodycontent>", tag.getBodycontent()).println();
-                if (tag.getInfo() != null) {
-                    out.printf("    <info>%s</info>", escapeXml(tag.getInfo())).println();
-                }
+        writeResource(tldfile, sw.toString().getBytes(UTF8));
+    }
 
-                for (AttributeBean attr : new TreeSet<>(tag.getAttributes())) {
-                    out.println("    <attribute>");
-                    out.printf("      <name>%s</name>", attr.getName()).println();
-                    out.printf("      <required>%s</required>", String.valueOf(attr.isRequired())).println();
-                    out.printf("      <rtexprvalue>%s</rtexprvalue>", String.valueOf(attr.isRtexprvalue())).println();
-                    out.println("    </attribute>");
-                }
+    /**
+     * Writes a JSP 1.1 TLD of the tag library.
+     *
+     * @param out
+     *            {@link PrintWriter} to write the TLD to
+     */
+    private void writeTld11(PrintWriter out) {
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.println("<!DOCTYPE taglib PUBLIC \"-//Sun Microsystems, Inc.//DTD JSP Tag Library 1.1//EN\" \"http://java.sun.com/j2ee/dtds/web-jsptaglibrary_1_1.dtd\">");
+        out.println("<!-- Generated file, do not edit! -->");
+        out.println("<taglib>");
+        out.printf("  <tlibversion>%s</tlibversion>", taglib.getTlibversion()).println();
+        out.printf("  <jspversion>%s</jspversion>", taglib.getJspversion()).println();
+        out.printf("  <shortname>%s</shortname>", taglib.getShortname()).println();
+        out.printf("  <uri>%s</uri>", escapeXml(taglib.getUri())).println();
+        out.printf("  <info>%s</info>", escapeXml(taglib.getInfo())).println();
+
+        for (TagBean tag : new TreeSet<>(taglib.getTags())) {
+            out.println("  <tag>");
+            out.printf("    <name>%s</name>", tag.getName()).println();
+            out.printf("    <tagclass>%s</tagclass>", tag.getProxyClassName()).println();
+            out.printf("    <bodycontent>%s</bodycontent>", tag.getBodycontent()).println();
+            if (tag.getInfo() != null) {
+                out.printf("    <info>%s</info>", escapeXml(tag.getInfo())).println();
+            }
+
+            for (AttributeBean attr : new TreeSet<>(tag.getAttributes())) {
+                out.println("    <attribute>");
+                out.printf("      <name>%s</name>", attr.getName()).println();
+                out.printf("      <required>%s</required>", String.valueOf(attr.isRequired())).println();
+                out.printf("      <rtexprvalue>%s</rtexprvalue>", String.valueOf(attr.isRtexprvalue())).println();
+                out.println("    </attribute>");
+            }
+
+            out.println("  </tag>");
+        }
+
+        out.println("</taglib>");
+    }
+
+    /**
+     * Writes a JSP 2.0 TLD of the tag library. It is required for EL functions.
+     *
+     * @param out
+     *            {@link PrintWriter} to write the TLD to
+     */
+    private void writeTld20(PrintWriter out) {
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.println("<!-- Generated file, do not edit! -->");
+        out.println("<taglib xmlns=\"http://java.sun.com/xml/ns/j2ee\"");
+        out.println("    xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        out.println("    xsi:schemaLocation=\"http://java.sun.com/xml/ns/j2ee http://java.sun.com/xml/ns/j2ee/web-jsptaglibrary_2_0.xsd\"");
+        out.println("    version=\"2.0\">");
+        out.printf("  <description>%s</description>", escapeXml(taglib.getInfo())).println();
+        out.printf("  <tlib-version>%s</tlib-version>", taglib.getTlibversion()).println();
+        out.printf("  <short-name>%s</short-name>", taglib.getShortname()).println();
+        out.printf("  <uri>%s</uri>", escapeXml(taglib.getUri())).println();
+
+        for (TagBean tag : new TreeSet<>(taglib.getTags())) {
+            out.println("  <tag>");
+            if (tag.getInfo() != null) {
+                out.printf("    <description>%s</description>", escapeXml(tag.getInfo())).println();
+            }
+            out.printf("    <name>%s</name>", tag.getName()).println();
+            out.printf("    <tag-class>%s</tag-class>", tag.getProxyClassName()).println();
+            out.printf("    <body-content>%s</body-content>", tag.getBodycontent()).println();
+
+            for (AttributeBean attr : new TreeSet<>(tag.getAttributes())) {
+                out.println("    <attribute>");
+                out.printf("      <name>%s</name>", attr.getName()).println();
+                out.printf("      <required>%s</required>", String.valueOf(attr.isRequired())).println();
+                out.printf("      <rtexprvalue>%s</rtexprvalue>", String.valueOf(attr.isRtexprvalue())).println();
+                out.println("    </attribute>");
+            }
+
+            out.println("  </tag>");
+        }
 
-                out.println("  </tag>");
+        for (FunctionBean function : new TreeSet<>(taglib.getFunctions())) {
+            out.println("  <function>");
+            if (function.getInfo() != null) {
+                out.printf("    <description>%s</description>", escapeXml(function.getInfo())).println();
             }
+            out.printf("    <name>%s</name>", function.getName()).println();
+            out.printf("    <function-class>%s</function-class>", function.getClassName()).println();
+            out.printf("    <function-signature>%s</function-signature>", escapeXml(function.getSignature())).println();
+            out.println("  </function>");
+        }
+
+        out.println("</taglib>");
+    }
 
-            out.println("</taglib>");
+    /**
+     * Writes a resource file to the class output. If the file already exists with the
+     * same content, it is not written again. This way, its timestamp is kept, and
+     * incremental builds and web containers won't see a changed file.
+     *
+     * @param name
+     *            name of the resource file
+     * @param content
+     *            content of the resource file
+     * @throws IOException
+     *             when the resource file could not be saved.
+     */
+    private void writeResource(String name, byte[] content) throws IOException {
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", name);
+            try (InputStream in = existing.openInputStream()) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length);
+                byte[] buffer = new byte[4096];
+                int len;
+                while ((len = in.read(buffer)) >= 0) {
+                    bos.write(buffer, 0, len);
+                }
+                if (Arrays.equals(content, bos.toByteArray())) {
+                    return;
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            // There is no existing file yet, so it needs to be written
+            Logger.getLogger(TaglibProcessor.class.getName()).log(Level.FINE, "no existing resource " + name, ex);
+        }
+
+        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", name);
+        try (OutputStream out = file.openOutputStream()) {
+            out.write(content);
         }
     }
 
@@ -438,4 +967,32 @@ public class TaglibProcessor extends AbstractProcessor {
         return text.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
     }
 
+    /**
+     * Escapes a string so it can be used in a Java string literal.
+     *
+     * @param text
+     *            String to be escaped
+     * @return Escaped text
+     */
+    private static @Nonnull String escapeJava(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int ix = 0; ix < text.length(); ix++) {
+            char ch = text.charAt(ix);
+            switch (ch) {
+                case '\\': sb.append("\\\\"); break;
+                case '"':  sb.append("\\\""); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (ch < ' ') {
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+
 }
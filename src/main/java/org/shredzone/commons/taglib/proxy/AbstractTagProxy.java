@@ -19,11 +19,16 @@
  */
 package org.shredzone.commons.taglib.proxy;
 
+import java.io.IOException;
 import java.util.Enumeration;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.JspWriter;
 import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.JspFragment;
 import javax.servlet.jsp.tagext.JspTag;
 
 import org.springframework.beans.factory.BeanFactory;
@@ -40,32 +45,268 @@ public abstract class AbstractTagProxy<T extends JspTag> implements JspTag, Prox
 
     public static final String TAGPROXY_BEANFACTORY_CACHE = AbstractTagProxy.class + ".beanFactory";
 
+    private static final TagInstanceProvider DEFAULT_INSTANCE_PROVIDER = new SpringTagInstanceProvider();
+
+    // FrameworkServlet.SERVLET_CONTEXT_PREFIX, which cannot be read without loading
+    // FrameworkServlet, and so the servlet API of the Spring version at hand
+    private static final String SERVLET_CONTEXT_PREFIX = "org.springframework.web.servlet.FrameworkServlet.CONTEXT.";
+
     private T tagImpl;
+    private TagInstanceContext instanceContext;
+    private RenderGuard renderGuard;
+    private boolean permitted;
+    private boolean fallback;
 
     protected abstract String getBeanName();
 
     /**
-     * Creates a new instance of the implementing target bean.
+     * Returns the class of the target bean. The default implementation returns
+     * {@code null}, which means that the class is unknown.
+     */
+    protected @Nullable Class<?> getBeanClass() {
+        return null;
+    }
+
+    /**
+     * Returns the {@link TagInstanceProvider} that creates the target beans. The default
+     * implementation returns a {@link SpringTagInstanceProvider}.
+     */
+    protected @Nonnull TagInstanceProvider getInstanceProvider() {
+        return DEFAULT_INSTANCE_PROVIDER;
+    }
+
+    /**
+     * Returns the maximum number of concurrent renderings of this tag. The default
+     * implementation returns 0, which means that the concurrency is not limited.
+     */
+    protected int getMaxConcurrency() {
+        return 0;
+    }
+
+    /**
+     * Returns {@code true} if the tag is to be skipped when the render deadline of the
+     * request has been exceeded. The default implementation returns {@code false}.
+     */
+    protected boolean isSkipOnDeadline() {
+        return false;
+    }
+
+    /**
+     * Returns the content to be rendered instead of the tag, if the tag was skipped. The
+     * default implementation returns an empty string.
+     */
+    protected String getFallback() {
+        return "";
+    }
+
+    /**
+     * Returns {@code true} if the tag was skipped, and the fallback content is to be
+     * rendered instead. In that case, the target bean is not rendered. Simple tags that
+     * were skipped before their target bean was created have no target bean at all.
+     */
+    protected boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * Checks if the render deadline of the request has been exceeded. If so, the tag
+     * switches to fallback mode. Must be invoked first on each use of the tag.
+     *
+     * @param jspContext
+     *            {@link JspContext}
+     * @return {@code true} if the tag may be rendered, {@code false} if it was skipped
+     */
+    protected boolean checkRenderDeadline(@Nonnull JspContext jspContext) {
+        fallback = false;
+        if (isSkipOnDeadline() && RenderGuard.isDeadlineExceeded(jspContext)) {
+            getRenderGuard().countDeadlineSkipped();
+            enterFallback();
+        }
+        return !fallback;
+    }
+
+    /**
+     * Acquires a render permit if the concurrency of this tag is limited, either by its
+     * annotation or at runtime by {@link RenderGuard#setMaxConcurrency(int)}. If no
+     * permit is available, the tag switches to fallback mode. An acquired permit must be
+     * released by {@link #releaseRenderPermit()}.
+     *
+     * @return {@code true} if the tag may be rendered, {@code false} if it was skipped
+     */
+    protected boolean acquireRenderPermit() {
+        if (!permitted) {
+            RenderGuard guard = getRenderGuard();
+            int maxConcurrency = getMaxConcurrency();
+            if (guard.getEffectiveMaxConcurrency(maxConcurrency) > 0) {
+                if (guard.tryAcquire(maxConcurrency)) {
+                    permitted = true;
+                } else {
+                    enterFallback();
+                }
+            }
+        }
+        return !fallback;
+    }
+
+    /**
+     * Releases a render permit that was acquired by {@link #acquireRenderPermit()}. Does
+     * nothing if no permit is held, so it is safe to invoke this method more than once.
+     */
+    protected void releaseRenderPermit() {
+        if (permitted) {
+            permitted = false;
+            getRenderGuard().release();
+        }
+    }
+
+    /**
+     * Writes the fallback content to the output of the given {@link JspContext}.
+     *
+     * @param jspContext
+     *            {@link JspContext} to write to
+     * @throws IOException
+     *             when the fallback content could not be written
+     */
+    protected void writeFallback(@Nonnull JspContext jspContext) throws IOException {
+        String content = getFallback();
+        if (!content.isEmpty()) {
+            jspContext.getOut().write(content);
+        }
+    }
+
+    /**
+     * Switches to fallback mode. A target bean is kept, as it may carry attributes for
+     * the next use of the tag. It is just not rendered.
+     */
+    private void enterFallback() {
+        fallback = true;
+    }
+
+    /**
+     * Gets the {@link RenderGuard} of this tag.
+     */
+    private RenderGuard getRenderGuard() {
+        if (renderGuard == null) {
+            renderGuard = RenderGuard.forBean(getBeanName());
+        }
+        return renderGuard;
+    }
+
+    /**
+     * Returns the minimum number of buffered characters that triggers a flush of the
+     * page output after the tag was rendered. The default implementation returns -1,
+     * which means that the output is never flushed.
+     */
+    protected int getFlushThreshold() {
+        return -1;
+    }
+
+    /**
+     * Returns {@code true} if the whitespaces of the tag output are to be compacted. The
+     * default implementation returns {@code false}.
+     */
+    protected boolean isCompactWhitespace() {
+        return false;
+    }
+
+    /**
+     * Returns a {@link JspFragment} that compacts the whitespaces of the given tag body,
+     * if enabled.
+     *
+     * @param body
+     *            Tag body, may be {@code null}
+     * @return Compacting {@link JspFragment}, or the given tag body if compaction is
+     *         disabled or there is no body
+     */
+    protected @Nullable JspFragment compactBody(@Nullable JspFragment body) {
+        if (body == null || !isCompactWhitespace()) {
+            return body;
+        }
+        return new CompactingJspFragment(body);
+    }
+
+    /**
+     * Returns a {@link BodyContent} that compacts the whitespaces of the given body
+     * content when it is read, if enabled.
+     *
+     * @param body
+     *            Body content, may be {@code null}
+     * @return Compacting {@link BodyContent}, or the given body content if compaction is
+     *         disabled or there is no body content
+     */
+    protected @Nullable BodyContent compactBody(@Nullable BodyContent body) {
+        if (body == null || !isCompactWhitespace()) {
+            return body;
+        }
+        return new CompactingBodyContent(body);
+    }
+
+    /**
+     * Flushes the output of the given {@link JspContext} if a flush threshold is set,
+     * and enough characters have been buffered. Nothing is flushed if the current
+     * output is a {@link BodyContent} or an unbounded buffer.
+     *
+     * @param jspContext
+     *            {@link JspContext} to flush
+     * @throws IOException
+     *             when the output could not be flushed
+     */
+    protected void flushOutput(@Nonnull JspContext jspContext) throws IOException {
+        int threshold = getFlushThreshold();
+        if (threshold < 0) {
+            return;
+        }
+
+        JspWriter out = jspContext.getOut();
+        if (out instanceof BodyContent) {
+            return;
+        }
+
+        int bufferSize = out.getBufferSize();
+        if (bufferSize == JspWriter.UNBOUNDED_BUFFER
+                || (bufferSize > 0 && bufferSize - out.getRemaining() < threshold)) {
+            return;
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Creates a new instance of the implementing target bean, using the
+     * {@link TagInstanceProvider} of this tag. A target bean of a previous use is
+     * released before.
      *
      * @param jspContext
      *            {@link JspContext}
      */
     @SuppressWarnings("unchecked")
     protected void initTargetBean(@Nonnull JspContext jspContext) {
-        BeanFactory bf = getBeanFactory(jspContext);
+        releaseTargetBean();
 
-        String beanName = getBeanName();
-        if (!bf.isPrototype(beanName)) {
-            throw new IllegalStateException("Bean " + beanName + " must be prototype scoped!");
+        if (instanceContext == null) {
+            instanceContext = new TagInstanceContext(this);
         }
 
-        tagImpl = (T) bf.getBean(beanName);
+        Object event = TagEvents.beginBeanCreation();
+        instanceContext.setJspContext(jspContext);
+        try {
+            tagImpl = (T) getInstanceProvider().createInstance(instanceContext);
+        } finally {
+            instanceContext.setJspContext(null);
+        }
+        TagEvents.endBeanCreation(event, getBeanName());
     }
 
     /**
      * Gets the {@link BeanFactory} from the given {@link JspContext}. The default
      * implementation automagically finds a {@link BeanFactory} that was previously set by
      * a {@link FrameworkServlet}. The result is cached.
+     * <p>
+     * The cache is an application scoped attribute. Servlet context attributes are
+     * thread-safe, and setting one safely publishes the {@link BeanFactory} to all
+     * threads that read it. Racing first requests may all search for the
+     * {@link BeanFactory}, but since they find the same instance, it does not matter
+     * which of them sets the attribute last.
      *
      * @param jspContext
      *            {@link JspContext} to be used
@@ -74,28 +315,66 @@ public abstract class AbstractTagProxy<T extends JspTag> implements JspTag, Prox
     @SuppressWarnings("unchecked")
     protected @Nonnull BeanFactory getBeanFactory(@Nonnull JspContext jspContext) {
         Object bfCache = jspContext.getAttribute(TAGPROXY_BEANFACTORY_CACHE, PageContext.APPLICATION_SCOPE);
-        if (bfCache != null && bfCache instanceof BeanFactory) {
+        if (bfCache instanceof BeanFactory) {
             return (BeanFactory) bfCache;
         }
 
+        Object event = TagEvents.beginBeanFactoryMiss();
         Enumeration<String> en = jspContext.getAttributeNamesInScope(PageContext.APPLICATION_SCOPE);
         while (en.hasMoreElements()) {
             String attribute = en.nextElement();
-            if (attribute.startsWith(FrameworkServlet.SERVLET_CONTEXT_PREFIX)) {
+            if (attribute.startsWith(SERVLET_CONTEXT_PREFIX)) {
                 Object bf = jspContext.getAttribute(attribute, PageContext.APPLICATION_SCOPE);
                 if (bf != null && bf instanceof BeanFactory) {
                     BeanFactory bfBean = (BeanFactory) bf;
                     jspContext.setAttribute(TAGPROXY_BEANFACTORY_CACHE, bfBean, PageContext.APPLICATION_SCOPE);
+                    TagEvents.endBeanFactoryMiss(event, true);
                     return bfBean;
                 }
             }
         }
+        TagEvents.endBeanFactoryMiss(event, false);
 
         throw new IllegalStateException("Could not find a BeanFactory. Use a FrameworkServlet or @BeanFactoryReference.");
     }
 
+    /**
+     * Releases the target bean, so it can be garbage collected while the proxy instance
+     * is kept in a tag handler pool. The target bean is passed back to its
+     * {@link TagInstanceProvider}. It cannot be used afterwards, until a new one is
+     * created by {@link #initTargetBean(JspContext)}.
+     */
+    protected void releaseTargetBean() {
+        T target = tagImpl;
+        if (target != null) {
+            tagImpl = null;
+            getInstanceProvider().releaseInstance(target);
+        }
+    }
+
+    /**
+     * Checks if there is a target bean. There is none before
+     * {@link #initTargetBean(JspContext)} was invoked, after
+     * {@link #releaseTargetBean()} was invoked, and if a simple tag was skipped.
+     *
+     * @return {@code true} if there is a target bean
+     */
+    protected boolean hasTargetBean() {
+        return tagImpl != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException
+     *             if there is no target bean, because the tag has been released or
+     *             skipped
+     */
     @Override
     public T getTargetBean() {
+        if (tagImpl == null) {
+            throw new IllegalStateException("Tag " + getBeanName() + " has no target bean, it was released or skipped");
+        }
         return tagImpl;
     }
 
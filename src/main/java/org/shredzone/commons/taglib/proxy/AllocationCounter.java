@@ -0,0 +1,118 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.lang.management.ManagementFactory;
+
+import javax.annotation.CheckForNull;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Reads the number of bytes allocated by the current thread. This class must only be
+ * used via {@link AllocationStats}, which makes sure that the
+ * {@code com.sun.management} API is available.
+ * <p>
+ * Loading this class does not change the JVM settings. Thread allocated memory
+ * measurement is only enabled by {@link #enable()}, when allocation accounting is
+ * switched on.
+ *
+ * @author Richard "Shred" Körber
+ */
+final class AllocationCounter {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = findThreadMXBean();
+
+    private static volatile boolean enabledByUs;
+
+    private AllocationCounter() {}
+
+    /**
+     * Checks if the JVM supports counting the allocated bytes of a thread.
+     */
+    static boolean isSupported() {
+        return THREAD_MX_BEAN != null;
+    }
+
+    /**
+     * Enables thread allocated memory measurement, if it is not enabled yet.
+     *
+     * @return {@code true} if measurement is enabled, {@code false} if it could not be
+     *         enabled
+     */
+    static boolean enable() {
+        if (THREAD_MX_BEAN == null) {
+            return false;
+        }
+
+        try {
+            if (!THREAD_MX_BEAN.isThreadAllocatedMemoryEnabled()) {
+                THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+                enabledByUs = true;
+            }
+            return true;
+        } catch (SecurityException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Disables thread allocated memory measurement again, but only if it was enabled by
+     * {@link #enable()}.
+     */
+    static void disable() {
+        if (enabledByUs) {
+            enabledByUs = false;
+            try {
+                THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(false);
+            } catch (SecurityException ex) {
+                // keep it enabled then
+            }
+        }
+    }
+
+    /**
+     * Returns the total number of bytes that have been allocated by the current thread
+     * so far.
+     */
+    static long currentThreadAllocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Finds the {@link ThreadMXBean}.
+     *
+     * @return {@link ThreadMXBean}, or {@code null} if allocation counting is not
+     *         supported
+     */
+    private static @CheckForNull ThreadMXBean findThreadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof ThreadMXBean)) {
+            return null;
+        }
+
+        ThreadMXBean sunBean = (ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        return sunBean;
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the bytes that were allocated while creating tag beans and while invoking
+ * their lifecycle methods. There is one {@link AllocationStats} per tag bean name.
+ * <p>
+ * Allocation accounting is disabled by default. It can be enabled by the system
+ * property {@value #ENABLED_PROPERTY}, or at runtime via {@link #setEnabled(boolean)}.
+ * It requires a JVM that supports {@code com.sun.management.ThreadMXBean}.
+ * <p>
+ * Bytes allocated by nested tags and by the tag body are included in the rendering
+ * bytes of the enclosing {@code SimpleTag}, as they are allocated while its
+ * {@code doTag()} method is running.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class AllocationStats implements AllocationStatsMXBean {
+
+    public static final String ENABLED_PROPERTY = "org.shredzone.commons.taglib.allocationStats";
+    public static final String JMX_DOMAIN = "org.shredzone.commons.taglib";
+
+    private static final Logger LOG = Logger.getLogger(AllocationStats.class.getName());
+    private static final ConcurrentMap<String, AllocationStats> STATS = new ConcurrentHashMap<>();
+    private static final boolean AVAILABLE = isCounterAvailable();
+
+    private static volatile boolean enabled = AVAILABLE && Boolean.getBoolean(ENABLED_PROPERTY)
+                    && AllocationCounter.enable();
+    private static volatile boolean jmxRegistered;
+    private static ScheduledExecutorService logExecutor;
+
+    private final String beanName;
+    private final AtomicLong creations = new AtomicLong();
+    private final AtomicLong creationBytes = new AtomicLong();
+    private final AtomicLong renderings = new AtomicLong();
+    private final AtomicLong renderingBytes = new AtomicLong();
+
+    private AllocationStats(String beanName) {
+        this.beanName = beanName;
+    }
+
+    /**
+     * Checks if allocation accounting is enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables allocation accounting. Enabling has no effect if the JVM does
+     * not support counting the allocated bytes of a thread. Thread allocated memory
+     * measurement of the JVM is enabled along with the accounting, and disabled again
+     * when the accounting is disabled.
+     *
+     * @param enable
+     *            {@code true} to enable allocation accounting
+     * @return {@code true} if allocation accounting is enabled now
+     */
+    public static boolean setEnabled(boolean enable) {
+        if (AVAILABLE && enable) {
+            enabled = AllocationCounter.enable();
+        } else {
+            enabled = false;
+            if (AVAILABLE) {
+                AllocationCounter.disable();
+            }
+        }
+        return enabled;
+    }
+
+    /**
+     * Gets the {@link AllocationStats} of the given tag bean. It is created if it does not
+     * exist yet.
+     *
+     * @param beanName
+     *            Name of the tag bean
+     * @return {@link AllocationStats} of that bean
+     */
+    public static @Nonnull AllocationStats forBean(String beanName) {
+        AllocationStats stats = STATS.get(beanName);
+        if (stats == null) {
+            AllocationStats newStats = new AllocationStats(beanName);
+            stats = STATS.putIfAbsent(beanName, newStats);
+            if (stats == null) {
+                stats = newStats;
+                if (jmxRegistered) {
+                    registerMBean(stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns all {@link AllocationStats} that have been collected so far, mapped by
+     * their bean names.
+     *
+     * @return Unmodifiable map of {@link AllocationStats}
+     */
+    public static @Nonnull Map<String, AllocationStats> getStats() {
+        return Collections.unmodifiableMap(STATS);
+    }
+
+    /**
+     * Registers all {@link AllocationStats} at the platform MBean server, in the
+     * {@value #JMX_DOMAIN} domain. {@link AllocationStats} of tags that are rendered
+     * for the first time are registered as well, until {@link #unregisterMBeans()} is
+     * invoked.
+     */
+    public static void registerMBeans() {
+        jmxRegistered = true;
+        for (AllocationStats stats : STATS.values()) {
+            registerMBean(stats);
+        }
+    }
+
+    /**
+     * Unregisters all {@link AllocationStats} from the platform MBean server. This
+     * should be done when the web application is stopped.
+     */
+    public static void unregisterMBeans() {
+        jmxRegistered = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (AllocationStats stats : STATS.values()) {
+            try {
+                server.unregisterMBean(stats.getObjectName());
+            } catch (InstanceNotFoundException ex) {
+                // was not registered, ignore
+            } catch (JMException ex) {
+                LOG.log(Level.WARNING, "Could not unregister allocation stats of " + stats.beanName, ex);
+            }
+        }
+    }
+
+    /**
+     * Starts logging a summary of all {@link AllocationStats} periodically. A running
+     * summary is stopped before.
+     *
+     * @param period
+     *            Period between two summaries
+     * @param unit
+     *            {@link TimeUnit} of the period
+     */
+    public static synchronized void startLogSummary(long period, TimeUnit unit) {
+        stopLogSummary();
+        logExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "commons-taglib allocation stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                logSummary();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops logging a summary. This should be done when the web application is stopped.
+     */
+    public static synchronized void stopLogSummary() {
+        if (logExecutor != null) {
+            logExecutor.shutdownNow();
+            logExecutor = null;
+        }
+    }
+
+    /**
+     * Logs a summary of all {@link AllocationStats}, starting with the tag that
+     * allocated the most bytes.
+     */
+    public static void logSummary() {
+        if (!LOG.isLoggable(Level.INFO) || STATS.isEmpty()) {
+            return;
+        }
+
+        List<AllocationStats> list = new ArrayList<>(STATS.values());
+        Collections.sort(list, new Comparator<AllocationStats>() {
+            @Override
+            public int compare(AllocationStats o1, AllocationStats o2) {
+                long total1 = o1.getCreationBytes() + o1.getRenderingBytes();
+                long total2 = o2.getCreationBytes() + o2.getRenderingBytes();
+                return total1 < total2 ? 1 : (total1 > total2 ? -1 : 0);
+            }
+        });
+
+        StringBuilder sb = new StringBuilder("Tag allocations:");
+        for (AllocationStats stats : list) {
+            sb.append("\n  ").append(stats.beanName)
+              .append(": ").append(stats.getCreationBytes()).append(" bytes in ")
+              .append(stats.getCreations()).append(" creations, ")
+              .append(stats.getRenderingBytes()).append(" bytes in ")
+              .append(stats.getRenderings()).append(" renderings");
+        }
+        LOG.info(sb.toString());
+    }
+
+    /**
+     * Returns the number of bytes that have been allocated by the current thread so
+     * far. Must only be invoked if allocation accounting is enabled.
+     */
+    static long currentThreadAllocatedBytes() {
+        return AllocationCounter.currentThreadAllocatedBytes();
+    }
+
+    @Override
+    public @Nonnull String getBeanName()    { return beanName; }
+
+    @Override
+    public long getCreations()              { return creations.get(); }
+
+    @Override
+    public long getCreationBytes()          { return creationBytes.get(); }
+
+    @Override
+    public long getRenderings()             { return renderings.get(); }
+
+    @Override
+    public long getRenderingBytes()         { return renderingBytes.get(); }
+
+    @Override
+    public void reset() {
+        creations.set(0L);
+        creationBytes.set(0L);
+        renderings.set(0L);
+        renderingBytes.set(0L);
+    }
+
+    /**
+     * Counts a tag bean creation.
+     *
+     * @param bytes
+     *            Number of bytes allocated while creating the bean
+     */
+    void countCreation(long bytes) {
+        creations.incrementAndGet();
+        creationBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Counts an invocation of a tag lifecycle method.
+     *
+     * @param bytes
+     *            Number of bytes allocated by the lifecycle method
+     */
+    void countRendering(long bytes) {
+        renderings.incrementAndGet();
+        renderingBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Returns the JMX {@link ObjectName} of this {@link AllocationStats}.
+     */
+    private ObjectName getObjectName() throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=AllocationStats,name=" + ObjectName.quote(beanName));
+    }
+
+    /**
+     * Registers a {@link AllocationStats} at the platform MBean server.
+     */
+    private static void registerMBean(AllocationStats stats) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, stats.getObjectName());
+        } catch (InstanceAlreadyExistsException ex) {
+            // already registered, ignore
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Could not register allocation stats of " + stats.beanName, ex);
+        }
+    }
+
+    /**
+     * Checks if the {@code com.sun.management} API is available, and the JVM supports
+     * counting the allocated bytes of a thread.
+     */
+    private static boolean isCounterAvailable() {
+        try {
+            Class.forName("com.sun.management.ThreadMXBean", false, AllocationStats.class.getClassLoader());
+            return AllocationCounter.isSupported();
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+}
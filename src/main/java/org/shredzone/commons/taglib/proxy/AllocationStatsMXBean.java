@@ -0,0 +1,59 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+/**
+ * JMX interface of {@link AllocationStats}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public interface AllocationStatsMXBean {
+
+    /**
+     * Name of the tag bean.
+     */
+    String getBeanName();
+
+    /**
+     * Number of tag bean creations.
+     */
+    long getCreations();
+
+    /**
+     * Total number of bytes allocated while creating tag beans.
+     */
+    long getCreationBytes();
+
+    /**
+     * Number of invoked tag lifecycle methods.
+     */
+    long getRenderings();
+
+    /**
+     * Total number of bytes allocated in the tag lifecycle methods.
+     */
+    long getRenderingBytes();
+
+    /**
+     * Resets all counters to 0.
+     */
+    void reset();
+
+}
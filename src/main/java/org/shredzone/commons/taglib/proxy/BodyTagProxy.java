@@ -40,7 +40,7 @@ public abstract class BodyTagProxy<T extends BodyTag> extends IterationTagProxy<
 
     @Override
     public void setBodyContent(BodyContent bodyContent) {
-        getTargetBean().setBodyContent(bodyContent);
+        getTargetBean().setBodyContent(compactBody(bodyContent));
     }
 
 }
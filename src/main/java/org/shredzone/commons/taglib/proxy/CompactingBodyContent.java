@@ -0,0 +1,194 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.BodyContent;
+
+import org.shredzone.commons.taglib.WhitespaceCompactingWriter;
+
+/**
+ * A {@link BodyContent} that compacts the whitespaces of another {@link BodyContent}
+ * when it is read. It is passed to {@link javax.servlet.jsp.tagext.BodyTag}
+ * implementations instead of the container's {@link BodyContent}, if whitespace
+ * compaction is enabled. The container still evaluates the body into its own
+ * {@link BodyContent}, so only the body is compacted, but not the other output of the
+ * tag.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+class CompactingBodyContent extends BodyContent {
+
+    private final BodyContent body;
+
+    /**
+     * Creates a new {@link CompactingBodyContent}.
+     *
+     * @param body
+     *            {@link BodyContent} of the container
+     */
+    CompactingBodyContent(BodyContent body) {
+        super(body.getEnclosingWriter());
+        this.body = body;
+    }
+
+    @Override
+    public String getString() {
+        try {
+            StringWriter out = new StringWriter();
+            writeOut(out);
+            return out.toString();
+        } catch (IOException ex) {
+            // StringWriter does not throw IOException
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public Reader getReader() {
+        return new StringReader(getString());
+    }
+
+    @Override
+    public void writeOut(Writer out) throws IOException {
+        WhitespaceCompactingWriter writer = new WhitespaceCompactingWriter(out);
+        body.writeOut(writer);
+        writer.finish();
+    }
+
+    @Override
+    public JspWriter getEnclosingWriter() {
+        return body.getEnclosingWriter();
+    }
+
+    @Override
+    public void clearBody() {
+        body.clearBody();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        body.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        body.write(str, off, len);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        body.write(c);
+    }
+
+    @Override
+    public void newLine() throws IOException         { body.newLine(); }
+
+    @Override
+    public void print(boolean b) throws IOException  { body.print(b); }
+
+    @Override
+    public void print(char c) throws IOException     { body.print(c); }
+
+    @Override
+    public void print(int i) throws IOException      { body.print(i); }
+
+    @Override
+    public void print(long l) throws IOException     { body.print(l); }
+
+    @Override
+    public void print(float f) throws IOException    { body.print(f); }
+
+    @Override
+    public void print(double d) throws IOException   { body.print(d); }
+
+    @Override
+    public void print(char[] s) throws IOException   { body.print(s); }
+
+    @Override
+    public void print(String s) throws IOException   { body.print(s); }
+
+    @Override
+    public void print(Object obj) throws IOException { body.print(obj); }
+
+    @Override
+    public void println() throws IOException         { body.println(); }
+
+    @Override
+    public void println(boolean x) throws IOException { body.println(x); }
+
+    @Override
+    public void println(char x) throws IOException   { body.println(x); }
+
+    @Override
+    public void println(int x) throws IOException    { body.println(x); }
+
+    @Override
+    public void println(long x) throws IOException   { body.println(x); }
+
+    @Override
+    public void println(float x) throws IOException  { body.println(x); }
+
+    @Override
+    public void println(double x) throws IOException { body.println(x); }
+
+    @Override
+    public void println(char[] x) throws IOException { body.println(x); }
+
+    @Override
+    public void println(String x) throws IOException { body.println(x); }
+
+    @Override
+    public void println(Object x) throws IOException { body.println(x); }
+
+    @Override
+    public void clear() throws IOException {
+        body.clear();
+    }
+
+    @Override
+    public void clearBuffer() throws IOException {
+        body.clearBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        body.close();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return body.getBufferSize();
+    }
+
+    @Override
+    public int getRemaining() {
+        return body.getRemaining();
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.JspFragment;
+
+import org.shredzone.commons.taglib.WhitespaceCompactingWriter;
+
+/**
+ * A {@link JspFragment} that compacts the whitespaces of the output of another
+ * {@link JspFragment}. It is passed to {@link javax.servlet.jsp.tagext.SimpleTag}
+ * implementations instead of their body, if whitespace compaction is enabled.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+class CompactingJspFragment extends JspFragment {
+
+    private final JspFragment body;
+
+    /**
+     * Creates a new {@link CompactingJspFragment}.
+     *
+     * @param body
+     *            {@link JspFragment} whose output is to be compacted
+     */
+    CompactingJspFragment(JspFragment body) {
+        this.body = body;
+    }
+
+    @Override
+    public void invoke(Writer out) throws JspException, IOException {
+        Writer target = (out != null ? out : body.getJspContext().getOut());
+        WhitespaceCompactingWriter writer = new WhitespaceCompactingWriter(target);
+        body.invoke(writer);
+        writer.finish();
+    }
+
+    @Override
+    public JspContext getJspContext() {
+        return body.getJspContext();
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A {@link TagInstanceProvider} that creates the target bean by invoking its public
+ * no-argument constructor. There is no dependency injection, and no Spring
+ * {@link org.springframework.beans.factory.BeanFactory} is needed. Use it for tags that
+ * do not depend on other beans.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class ConstructorTagInstanceProvider implements TagInstanceProvider {
+
+    private volatile Constructor<?> constructor;
+
+    @Override
+    public Object createInstance(TagInstanceContext context) {
+        try {
+            return getConstructor(context).newInstance();
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Could not create tag " + context.getBeanName(), ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Could not create tag " + context.getBeanName(), ex);
+        }
+    }
+
+    @Override
+    public void releaseInstance(Object instance) {
+        // nothing to do
+    }
+
+    /**
+     * Gets the no-argument constructor of the target bean class. The result is cached.
+     */
+    private Constructor<?> getConstructor(TagInstanceContext context) throws NoSuchMethodException {
+        Constructor<?> result = constructor;
+        if (result == null) {
+            Class<?> beanClass = context.getBeanClass();
+            if (beanClass == null) {
+                throw new IllegalStateException("Bean class of tag " + context.getBeanName() + " is unknown");
+            }
+            result = beanClass.getConstructor();
+            constructor = result;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.el.ExpressionEvaluator;
+import javax.servlet.jsp.el.VariableResolver;
+
+/**
+ * A {@link JspContext} for rendering a tag in another thread than the page. The output
+ * is written to a private buffer. It is not a {@link PageContext}, as there is no
+ * request or response that could be used by another thread.
+ * <p>
+ * The page and request scopes are copies of the scopes of the page, taken by the page's
+ * thread when the context is created. Changes to them are not visible to either side.
+ * The session and application scopes are live views of the {@link HttpSession} and the
+ * {@link ServletContext}, which are thread-safe and outlive the request. If the page is
+ * not a {@link PageContext}, these scopes are copied as well.
+ * <p>
+ * The page's {@link JspContext} is not used after the context was created, so it can be
+ * recycled by the container while the tag is still rendering.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+class DetachedJspContext extends JspContext {
+
+    private static final int[] SCOPES = {
+        PageContext.PAGE_SCOPE, PageContext.REQUEST_SCOPE,
+        PageContext.SESSION_SCOPE, PageContext.APPLICATION_SCOPE
+    };
+
+    private final Map<Integer, Map<String, Object>> scopes = new HashMap<>();
+    private final ExpressionEvaluator expressionEvaluator;
+    private final VariableResolver variableResolver = new SnapshotVariableResolver();
+    private final StringWriter buffer = new StringWriter();
+    private final Deque<JspWriter> writers = new ArrayDeque<>();
+
+    /**
+     * Creates a new {@link DetachedJspContext}. Must be invoked by the page's thread.
+     *
+     * @param page
+     *            {@link JspContext} of the page
+     */
+    DetachedJspContext(JspContext page) {
+        scopes.put(PageContext.PAGE_SCOPE, snapshot(page, PageContext.PAGE_SCOPE));
+        scopes.put(PageContext.REQUEST_SCOPE, snapshot(page, PageContext.REQUEST_SCOPE));
+
+        if (page instanceof PageContext) {
+            HttpSession session = ((PageContext) page).getSession();
+            scopes.put(PageContext.SESSION_SCOPE, session != null
+                            ? new SessionAttributes(session)
+                            : new HashMap<String, Object>());
+
+            ServletContext servletContext = ((PageContext) page).getServletContext();
+            scopes.put(PageContext.APPLICATION_SCOPE, servletContext != null
+                            ? new ApplicationAttributes(servletContext)
+                            : snapshot(page, PageContext.APPLICATION_SCOPE));
+        } else {
+            scopes.put(PageContext.SESSION_SCOPE, snapshot(page, PageContext.SESSION_SCOPE));
+            scopes.put(PageContext.APPLICATION_SCOPE, snapshot(page, PageContext.APPLICATION_SCOPE));
+        }
+
+        expressionEvaluator = page.getExpressionEvaluator();
+        writers.push(new DetachedJspWriter(buffer));
+    }
+
+    /**
+     * Copies all attributes of a scope of the page.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> snapshot(JspContext page, int scope) {
+        Map<String, Object> result = new HashMap<>();
+        Enumeration<String> en = page.getAttributeNamesInScope(scope);
+        while (en.hasMoreElements()) {
+            String name = en.nextElement();
+            Object value = page.getAttribute(name, scope);
+            if (value != null) {
+                result.put(name, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the content that has been written so far.
+     */
+    public @Nonnull String getContent() {
+        return buffer.toString();
+    }
+
+    /**
+     * Returns the attributes of the given scope.
+     */
+    private Map<String, Object> scope(int scope) {
+        Map<String, Object> result = scopes.get(scope);
+        if (result == null) {
+            throw new IllegalArgumentException("Unknown scope " + scope);
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        setAttribute(name, value, PageContext.PAGE_SCOPE);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, int scope) {
+        if (value != null) {
+            scope(scope).put(name, value);
+        } else {
+            scope(scope).remove(name);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return getAttribute(name, PageContext.PAGE_SCOPE);
+    }
+
+    @Override
+    public Object getAttribute(String name, int scope) {
+        return scope(scope).get(name);
+    }
+
+    @Override
+    public Object findAttribute(String name) {
+        for (int scope : SCOPES) {
+            Object value = scope(scope).get(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        for (int scope : SCOPES) {
+            scope(scope).remove(name);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name, int scope) {
+        scope(scope).remove(name);
+    }
+
+    @Override
+    public int getAttributesScope(String name) {
+        for (int scope : SCOPES) {
+            if (scope(scope).containsKey(name)) {
+                return scope;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNamesInScope(int scope) {
+        return Collections.enumeration(scope(scope).keySet());
+    }
+
+    @Override
+    public JspWriter getOut() {
+        return writers.peek();
+    }
+
+    @Override
+    public JspWriter pushBody(Writer writer) {
+        JspWriter out = new DetachedJspWriter(writer);
+        writers.push(out);
+        return out;
+    }
+
+    @Override
+    public JspWriter popBody() {
+        if (writers.size() > 1) {
+            writers.pop();
+        }
+        return writers.peek();
+    }
+
+    @Override
+    public ExpressionEvaluator getExpressionEvaluator() {
+        return expressionEvaluator;
+    }
+
+    @Override
+    public VariableResolver getVariableResolver() {
+        return variableResolver;
+    }
+
+    /**
+     * A live view of the attributes of a thread-safe container object.
+     */
+    private abstract static class AttributeMap extends AbstractMap<String, Object> {
+        protected abstract Enumeration<String> names();
+
+        protected abstract Object read(String name);
+
+        protected abstract void write(String name, Object value);
+
+        protected abstract void delete(String name);
+
+        @Override
+        public Object get(Object key) {
+            return key instanceof String ? read((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object old = read(key);
+            write(key, value);
+            return old;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Object old = get(key);
+            if (old != null) {
+                delete((String) key);
+            }
+            return old;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Returns a snapshot of the current attributes.
+         */
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            Map<String, Object> result = new HashMap<>();
+            Enumeration<String> en = names();
+            while (en.hasMoreElements()) {
+                String name = en.nextElement();
+                Object value = read(name);
+                if (value != null) {
+                    result.put(name, value);
+                }
+            }
+            return Collections.unmodifiableMap(result).entrySet();
+        }
+    }
+
+    /**
+     * The attributes of the {@link ServletContext}.
+     */
+    private static class ApplicationAttributes extends AttributeMap {
+        private final ServletContext servletContext;
+
+        ApplicationAttributes(ServletContext servletContext) {
+            this.servletContext = servletContext;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected Enumeration<String> names()                 { return servletContext.getAttributeNames(); }
+
+        @Override
+        protected Object read(String name)                    { return servletContext.getAttribute(name); }
+
+        @Override
+        protected void write(String name, Object value)       { servletContext.setAttribute(name, value); }
+
+        @Override
+        protected void delete(String name)                    { servletContext.removeAttribute(name); }
+    }
+
+    /**
+     * The attributes of the {@link HttpSession}. If the session was invalidated in the
+     * meantime, it appears to be empty.
+     */
+    private static class SessionAttributes extends AttributeMap {
+        private final HttpSession session;
+
+        SessionAttributes(HttpSession session) {
+            this.session = session;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected Enumeration<String> names() {
+            try {
+                return session.getAttributeNames();
+            } catch (IllegalStateException ex) {
+                return Collections.emptyEnumeration();
+            }
+        }
+
+        @Override
+        protected Object read(String name) {
+            try {
+                return session.getAttribute(name);
+            } catch (IllegalStateException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void write(String name, Object value)       { session.setAttribute(name, value); }
+
+        @Override
+        protected void delete(String name)                    { session.removeAttribute(name); }
+    }
+
+    /**
+     * Resolves EL variables from the scopes. Besides the scope maps, no implicit
+     * objects are available, as they would refer to the page.
+     */
+    private class SnapshotVariableResolver implements VariableResolver {
+        @Override
+        public Object resolveVariable(String name) {
+            switch (name) {
+                case "pageScope":        return scope(PageContext.PAGE_SCOPE);
+                case "requestScope":     return scope(PageContext.REQUEST_SCOPE);
+                case "sessionScope":     return scope(PageContext.SESSION_SCOPE);
+                case "applicationScope": return scope(PageContext.APPLICATION_SCOPE);
+                default:                 return findAttribute(name);
+            }
+        }
+    }
+
+}
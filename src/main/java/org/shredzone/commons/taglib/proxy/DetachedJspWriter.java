@@ -0,0 +1,152 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.jsp.JspWriter;
+
+/**
+ * An unbuffered {@link JspWriter} that writes to a {@link Writer}. It is used by
+ * {@link DetachedJspContext}.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+class DetachedJspWriter extends JspWriter {
+
+    private final Writer out;
+
+    /**
+     * Creates a new {@link DetachedJspWriter}.
+     *
+     * @param out
+     *            {@link Writer} to write to
+     */
+    DetachedJspWriter(Writer out) {
+        super(UNBOUNDED_BUFFER, true);
+        this.out = out;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        out.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        out.write(str, off, len);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        out.write(c);
+    }
+
+    @Override
+    public void newLine() throws IOException {
+        out.write(System.lineSeparator());
+    }
+
+    @Override
+    public void print(boolean b) throws IOException  { out.write(String.valueOf(b)); }
+
+    @Override
+    public void print(char c) throws IOException     { out.write(c); }
+
+    @Override
+    public void print(int i) throws IOException      { out.write(String.valueOf(i)); }
+
+    @Override
+    public void print(long l) throws IOException     { out.write(String.valueOf(l)); }
+
+    @Override
+    public void print(float f) throws IOException    { out.write(String.valueOf(f)); }
+
+    @Override
+    public void print(double d) throws IOException   { out.write(String.valueOf(d)); }
+
+    @Override
+    public void print(char[] s) throws IOException   { out.write(s); }
+
+    @Override
+    public void print(String s) throws IOException   { out.write(String.valueOf(s)); }
+
+    @Override
+    public void print(Object obj) throws IOException { out.write(String.valueOf(obj)); }
+
+    @Override
+    public void println() throws IOException         { newLine(); }
+
+    @Override
+    public void println(boolean x) throws IOException { print(x); newLine(); }
+
+    @Override
+    public void println(char x) throws IOException   { print(x); newLine(); }
+
+    @Override
+    public void println(int x) throws IOException    { print(x); newLine(); }
+
+    @Override
+    public void println(long x) throws IOException   { print(x); newLine(); }
+
+    @Override
+    public void println(float x) throws IOException  { print(x); newLine(); }
+
+    @Override
+    public void println(double x) throws IOException { print(x); newLine(); }
+
+    @Override
+    public void println(char[] x) throws IOException { print(x); newLine(); }
+
+    @Override
+    public void println(String x) throws IOException { print(x); newLine(); }
+
+    @Override
+    public void println(Object x) throws IOException { print(x); newLine(); }
+
+    @Override
+    public void clear() throws IOException {
+        throw new IOException("Cannot clear an unbuffered writer");
+    }
+
+    @Override
+    public void clearBuffer() throws IOException {
+        // Unbuffered, nothing to clear
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    @Override
+    public int getRemaining() {
+        return 0;
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Enumeration;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspFactory;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+
+import org.shredzone.commons.taglib.annotation.Tag;
+
+/**
+ * Renders a single tag that is marked with {@link Tag#esi()}, so it can be included by a
+ * caching reverse proxy. The path info is the class name of the tag proxy, and the
+ * request parameters are the tag attributes. Only tags that are marked with
+ * {@link Tag#esi()} are rendered, all other requests are rejected.
+ * <p>
+ * The servlet must be mapped to {@value EsiSupport#DEFAULT_ENDPOINT}{@code /*}, or to
+ * the path set via {@link EsiSupport#setEndpoint(javax.servlet.ServletRequest, String)}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class EsiFragmentServlet extends HttpServlet {
+    private static final long serialVersionUID = -3268447305162894312L;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException {
+        SimpleTagProxy<?> proxy = createProxy(req.getPathInfo());
+        if (proxy == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        JspFactory factory = JspFactory.getDefaultFactory();
+        if (factory == null) {
+            throw new ServletException("No JSP engine available");
+        }
+
+        // The fragment itself must be rendered, not included again
+        EsiSupport.setEnabled(req, false);
+
+        resp.setContentType("text/html;charset=UTF-8");
+        PageContext pc = factory.getPageContext(this, req, resp, null, false, JspWriter.DEFAULT_BUFFER, true);
+        try {
+            proxy.setJspContext(pc);
+
+            try {
+                Enumeration<String> en = req.getParameterNames();
+                while (en.hasMoreElements()) {
+                    String name = en.nextElement();
+                    proxy.setEsiAttribute(name, req.getParameter(name));
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                proxy.releaseResources();
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+                return;
+            }
+
+            proxy.doTag();
+        } catch (JspException ex) {
+            throw new ServletException(ex);
+        } finally {
+            factory.releasePageContext(pc);
+        }
+    }
+
+    /**
+     * Creates the tag proxy of the given path info.
+     *
+     * @param pathInfo
+     *            Path info, containing the proxy class name
+     * @return Tag proxy, or {@code null} if there is no such proxy, or if the tag is not
+     *         marked with {@link Tag#esi()}
+     */
+    private @CheckForNull SimpleTagProxy<?> createProxy(@Nullable String pathInfo) {
+        if (pathInfo == null || pathInfo.length() < 2) {
+            return null;
+        }
+
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        if (cl == null) {
+            cl = EsiFragmentServlet.class.getClassLoader();
+        }
+
+        try {
+            // Do not initialize the class before it is known to be a tag proxy
+            Class<?> proxyClass = Class.forName(pathInfo.substring(1), false, cl);
+            if (!SimpleTagProxy.class.isAssignableFrom(proxyClass)) {
+                return null;
+            }
+
+            SimpleTagProxy<?> proxy = (SimpleTagProxy<?>) proxyClass.getDeclaredConstructor().newInstance();
+            return proxy.isEsi() ? proxy : null;
+        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException
+                | IllegalAccessException | InvocationTargetException | LinkageError ex) {
+            return null;
+        }
+    }
+
+}
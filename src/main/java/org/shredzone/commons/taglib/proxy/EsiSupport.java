@@ -0,0 +1,202 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.PageContext;
+
+import org.shredzone.commons.taglib.TaglibUtils;
+import org.shredzone.commons.taglib.annotation.Tag;
+
+/**
+ * Controls the Edge Side Includes mode of tags that are marked with {@link Tag#esi()}.
+ * In that mode, the tag is not rendered into the page. Instead, an
+ * {@code <esi:include>} element is written, which refers to the
+ * {@link EsiFragmentServlet}. A caching reverse proxy then fetches the rendered tag from
+ * there, and assembles the page.
+ * <p>
+ * The mode is enabled if the request has a {@code Surrogate-Capability} header that
+ * announces ESI/1.0 support, or if it was enabled via
+ * {@link #setEnabled(ServletRequest, boolean)}.
+ * <p>
+ * When the first {@code <esi:include>} element of a request is written, a
+ * {@code Surrogate-Control: content="ESI/1.0"} header is added to the response, so the
+ * surrogate processes the includes. If the response has already been committed at that
+ * time, e.g. because the page was flushed early, or the tag is rendered by an included
+ * page, the header must be added beforehand via
+ * {@link #addSurrogateControl(HttpServletResponse)}.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+public final class EsiSupport {
+
+    public static final String ENABLED_ATTRIBUTE = EsiSupport.class.getName() + ".enabled";
+    public static final String ENDPOINT_ATTRIBUTE = EsiSupport.class.getName() + ".endpoint";
+    public static final String DEFAULT_ENDPOINT = "/taglib-esi";
+
+    private static final Logger LOG = Logger.getLogger(EsiSupport.class.getName());
+    private static final String SURROGATE_CONTROL_ATTRIBUTE = EsiSupport.class.getName() + ".surrogateControl";
+
+    private EsiSupport() {}
+
+    /**
+     * Enables or disables the ESI mode for a request, regardless of the
+     * {@code Surrogate-Capability} header.
+     *
+     * @param request
+     *            {@link ServletRequest}
+     * @param enabled
+     *            {@code true} to enable the ESI mode, {@code false} to disable it
+     */
+    public static void setEnabled(ServletRequest request, boolean enabled) {
+        request.setAttribute(ENABLED_ATTRIBUTE, enabled);
+    }
+
+    /**
+     * Sets the path of the {@link EsiFragmentServlet}, relative to the context path.
+     * Defaults to {@value #DEFAULT_ENDPOINT}.
+     *
+     * @param request
+     *            {@link ServletRequest}
+     * @param endpoint
+     *            Servlet path of the {@link EsiFragmentServlet}
+     */
+    public static void setEndpoint(ServletRequest request, String endpoint) {
+        request.setAttribute(ENDPOINT_ATTRIBUTE, endpoint);
+    }
+
+    /**
+     * Checks if the ESI mode is enabled for the current request.
+     *
+     * @param jspContext
+     *            {@link JspContext} of the current request
+     * @return {@code true} if ESI mode is enabled
+     */
+    public static boolean isEnabled(JspContext jspContext) {
+        Object enabled = jspContext.getAttribute(ENABLED_ATTRIBUTE, PageContext.REQUEST_SCOPE);
+        if (enabled instanceof Boolean) {
+            return (Boolean) enabled;
+        }
+
+        if (jspContext instanceof PageContext) {
+            ServletRequest request = ((PageContext) jspContext).getRequest();
+            if (request instanceof HttpServletRequest) {
+                String capability = ((HttpServletRequest) request).getHeader("Surrogate-Capability");
+                return capability != null && capability.contains("ESI/1.0");
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds a {@code Surrogate-Control} header to the response, which tells the surrogate
+     * that the response contains ESI/1.0 markup.
+     *
+     * @param response
+     *            {@link HttpServletResponse} to add the header to
+     */
+    public static void addSurrogateControl(HttpServletResponse response) {
+        response.addHeader("Surrogate-Control", "content=\"ESI/1.0\"");
+    }
+
+    /**
+     * Writes an {@code <esi:include>} element that renders the given tag. If it is the
+     * first include of the request, the {@code Surrogate-Control} header is added.
+     *
+     * @param jspContext
+     *            {@link JspContext} of the current request
+     * @param proxyClass
+     *            Proxy class of the tag
+     * @param attributes
+     *            Tag attributes, as strings. The iteration order should be stable, so
+     *            equal tags result in equal URLs that can be cached.
+     */
+    static void writeInclude(JspContext jspContext, Class<?> proxyClass, Map<String, String> attributes)
+    throws IOException {
+        if (jspContext.getAttribute(SURROGATE_CONTROL_ATTRIBUTE, PageContext.REQUEST_SCOPE) == null) {
+            jspContext.setAttribute(SURROGATE_CONTROL_ATTRIBUTE, Boolean.TRUE, PageContext.REQUEST_SCOPE);
+            markResponse(jspContext);
+        }
+
+        Writer out = jspContext.getOut();
+        out.write("<esi:include src=\"");
+        TaglibUtils.writeHtmlAttribute(out, getEndpointUrl(jspContext));
+        out.write('/');
+        out.write(proxyClass.getName());
+        String separator = "?";
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            out.write(separator);
+            TaglibUtils.writeUrlComponent(out, entry.getKey());
+            out.write('=');
+            TaglibUtils.writeUrlComponent(out, entry.getValue());
+            separator = "&amp;";
+        }
+        out.write("\"/>");
+    }
+
+    /**
+     * Adds the {@code Surrogate-Control} header to the response of the page, if the
+     * response has not been committed yet.
+     */
+    private static void markResponse(JspContext jspContext) {
+        if (!(jspContext instanceof PageContext)) {
+            return;
+        }
+
+        ServletResponse response = ((PageContext) jspContext).getResponse();
+        if (response instanceof HttpServletResponse) {
+            if (response.isCommitted()) {
+                LOG.warning("Response is already committed, cannot add the Surrogate-Control header");
+            } else {
+                addSurrogateControl((HttpServletResponse) response);
+            }
+        }
+    }
+
+    /**
+     * Returns the absolute path of the {@link EsiFragmentServlet}.
+     */
+    private static @Nonnull String getEndpointUrl(JspContext jspContext) {
+        Object endpoint = jspContext.getAttribute(ENDPOINT_ATTRIBUTE, PageContext.REQUEST_SCOPE);
+        String path = endpoint instanceof String ? (String) endpoint : DEFAULT_ENDPOINT;
+
+        if (jspContext instanceof PageContext) {
+            ServletRequest request = ((PageContext) jspContext).getRequest();
+            if (request instanceof HttpServletRequest) {
+                return ((HttpServletRequest) request).getContextPath() + path;
+            }
+        }
+        return path;
+    }
+
+}
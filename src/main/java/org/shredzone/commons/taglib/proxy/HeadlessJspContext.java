@@ -0,0 +1,211 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.el.ExpressionEvaluator;
+import javax.servlet.jsp.el.VariableResolver;
+
+/**
+ * A {@link JspContext} for rendering a tag outside of a JSP page, without a servlet
+ * request. It is used by {@link TagRenderer}.
+ * <p>
+ * The page and request scopes are private to the context. The application scope is
+ * given by the {@link TagRenderer}, and is shared between all renderings. There is no
+ * session scope, and no expression language support.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+class HeadlessJspContext extends JspContext {
+
+    private final Map<String, Object> pageScope = new HashMap<>();
+    private final Map<String, Object> requestScope = new HashMap<>();
+    private final Map<String, Object> applicationScope;
+    private final Deque<JspWriter> writers = new ArrayDeque<>();
+
+    /**
+     * Creates a new {@link HeadlessJspContext}.
+     *
+     * @param out
+     *            {@link Writer} the tag output is written to
+     * @param applicationScope
+     *            Attributes of the application scope
+     */
+    HeadlessJspContext(Writer out, Map<String, Object> applicationScope) {
+        this.applicationScope = applicationScope;
+        writers.push(new DetachedJspWriter(out));
+    }
+
+    /**
+     * Gets the attribute map of the given scope.
+     *
+     * @throws IllegalArgumentException
+     *             if the scope is not available
+     */
+    private Map<String, Object> getScope(int scope) {
+        switch (scope) {
+            case PageContext.PAGE_SCOPE:
+                return pageScope;
+
+            case PageContext.REQUEST_SCOPE:
+                return requestScope;
+
+            case PageContext.APPLICATION_SCOPE:
+                return applicationScope;
+
+            case PageContext.SESSION_SCOPE:
+                throw new IllegalArgumentException("There is no session scope");
+
+            default:
+                throw new IllegalArgumentException("Unknown scope " + scope);
+        }
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        setAttribute(name, value, PageContext.PAGE_SCOPE);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, int scope) {
+        if (value != null) {
+            getScope(scope).put(name, value);
+        } else {
+            getScope(scope).remove(name);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return pageScope.get(name);
+    }
+
+    @Override
+    public Object getAttribute(String name, int scope) {
+        if (scope == PageContext.SESSION_SCOPE) {
+            return null;
+        }
+        return getScope(scope).get(name);
+    }
+
+    @Override
+    public Object findAttribute(String name) {
+        Object value = pageScope.get(name);
+        if (value == null) {
+            value = requestScope.get(name);
+        }
+        if (value == null) {
+            value = applicationScope.get(name);
+        }
+        return value;
+    }
+
+    /**
+     * Removes the attribute from the page and request scopes. The application scope is
+     * shared by all renderings of the {@link TagRenderer}, so it is left untouched.
+     */
+    @Override
+    public void removeAttribute(String name) {
+        pageScope.remove(name);
+        requestScope.remove(name);
+    }
+
+    @Override
+    public void removeAttribute(String name, int scope) {
+        if (scope != PageContext.SESSION_SCOPE) {
+            getScope(scope).remove(name);
+        }
+    }
+
+    @Override
+    public int getAttributesScope(String name) {
+        if (pageScope.containsKey(name)) {
+            return PageContext.PAGE_SCOPE;
+        }
+        if (requestScope.containsKey(name)) {
+            return PageContext.REQUEST_SCOPE;
+        }
+        if (applicationScope.containsKey(name)) {
+            return PageContext.APPLICATION_SCOPE;
+        }
+        return 0;
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNamesInScope(int scope) {
+        if (scope == PageContext.SESSION_SCOPE) {
+            return Collections.emptyEnumeration();
+        }
+        return Collections.enumeration(getScope(scope).keySet());
+    }
+
+    @Override
+    public JspWriter getOut() {
+        return writers.peek();
+    }
+
+    @Override
+    public JspWriter pushBody(Writer writer) {
+        JspWriter out = new DetachedJspWriter(writer);
+        writers.push(out);
+        return out;
+    }
+
+    @Override
+    public JspWriter popBody() {
+        if (writers.size() > 1) {
+            writers.pop();
+        }
+        return writers.peek();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * There is no expression language support, so {@code null} is returned.
+     */
+    @Override
+    public ExpressionEvaluator getExpressionEvaluator() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * There is no expression language support, so {@code null} is returned.
+     */
+    @Override
+    public VariableResolver getVariableResolver() {
+        return null;
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Java Flight Recorder events of the proxy runtime. This class must only be used via
+ * {@link TagEvents}.
+ * <p>
+ * The Flight Recorder API is only accessed reflectively, so this class can be compiled
+ * for Java 7 and loaded on any JVM. The event types are created by a
+ * {@code jdk.jfr.EventFactory}. If Flight Recorder is not available,
+ * {@link #isAvailable()} returns {@code false}.
+ * <p>
+ * Event objects are only created if the event type is enabled in a running recording.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+final class JfrTagEvents {
+
+    private static final Logger LOG = Logger.getLogger(JfrTagEvents.class.getName());
+
+    private static final String CATEGORY = "Commons Taglib";
+
+    private static final MethodHandle NEW_EVENT = handle("jdk.jfr.EventFactory", "newEvent", Object.class);
+    private static final MethodHandle IS_ENABLED = handle("jdk.jfr.EventType", "isEnabled", boolean.class);
+    private static final MethodHandle BEGIN = handle("jdk.jfr.Event", "begin", void.class);
+    private static final MethodHandle END = handle("jdk.jfr.Event", "end", void.class);
+    private static final MethodHandle SHOULD_COMMIT = handle("jdk.jfr.Event", "shouldCommit", boolean.class);
+    private static final MethodHandle SET = handle("jdk.jfr.Event", "set", void.class, int.class, Object.class);
+    private static final MethodHandle COMMIT = handle("jdk.jfr.Event", "commit", void.class);
+
+    private static final JfrTagEvents BEAN_CREATION = define(
+            "org.shredzone.commons.taglib.BeanCreation",
+            "Tag Bean Creation",
+            "Creation of a prototype tag bean by the tag proxy",
+            "1 ms",
+            String.class, "beanName", "Bean Name");
+
+    private static final JfrTagEvents TAG_PHASE = define(
+            "org.shredzone.commons.taglib.TagPhase",
+            "Tag Lifecycle Phase",
+            "Invocation of a tag lifecycle method",
+            "10 ms",
+            String.class, "beanName", "Bean Name",
+            String.class, "phase", "Phase");
+
+    private static final JfrTagEvents BEAN_FACTORY_MISS = define(
+            "org.shredzone.commons.taglib.BeanFactoryMiss",
+            "BeanFactory Discovery Miss",
+            "BeanFactory was not cached and had to be searched in the application scope",
+            "0 ms",
+            boolean.class, "found", "Found");
+
+    private final Object factory;
+    private final Object eventType;
+
+    private JfrTagEvents(Object factory, Object eventType) {
+        this.factory = factory;
+        this.eventType = eventType;
+    }
+
+    /**
+     * Checks if Flight Recorder is available, and all event types could be created.
+     */
+    static boolean isAvailable() {
+        return BEAN_CREATION != null && TAG_PHASE != null && BEAN_FACTORY_MISS != null;
+    }
+
+    static @Nullable Object beginBeanCreation() {
+        return BEAN_CREATION.begin();
+    }
+
+    static void endBeanCreation(Object event, String beanName) {
+        if (end(event)) {
+            set(event, 0, beanName);
+            commit(event);
+        }
+    }
+
+    static @Nullable Object beginPhase() {
+        return TAG_PHASE.begin();
+    }
+
+    static void endPhase(Object event, String beanName, String phase) {
+        if (end(event)) {
+            set(event, 0, beanName);
+            set(event, 1, phase);
+            commit(event);
+        }
+    }
+
+    static @Nullable Object beginBeanFactoryMiss() {
+        return BEAN_FACTORY_MISS.begin();
+    }
+
+    static void endBeanFactoryMiss(Object event, boolean found) {
+        if (end(event)) {
+            set(event, 0, found);
+            commit(event);
+        }
+    }
+
+    /**
+     * Creates and begins a new event of this type.
+     *
+     * @return Event, or {@code null} if the event type is disabled
+     */
+    private @CheckForNull Object begin() {
+        try {
+            Object type = eventType;
+            if (!(boolean) IS_ENABLED.invokeExact(type)) {
+                return null;
+            }
+            Object event = (Object) NEW_EVENT.invokeExact(factory);
+            BEGIN.invokeExact(event);
+            return event;
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Ends an event.
+     *
+     * @return {@code true} if the event should be committed
+     */
+    private static boolean end(Object event) {
+        try {
+            END.invokeExact(event);
+            return (boolean) SHOULD_COMMIT.invokeExact(event);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Sets a field value of an event.
+     */
+    private static void set(Object event, int index, Object value) {
+        try {
+            SET.invokeExact(event, index, value);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Commits an event.
+     */
+    private static void commit(Object event) {
+        try {
+            COMMIT.invokeExact(event);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Rethrows unchecked exceptions, and wraps checked exceptions. The Flight Recorder
+     * methods do not throw checked exceptions, though.
+     */
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        throw new IllegalStateException(ex);
+    }
+
+    /**
+     * Finds a public instance method of a Flight Recorder class. The receiver type and
+     * a reference return type of the resulting {@link MethodHandle} are erased to
+     * {@link Object}.
+     *
+     * @return {@link MethodHandle}, or {@code null} if Flight Recorder is not available
+     */
+    private static @CheckForNull MethodHandle handle(String className, String methodName,
+                Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> type = Class.forName(className, false, JfrTagEvents.class.getClassLoader());
+            Method method = type.getMethod(methodName, parameterTypes);
+            return MethodHandles.publicLookup().unreflect(method).asType(
+                    MethodType.methodType(returnType, parameterTypes).insertParameterTypes(0, Object.class));
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            LOG.log(Level.FINE, "Flight Recorder is not available", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new event type.
+     *
+     * @param name
+     *            Event name
+     * @param label
+     *            Human readable event label
+     * @param description
+     *            Event description
+     * @param threshold
+     *            Default threshold
+     * @param fields
+     *            Triplets of field type, field name, and field label
+     * @return {@link JfrTagEvents} of the created event type, or {@code null} if
+     *         Flight Recorder is not available
+     */
+    private static @CheckForNull JfrTagEvents define(String name, String label,
+                String description, String threshold, Object... fields) {
+        if (NEW_EVENT == null || IS_ENABLED == null || BEGIN == null || END == null
+                || SHOULD_COMMIT == null || SET == null || COMMIT == null) {
+            return null;
+        }
+
+        try {
+            ClassLoader cl = JfrTagEvents.class.getClassLoader();
+            Class<?> elementClass = Class.forName("jdk.jfr.AnnotationElement", false, cl);
+            Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor", false, cl);
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory", false, cl);
+            Class<?> nameClass = Class.forName("jdk.jfr.Name", false, cl);
+            Class<?> labelClass = Class.forName("jdk.jfr.Label", false, cl);
+            Class<?> descriptionClass = Class.forName("jdk.jfr.Description", false, cl);
+            Class<?> categoryClass = Class.forName("jdk.jfr.Category", false, cl);
+            Class<?> thresholdClass = Class.forName("jdk.jfr.Threshold", false, cl);
+
+            Constructor<?> element = elementClass.getConstructor(Class.class, Object.class);
+            Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> annotations = Arrays.asList(
+                    element.newInstance(nameClass, name),
+                    element.newInstance(labelClass, label),
+                    element.newInstance(descriptionClass, description),
+                    element.newInstance(categoryClass, new String[] {CATEGORY}),
+                    element.newInstance(thresholdClass, threshold));
+
+            List<Object> descriptors = new ArrayList<>();
+            for (int ix = 0; ix + 2 < fields.length; ix += 3) {
+                Object fieldLabel = element.newInstance(labelClass, fields[ix + 2]);
+                descriptors.add(descriptor.newInstance(fields[ix], fields[ix + 1],
+                        Collections.singletonList(fieldLabel)));
+            }
+
+            Object factory = factoryClass.getMethod("create", List.class, List.class)
+                    .invoke(null, annotations, descriptors);
+            Object eventType = factoryClass.getMethod("getEventType").invoke(factory);
+            return new JfrTagEvents(factory, eventType);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+            LOG.log(Level.WARNING, "Could not create Flight Recorder event " + name, ex);
+            return null;
+        }
+    }
+
+}
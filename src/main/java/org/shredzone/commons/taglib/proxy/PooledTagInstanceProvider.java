@@ -0,0 +1,140 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.jsp.tagext.BodyTag;
+import javax.servlet.jsp.tagext.SimpleTag;
+import javax.servlet.jsp.tagext.Tag;
+
+/**
+ * A {@link TagInstanceProvider} that keeps released target beans in a pool, and reuses
+ * them instead of creating new ones. Beans are created by a delegate provider, which is
+ * the {@link SpringTagInstanceProvider} by default.
+ * <p>
+ * The pool is shared by all occurrences of the tag, on all pages. For this reason, only
+ * beans implementing {@link ReusableTag} are pooled. Before a bean is returned to the
+ * pool, its references to the page, the parent tag and the body are cleared, and then
+ * {@link ReusableTag#reset()} is invoked. Other beans are passed back to the delegate.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class PooledTagInstanceProvider implements TagInstanceProvider {
+
+    public static final int DEFAULT_MAX_IDLE = 16;
+
+    private final Queue<Object> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final TagInstanceProvider delegate;
+    private final int maxIdle;
+
+    /**
+     * Creates a pool of up to {@value #DEFAULT_MAX_IDLE} idle beans, which are created by
+     * a {@link SpringTagInstanceProvider}.
+     */
+    public PooledTagInstanceProvider() {
+        this(new SpringTagInstanceProvider(), DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param delegate
+     *            {@link TagInstanceProvider} that creates new beans
+     * @param maxIdle
+     *            Maximum number of idle beans to be kept. Released beans exceeding this
+     *            number are passed back to the delegate.
+     */
+    public PooledTagInstanceProvider(TagInstanceProvider delegate, int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must not be negative");
+        }
+        this.delegate = delegate;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns the number of idle beans in the pool.
+     */
+    public int getIdleCount() {
+        return idle.get();
+    }
+
+    @Override
+    public Object createInstance(TagInstanceContext context) {
+        Object instance = pool.poll();
+        if (instance != null) {
+            idle.decrementAndGet();
+            return instance;
+        }
+        return delegate.createInstance(context);
+    }
+
+    @Override
+    public void releaseInstance(Object instance) {
+        if (!(instance instanceof ReusableTag)) {
+            delegate.releaseInstance(instance);
+            return;
+        }
+
+        if (idle.incrementAndGet() <= maxIdle) {
+            reset(instance);
+            pool.offer(instance);
+        } else {
+            idle.decrementAndGet();
+            delegate.releaseInstance(instance);
+        }
+    }
+
+    /**
+     * Resets a bean before it is returned to the pool. The default implementation clears
+     * all references to the page, the parent tag and the body, and then invokes
+     * {@link ReusableTag#reset()}.
+     *
+     * @param instance
+     *            Bean to be reset
+     */
+    protected void reset(@Nonnull Object instance) {
+        if (instance instanceof BodyTag) {
+            ((BodyTag) instance).setBodyContent(null);
+        }
+        if (instance instanceof Tag) {
+            Tag tag = (Tag) instance;
+            tag.setPageContext(null);
+            tag.setParent(null);
+        }
+        if (instance instanceof SimpleTag) {
+            SimpleTag tag = (SimpleTag) instance;
+            tag.setJspContext(null);
+            tag.setParent(null);
+            tag.setJspBody(null);
+        }
+        ((ReusableTag) instance).reset();
+    }
+
+}
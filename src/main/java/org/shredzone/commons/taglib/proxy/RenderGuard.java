@@ -0,0 +1,269 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletRequest;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.PageContext;
+
+import org.shredzone.commons.taglib.annotation.Tag;
+
+/**
+ * Limits the number of concurrent renderings of a tag, and keeps statistics about tags
+ * that were skipped because of a concurrency limit or an exceeded render deadline.
+ * There is one {@link RenderGuard} per tag bean name.
+ * <p>
+ * The concurrency limit is set by {@link Tag#maxConcurrency()}, and can be changed at
+ * runtime via {@link #setMaxConcurrency(int)}, also for tags that have no limit at their
+ * annotation. The render deadline of a request is set via
+ * {@link #setDeadline(ServletRequest, long, TimeUnit)}, usually by a servlet filter.
+ * <p>
+ * The guards can be registered at the platform MBean server by
+ * {@link #registerMBeans()}, so the statistics can be monitored and the limits can be
+ * changed via JMX.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class RenderGuard implements RenderGuardMXBean {
+
+    public static final String DEADLINE_ATTRIBUTE = RenderGuard.class.getName() + ".deadline";
+
+    private static final Logger LOG = Logger.getLogger(RenderGuard.class.getName());
+    private static final ConcurrentMap<String, RenderGuard> GUARDS = new ConcurrentHashMap<>();
+
+    private static volatile boolean jmxRegistered;
+
+    private final String beanName;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong deadlineSkipped = new AtomicLong();
+    private volatile int maxConcurrency = -1;
+
+    private RenderGuard(String beanName) {
+        this.beanName = beanName;
+    }
+
+    /**
+     * Gets the {@link RenderGuard} of the given tag bean. It is created if it does not
+     * exist yet.
+     *
+     * @param beanName
+     *            Name of the tag bean
+     * @return {@link RenderGuard} of that bean
+     */
+    public static @Nonnull RenderGuard forBean(String beanName) {
+        RenderGuard guard = GUARDS.get(beanName);
+        if (guard == null) {
+            RenderGuard newGuard = new RenderGuard(beanName);
+            guard = GUARDS.putIfAbsent(beanName, newGuard);
+            if (guard == null) {
+                guard = newGuard;
+                if (jmxRegistered) {
+                    registerMBean(guard);
+                }
+            }
+        }
+        return guard;
+    }
+
+    /**
+     * Returns all {@link RenderGuard} that have been used so far, mapped by their bean
+     * names.
+     *
+     * @return Unmodifiable map of {@link RenderGuard}
+     */
+    public static @Nonnull Map<String, RenderGuard> getGuards() {
+        return Collections.unmodifiableMap(GUARDS);
+    }
+
+    /**
+     * Registers all {@link RenderGuard} at the platform MBean server, in the
+     * {@value AllocationStats#JMX_DOMAIN} domain. Guards of tags that are rendered for
+     * the first time are registered as well, until {@link #unregisterMBeans()} is
+     * invoked.
+     */
+    public static void registerMBeans() {
+        jmxRegistered = true;
+        for (RenderGuard guard : GUARDS.values()) {
+            registerMBean(guard);
+        }
+    }
+
+    /**
+     * Unregisters all {@link RenderGuard} from the platform MBean server. This should be
+     * done when the web application is stopped.
+     */
+    public static void unregisterMBeans() {
+        jmxRegistered = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (RenderGuard guard : GUARDS.values()) {
+            try {
+                server.unregisterMBean(guard.getObjectName());
+            } catch (InstanceNotFoundException ex) {
+                // was not registered, ignore
+            } catch (JMException ex) {
+                LOG.log(Level.WARNING, "Could not unregister render guard of " + guard.beanName, ex);
+            }
+        }
+    }
+
+    /**
+     * Sets the render deadline of a request. Tags that are marked with
+     * {@link Tag#skipOnDeadline()} and are started after the deadline, will render their
+     * fallback content instead.
+     *
+     * @param request
+     *            {@link ServletRequest} to set the deadline for
+     * @param budget
+     *            Render budget, starting from now
+     * @param unit
+     *            {@link TimeUnit} of the budget
+     */
+    public static void setDeadline(ServletRequest request, long budget, TimeUnit unit) {
+        request.setAttribute(DEADLINE_ATTRIBUTE, System.nanoTime() + unit.toNanos(budget));
+    }
+
+    /**
+     * Checks if the render deadline of the current request has been exceeded.
+     *
+     * @param jspContext
+     *            {@link JspContext} of the current request
+     * @return {@code true} if the deadline has been exceeded, {@code false} if it has
+     *         not been exceeded yet, or if no deadline was set
+     */
+    public static boolean isDeadlineExceeded(JspContext jspContext) {
+        Object deadline = jspContext.getAttribute(DEADLINE_ATTRIBUTE, PageContext.REQUEST_SCOPE);
+        return deadline instanceof Long && System.nanoTime() - (Long) deadline > 0;
+    }
+
+    @Override
+    public @Nonnull String getBeanName()    { return beanName; }
+
+    @Override
+    public int getActive()                  { return active.get(); }
+
+    @Override
+    public long getRejected()               { return rejected.get(); }
+
+    @Override
+    public long getDeadlineSkipped()        { return deadlineSkipped.get(); }
+
+    /**
+     * Maximum number of concurrent renderings of the tag. 0 means unlimited, a negative
+     * value means that the limit given at {@link Tag#maxConcurrency()} is used.
+     */
+    @Override
+    public int getMaxConcurrency()          { return maxConcurrency; }
+
+    @Override
+    public void setMaxConcurrency(int maxConcurrency) { this.maxConcurrency = maxConcurrency; }
+
+    /**
+     * Returns the concurrency limit that is currently in effect.
+     *
+     * @param defaultLimit
+     *            Concurrency limit given at {@link Tag#maxConcurrency()}
+     * @return Limit set at runtime, or the default limit if none was set. 0 means
+     *         unlimited.
+     */
+    public int getEffectiveMaxConcurrency(int defaultLimit) {
+        int limit = maxConcurrency;
+        return limit >= 0 ? limit : Math.max(defaultLimit, 0);
+    }
+
+    /**
+     * Tries to acquire a permit for rendering the tag. Each successfully acquired permit
+     * must be released by {@link #release()}.
+     *
+     * @param defaultLimit
+     *            Concurrency limit to be used if no limit was set at runtime
+     * @return {@code true} if the tag may be rendered, {@code false} if the concurrency
+     *         limit has been reached
+     */
+    public boolean tryAcquire(int defaultLimit) {
+        int limit = getEffectiveMaxConcurrency(defaultLimit);
+        while (true) {
+            int current = active.get();
+            if (limit > 0 && current >= limit) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (active.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a permit that was acquired by {@link #tryAcquire(int)}.
+     */
+    public void release() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Counts a rendering that was skipped because the render deadline was exceeded.
+     */
+    void countDeadlineSkipped() {
+        deadlineSkipped.incrementAndGet();
+    }
+
+    /**
+     * Returns the JMX {@link ObjectName} of this {@link RenderGuard}.
+     */
+    private ObjectName getObjectName() throws JMException {
+        return new ObjectName(AllocationStats.JMX_DOMAIN + ":type=RenderGuard,name=" + ObjectName.quote(beanName));
+    }
+
+    /**
+     * Registers a {@link RenderGuard} at the platform MBean server.
+     */
+    private static void registerMBean(RenderGuard guard) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(guard, guard.getObjectName());
+        } catch (InstanceAlreadyExistsException ex) {
+            // already registered, ignore
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Could not register render guard of " + guard.beanName, ex);
+        }
+    }
+
+}
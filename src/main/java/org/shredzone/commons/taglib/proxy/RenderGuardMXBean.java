@@ -0,0 +1,61 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+/**
+ * JMX interface of {@link RenderGuard}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public interface RenderGuardMXBean {
+
+    /**
+     * Name of the tag bean.
+     */
+    String getBeanName();
+
+    /**
+     * Number of currently active renderings of the tag. Only renderings of tags with a
+     * concurrency limit are counted.
+     */
+    int getActive();
+
+    /**
+     * Number of renderings that were rejected because of the concurrency limit.
+     */
+    long getRejected();
+
+    /**
+     * Number of renderings that were skipped because the render deadline was exceeded.
+     */
+    long getDeadlineSkipped();
+
+    /**
+     * Maximum number of concurrent renderings of the tag. 0 means unlimited, a negative
+     * value means that the limit given at the tag annotation is used.
+     */
+    int getMaxConcurrency();
+
+    /**
+     * Changes the maximum number of concurrent renderings of the tag at runtime.
+     */
+    void setMaxConcurrency(int maxConcurrency);
+
+}
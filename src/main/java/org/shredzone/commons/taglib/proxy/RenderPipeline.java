@@ -0,0 +1,349 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.ServletRequest;
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.PageContext;
+
+import org.shredzone.commons.taglib.AssetCollector;
+import org.shredzone.commons.taglib.TaglibUtils;
+import org.shredzone.commons.taglib.annotation.Tag;
+
+/**
+ * Renders tags that are marked with {@link Tag#async()} out of order. Such a tag only
+ * writes a placeholder into the page, while the tag itself is rendered concurrently.
+ * When the page is finished, the rendered tags are streamed at the end of the response,
+ * each one as soon as it is completed, along with a small script that replaces the
+ * placeholder.
+ * <p>
+ * A pipeline is started per request, usually by a servlet filter:
+ *
+ * <pre>
+ * RenderPipeline pipeline = RenderPipeline.start(request, executor);
+ * try {
+ *     chain.doFilter(request, response);
+ *     pipeline.finish(response.getWriter());
+ * } finally {
+ *     pipeline.cancel();
+ * }
+ * </pre>
+ *
+ * If no pipeline was started for a request, asynchronous tags are rendered in place.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+public class RenderPipeline {
+
+    public static final String PIPELINE_ATTRIBUTE = RenderPipeline.class.getName() + ".pipeline";
+
+    private static final Logger LOG = Logger.getLogger(RenderPipeline.class.getName());
+    private static final AtomicInteger PIPELINE_COUNTER = new AtomicInteger();
+    private static final String SWAP_FUNCTION = "taglibPipelineSwap";
+
+    private final ServletRequest request;
+    private final Executor executor;
+    private final String idPrefix;
+    private final BlockingQueue<Rendering> completed = new LinkedBlockingQueue<>();
+    private final Lock lock = new ReentrantLock();
+    private final List<Rendering> pending = new ArrayList<>();
+    private int renderingCounter;
+    private boolean cancelled;
+    private boolean scriptWritten;
+
+    private RenderPipeline(ServletRequest request, Executor executor) {
+        this.request = request;
+        this.executor = executor;
+        this.idPrefix = "taglib-pipeline-" + Integer.toString(PIPELINE_COUNTER.incrementAndGet(), 36) + "-";
+    }
+
+    /**
+     * Starts a pipeline for the given request. The {@link AssetCollector} is prepared
+     * as well, so asynchronous tags share the required assets with the page.
+     *
+     * @param request
+     *            {@link ServletRequest} to start the pipeline for
+     * @param executor
+     *            {@link Executor} that renders the asynchronous tags
+     * @return {@link RenderPipeline} that was started
+     */
+    public static @Nonnull RenderPipeline start(ServletRequest request, Executor executor) {
+        RenderPipeline pipeline = new RenderPipeline(request, executor);
+        request.setAttribute(PIPELINE_ATTRIBUTE, pipeline);
+        AssetCollector.prepare(request);
+        return pipeline;
+    }
+
+    /**
+     * Gets the pipeline of the current request.
+     *
+     * @param jspContext
+     *            {@link JspContext} of the current request
+     * @return {@link RenderPipeline}, or {@code null} if no pipeline was started
+     */
+    public static @CheckForNull RenderPipeline forContext(JspContext jspContext) {
+        Object pipeline = jspContext.getAttribute(PIPELINE_ATTRIBUTE, PageContext.REQUEST_SCOPE);
+        return pipeline instanceof RenderPipeline ? (RenderPipeline) pipeline : null;
+    }
+
+    /**
+     * Submits a tag rendering. A placeholder is written to the output, which is later
+     * replaced by the rendered tag.
+     *
+     * @param out
+     *            {@link Writer} to write the placeholder to
+     * @param element
+     *            Name of the HTML element that wraps the placeholder
+     * @param placeholder
+     *            Content of the placeholder
+     * @param renderer
+     *            Renders the tag, and returns the rendered content. It is invoked by the
+     *            {@link Executor} of the pipeline.
+     * @param release
+     *            Releases the resources of the rendering. It is invoked exactly once,
+     *            after the renderer has completed, or when the rendering is cancelled
+     *            before the renderer was started.
+     * @throws RejectedExecutionException
+     *             if the {@link Executor} did not accept the rendering, or the pipeline
+     *             was already cancelled. Nothing has been written to the output then,
+     *             and {@code release} is not invoked.
+     * @throws IOException
+     *             when the placeholder could not be written
+     */
+    public void submit(Writer out, String element, String placeholder, Callable<String> renderer,
+                Runnable release) throws IOException {
+        Rendering rendering;
+        lock.lock();
+        try {
+            if (cancelled) {
+                throw new RejectedExecutionException("Pipeline was cancelled");
+            }
+            rendering = new Rendering(idPrefix + renderingCounter++, renderer, release);
+            pending.add(rendering);
+        } finally {
+            lock.unlock();
+        }
+
+        // The executor may block or run the rendering itself, so the lock must not be held
+        try {
+            executor.execute(rendering);
+        } catch (RejectedExecutionException ex) {
+            remove(rendering);
+            throw ex;
+        }
+
+        out.write('<');
+        out.write(element);
+        out.write(" id=\"");
+        out.write(rendering.id);
+        out.write("\">");
+        out.write(placeholder);
+        out.write("</");
+        out.write(element);
+        out.write('>');
+    }
+
+    /**
+     * Finishes the pipeline. The output is flushed first, so the client receives the
+     * page. After that, all rendered tags are written and flushed as soon as they are
+     * completed. This method must only be invoked once, by the thread that handles the
+     * request.
+     * <p>
+     * If a render deadline was set via
+     * {@link RenderGuard#setDeadline(ServletRequest, long, TimeUnit)}, tags that are not
+     * completed by the deadline are cancelled, and their placeholders are kept.
+     *
+     * @param out
+     *            {@link Writer} to write the rendered tags to, usually the response
+     *            writer
+     * @throws IOException
+     *             when the output could not be written
+     */
+    public void finish(Writer out) throws IOException {
+        out.flush();
+
+        Object deadline = request.getAttribute(RenderGuard.DEADLINE_ATTRIBUTE);
+        try {
+            while (hasPending()) {
+                Rendering rendering;
+                if (deadline instanceof Long) {
+                    long remaining = (Long) deadline - System.nanoTime();
+                    rendering = completed.poll(Math.max(remaining, 0L), TimeUnit.NANOSECONDS);
+                } else {
+                    rendering = completed.take();
+                }
+
+                if (rendering == null) {
+                    break;
+                }
+
+                if (remove(rendering)) {
+                    writeRendering(out, rendering);
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cancel();
+        }
+    }
+
+    /**
+     * Cancels all tag renderings that are not completed yet. Their placeholders are kept.
+     * Further renderings are rejected, so the tags are rendered in place. This method
+     * should always be invoked at the end of a request, so no renderings are running
+     * after the request was completed.
+     */
+    public void cancel() {
+        List<Rendering> cancelling;
+        lock.lock();
+        try {
+            cancelled = true;
+            cancelling = new ArrayList<>(pending);
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Rendering rendering : cancelling) {
+            rendering.cancel(true);
+        }
+        completed.clear();
+    }
+
+    /**
+     * Checks if there are renderings that have not been written yet.
+     */
+    private boolean hasPending() {
+        lock.lock();
+        try {
+            return !pending.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a rendering from the pending renderings.
+     *
+     * @return {@code true} if the rendering was pending, {@code false} if it was already
+     *         removed by {@link #cancel()}
+     */
+    private boolean remove(Rendering rendering) {
+        lock.lock();
+        try {
+            return pending.remove(rendering);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a rendered tag, and the swap script if it was not written yet.
+     */
+    private void writeRendering(Writer out, Rendering rendering) throws IOException {
+        String content;
+        try {
+            content = rendering.get();
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Asynchronous tag rendering failed", ex);
+            return;
+        }
+
+        if (!scriptWritten) {
+            out.write("<script>function " + SWAP_FUNCTION + "(i,h){var e=document.getElementById(i);if(e){e.outerHTML=h;}}</script>");
+            scriptWritten = true;
+        }
+
+        out.write("<script>" + SWAP_FUNCTION + "(\"");
+        out.write(rendering.id);
+        out.write("\",\"");
+        TaglibUtils.writeJavaScript(out, content);
+        out.write("\");</script>");
+    }
+
+    /**
+     * A tag rendering that is queued as completed when it is done. Its resources are
+     * released by the thread that starts the renderer, or by {@link #done()} if the
+     * rendering was cancelled before the renderer was started.
+     */
+    private class Rendering extends FutureTask<String> {
+        private final String id;
+        private final Runnable release;
+        private final AtomicBoolean started;
+
+        Rendering(String id, Callable<String> renderer, Runnable release) {
+            this(id, renderer, release, new AtomicBoolean());
+        }
+
+        private Rendering(String id, final Callable<String> renderer, final Runnable release,
+                    final AtomicBoolean started) {
+            super(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (!started.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    try {
+                        return renderer.call();
+                    } finally {
+                        release.run();
+                    }
+                }
+            });
+            this.id = id;
+            this.release = release;
+            this.started = started;
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) {
+                completed.add(this);
+            } else if (started.compareAndSet(false, true)) {
+                release.run();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+/**
+ * This interface marks a tag implementation that can be reused by the
+ * {@link PooledTagInstanceProvider}. Tags that do not implement this interface are not
+ * pooled.
+ *
+ * @author Richard "Shred" Körber
+ */
+public interface ReusableTag {
+
+    /**
+     * Resets the tag to its initial state, before it is returned to the pool. All
+     * attributes and all state of the previous use must be cleared, so nothing of it
+     * leaks into the next use of the tag, which may be a different occurrence on a
+     * different page. References to the page and the parent tag are already cleared when
+     * this method is invoked.
+     */
+    void reset();
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+
+import javax.servlet.jsp.JspContext;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.SkipPageException;
+import javax.servlet.jsp.tagext.IterationTag;
+import javax.servlet.jsp.tagext.JspFragment;
+import javax.servlet.jsp.tagext.JspTag;
+import javax.servlet.jsp.tagext.SimpleTag;
+import javax.servlet.jsp.tagext.Tag;
+import javax.servlet.jsp.tagext.TagAdapter;
+import javax.servlet.jsp.tagext.TryCatchFinally;
+
+/**
+ * A proxy that implements {@link SimpleTag}, but delegates to a classic {@link Tag} or
+ * {@link IterationTag} implementation. The classic tag lifecycle is emulated in
+ * {@link #doTag()}.
+ * <p>
+ * Web containers do not pool {@link SimpleTag} instances, so this proxy avoids the
+ * synchronization of the container's tag handler pools.
+ *
+ * @param <T>
+ *            Type of the {@link Tag} this proxy delegates to
+ * @author Richard "Shred" Körber
+ */
+public abstract class SimpleTagAdapterProxy<T extends Tag> extends AbstractTagProxy<T> implements SimpleTag {
+
+    private JspContext jspContext;
+    private JspTag parent;
+    private JspFragment jspBody;
+
+    @Override
+    public void doTag() throws JspException, IOException {
+        try {
+            if (isFallback() || !acquireRenderPermit()) {
+                writeFallback(jspContext);
+                return;
+            }
+
+            try {
+                T target = getTargetBean();
+                int result;
+                if (target instanceof TryCatchFinally) {
+                    result = doTryCatchFinally(target, (TryCatchFinally) target);
+                } else {
+                    result = doLifecycle(target);
+                }
+                flushOutput(jspContext);
+                if (result == Tag.SKIP_PAGE) {
+                    throw new SkipPageException();
+                }
+            } finally {
+                releaseRenderPermit();
+            }
+        } finally {
+            T target = hasTargetBean() ? getTargetBean() : null;
+            jspContext = null;
+            parent = null;
+            jspBody = null;
+            try {
+                if (target != null) {
+                    target.release();
+                }
+            } finally {
+                releaseTargetBean();
+            }
+        }
+    }
+
+    @Override
+    public JspTag getParent() {
+        return parent;
+    }
+
+    @Override
+    public void setJspBody(JspFragment jspBody) {
+        this.jspBody = compactBody(jspBody);
+    }
+
+    @Override
+    public void setJspContext(JspContext pc) {
+        this.jspContext = pc;
+        if (checkRenderDeadline(pc)) {
+            initTargetBean(pc);
+            getTargetBean().setPageContext((PageContext) pc);
+        }
+    }
+
+    @Override
+    public void setParent(JspTag parent) {
+        this.parent = parent;
+        if (isFallback()) {
+            return;
+        }
+
+        if (parent instanceof Tag) {
+            getTargetBean().setParent((Tag) parent);
+        } else if (parent instanceof SimpleTag) {
+            getTargetBean().setParent(new TagAdapter((SimpleTag) parent));
+        }
+    }
+
+    /**
+     * Runs the classic tag lifecycle, and handles {@link TryCatchFinally} like the web
+     * container would.
+     *
+     * @param target
+     *            Target bean
+     * @param tcf
+     *            Target bean as {@link TryCatchFinally}
+     * @return Result of {@link Tag#doEndTag()}, or {@link Tag#EVAL_PAGE} if an exception
+     *         was handled by {@link TryCatchFinally#doCatch(Throwable)}
+     */
+    private int doTryCatchFinally(T target, TryCatchFinally tcf) throws JspException, IOException {
+        try {
+            return doLifecycle(target);
+        } catch (Throwable t) {
+            try {
+                tcf.doCatch(t);
+                return Tag.EVAL_PAGE;
+            } catch (JspException | IOException | RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new JspException(ex);
+            }
+        } finally {
+            tcf.doFinally();
+        }
+    }
+
+    /**
+     * Runs the classic tag lifecycle: {@link Tag#doStartTag()}, evaluation of the body
+     * and {@link IterationTag#doAfterBody()}, and finally {@link Tag#doEndTag()}.
+     *
+     * @param target
+     *            Target bean
+     * @return Result of {@link Tag#doEndTag()}
+     */
+    private int doLifecycle(T target) throws JspException, IOException {
+        Object event = TagEvents.beginPhase();
+        int result = target.doStartTag();
+        TagEvents.endPhase(event, getBeanName(), "doStartTag");
+
+        if (result == Tag.EVAL_BODY_INCLUDE) {
+            do {
+                if (jspBody != null) {
+                    jspBody.invoke(null);
+                }
+            } while (target instanceof IterationTag
+                    && ((IterationTag) target).doAfterBody() == IterationTag.EVAL_BODY_AGAIN);
+        } else if (result != Tag.SKIP_BODY) {
+            throw new JspException("Tag " + getBeanName() + ": unsupported doStartTag() result " + result);
+        }
+
+        event = TagEvents.beginPhase();
+        result = target.doEndTag();
+        TagEvents.endPhase(event, getBeanName(), "doEndTag");
+
+        return result;
+    }
+
+}
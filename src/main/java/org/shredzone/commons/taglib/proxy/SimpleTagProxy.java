@@ -20,6 +20,12 @@
 package org.shredzone.commons.taglib.proxy;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.JspException;
@@ -37,29 +43,240 @@ import javax.servlet.jsp.tagext.SimpleTag;
  */
 public abstract class SimpleTagProxy<T extends SimpleTag> extends AbstractTagProxy<T> implements SimpleTag {
 
+    private static final Logger LOG = Logger.getLogger(SimpleTagProxy.class.getName());
+
+    private JspContext jspContext;
+    private JspTag parent;
+    private Map<String, String> esiAttributes;
+
+    /**
+     * Returns {@code true} if the tag is to be rendered asynchronously, if a
+     * {@link RenderPipeline} was started for the request. The default implementation
+     * returns {@code false}.
+     */
+    protected boolean isAsync() {
+        return false;
+    }
+
+    /**
+     * Returns the content to be rendered while an asynchronous tag is rendering. The
+     * default implementation returns an empty string.
+     */
+    protected String getPlaceholder() {
+        return "";
+    }
+
+    /**
+     * Returns the name of the HTML element that wraps the placeholder of an asynchronous
+     * tag. The default implementation returns {@code "div"}.
+     */
+    protected String getPlaceholderElement() {
+        return "div";
+    }
+
+    /**
+     * Returns {@code true} if the tag is to be rendered as Edge Side Include, if the
+     * ESI mode is enabled for the request. The default implementation returns
+     * {@code false}.
+     */
+    protected boolean isEsi() {
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if an Edge Side Include is written instead of rendering the
+     * tag. There is no target bean then, and the tag attributes are to be passed to
+     * {@link #addEsiAttribute(String, Object)}.
+     */
+    protected boolean isEsiInclude() {
+        return esiAttributes != null;
+    }
+
+    /**
+     * Adds a tag attribute to the Edge Side Include.
+     *
+     * @param name
+     *            Attribute name
+     * @param value
+     *            Attribute value. {@code null} values are not added.
+     */
+    protected void addEsiAttribute(String name, Object value) {
+        if (value != null) {
+            esiAttributes.put(name, String.valueOf(value));
+        }
+    }
+
+    /**
+     * Sets a tag attribute that was passed to the {@link EsiFragmentServlet}. Generated
+     * proxies convert the value and invoke the setter of the attribute. The default
+     * implementation rejects all attributes.
+     *
+     * @param name
+     *            Attribute name
+     * @param value
+     *            Attribute value
+     * @throws IllegalArgumentException
+     *             if there is no such attribute, or the value could not be converted
+     */
+    protected void setEsiAttribute(String name, String value) {
+        throw new IllegalArgumentException("Unknown attribute: " + name);
+    }
+
+    /**
+     * Sets a tag attribute by its name. Generated proxies invoke the setter of the
+     * attribute. It is used by the {@link TagRenderer}. The default implementation
+     * rejects all attributes.
+     *
+     * @param name
+     *            Attribute name
+     * @param value
+     *            Attribute value
+     * @throws IllegalArgumentException
+     *             if there is no such attribute
+     * @throws ClassCastException
+     *             if the value does not match the attribute type
+     */
+    protected void setTagAttribute(String name, Object value) {
+        throw new IllegalArgumentException("Unknown attribute: " + name);
+    }
+
     @Override
     public void doTag() throws JspException, IOException {
+        if (esiAttributes != null) {
+            try {
+                EsiSupport.writeInclude(jspContext, getClass(), esiAttributes);
+            } finally {
+                esiAttributes = null;
+                releaseResources();
+            }
+            return;
+        }
+
+        boolean async = false;
+        try {
+            if (isFallback() || !acquireRenderPermit()) {
+                writeFallback(jspContext);
+                return;
+            }
+
+            RenderPipeline pipeline = isAsync() ? RenderPipeline.forContext(jspContext) : null;
+            if (pipeline != null) {
+                async = submitTo(pipeline);
+                if (async) {
+                    return;
+                }
+            }
+
+            try {
+                render(jspContext);
+            } finally {
+                releaseRenderPermit();
+            }
+        } finally {
+            if (!async) {
+                releaseResources();
+            }
+        }
+    }
+
+    /**
+     * Renders the target bean.
+     *
+     * @param context
+     *            {@link JspContext} the target bean renders to
+     */
+    private void render(JspContext context) throws JspException, IOException {
+        Object event = TagEvents.beginPhase();
         getTargetBean().doTag();
+        TagEvents.endPhase(event, getBeanName(), "doTag");
+        flushOutput(context);
+    }
+
+    /**
+     * Submits the rendering of the target bean to the {@link RenderPipeline}. The target
+     * bean renders into a {@link DetachedJspContext} then. The render permit and the
+     * target bean are released when the rendering is completed, or when it is cancelled
+     * before it was started.
+     *
+     * @param pipeline
+     *            {@link RenderPipeline} of the request
+     * @return {@code true} if the rendering was submitted, {@code false} if the
+     *         pipeline rejected it, and the tag must be rendered in place
+     */
+    private boolean submitTo(RenderPipeline pipeline) throws IOException {
+        final DetachedJspContext detached = new DetachedJspContext(jspContext);
+        getTargetBean().setJspContext(detached);
+        try {
+            pipeline.submit(jspContext.getOut(), getPlaceholderElement(), getPlaceholder(), new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        render(detached);
+                        return detached.getContent();
+                    } catch (JspException | IOException | RuntimeException ex) {
+                        LOG.log(Level.WARNING, "Asynchronous rendering of " + getBeanName() + " failed", ex);
+                        return getFallback();
+                    }
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    releaseRenderPermit();
+                    releaseResources();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            getTargetBean().setJspContext(jspContext);
+            return false;
+        }
+    }
+
+    /**
+     * Releases the target bean and all references to the page. It is invoked by
+     * {@link #doTag()}, and by the {@link TagRenderer} if the tag could not be set up.
+     */
+    void releaseResources() {
+        releaseTargetBean();
+        jspContext = null;
+        parent = null;
     }
 
     @Override
     public JspTag getParent() {
+        if (isFallback() || isEsiInclude()) {
+            return parent;
+        }
         return getTargetBean().getParent();
     }
 
     @Override
     public void setJspBody(JspFragment jspBody) {
-        getTargetBean().setJspBody(jspBody);
+        if (!isFallback() && !isEsiInclude()) {
+            getTargetBean().setJspBody(compactBody(jspBody));
+        }
     }
 
     @Override
     public void setJspContext(JspContext pc) {
-        initTargetBean(pc);
-        getTargetBean().setJspContext(pc);
+        this.jspContext = pc;
+        if (isEsi() && EsiSupport.isEnabled(pc)) {
+            // The tag is rendered by the EsiFragmentServlet, no target bean is needed
+            esiAttributes = new TreeMap<>();
+            return;
+        }
+        if (checkRenderDeadline(pc)) {
+            initTargetBean(pc);
+            getTargetBean().setJspContext(pc);
+        }
     }
 
     @Override
     public void setParent(JspTag parent) {
+        if (isFallback() || isEsiInclude()) {
+            this.parent = parent;
+            return;
+        }
         getTargetBean().setParent(parent);
     }
 
@@ -0,0 +1,250 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.springframework.beans.factory.BeanFactory;
+
+/**
+ * A {@link TagInstanceProvider} that keeps a number of fresh target beans in stock, so
+ * they do not need to be created while the page is rendered. The beans are created in
+ * a background thread by a delegate provider, which is the
+ * {@link SpringTagInstanceProvider} by default. The stock is refilled whenever a bean
+ * was taken. If it is empty, the bean is created synchronously.
+ * <p>
+ * The stock is filled after the first bean was requested, since the
+ * {@link BeanFactory} is unknown before. It only serves requests of that
+ * {@link BeanFactory}. If a bean is requested for another {@link BeanFactory}, e.g.
+ * after the application context was refreshed, the stock is discarded and filled again
+ * for the new one, so an old {@link BeanFactory} is not kept alive.
+ * <p>
+ * Beans are created without a request, so they must not depend on request or session
+ * scoped beans. If a bean cannot be created in the background, the stock is not
+ * refilled any more.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class SpareTagInstanceProvider implements TagInstanceProvider {
+
+    public static final int DEFAULT_SPARES = 4;
+
+    private static final Logger LOG = Logger.getLogger(SpareTagInstanceProvider.class.getName());
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            0, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "commons-taglib spare beans");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final TagInstanceProvider delegate;
+    private final int capacity;
+    private final AtomicReference<Stock> stock = new AtomicReference<>();
+
+    /**
+     * Keeps {@value #DEFAULT_SPARES} beans in stock, which are created by a
+     * {@link SpringTagInstanceProvider}.
+     */
+    public SpareTagInstanceProvider() {
+        this(new SpringTagInstanceProvider(), DEFAULT_SPARES);
+    }
+
+    /**
+     * Creates a new {@link SpareTagInstanceProvider}.
+     *
+     * @param delegate
+     *            {@link TagInstanceProvider} that creates the beans
+     * @param spares
+     *            Number of beans to keep in stock
+     */
+    public SpareTagInstanceProvider(TagInstanceProvider delegate, int spares) {
+        if (spares <= 0) {
+            throw new IllegalArgumentException("spares must be positive");
+        }
+        this.delegate = delegate;
+        this.capacity = spares;
+    }
+
+    /**
+     * Returns the number of beans in stock.
+     */
+    public int getSpareCount() {
+        Stock current = stock.get();
+        return current != null ? current.spares.size() : 0;
+    }
+
+    @Override
+    public Object createInstance(TagInstanceContext context) {
+        Stock current = stockFor(context);
+        if (current != null) {
+            Object instance = current.spares.poll();
+            current.scheduleRefill();
+            if (instance != null) {
+                return instance;
+            }
+        }
+        return delegate.createInstance(context);
+    }
+
+    @Override
+    public void releaseInstance(Object instance) {
+        delegate.releaseInstance(instance);
+    }
+
+    /**
+     * Returns the stock for the {@link BeanFactory} of the given context. If the current
+     * stock belongs to another {@link BeanFactory}, it is replaced.
+     *
+     * @return {@link Stock}, or {@code null} if another thread is just replacing the
+     *         stock
+     */
+    private @CheckForNull Stock stockFor(TagInstanceContext context) {
+        Stock current = stock.get();
+        if (current != null && current.serves(context)) {
+            return current;
+        }
+
+        Stock created = new Stock(context.detach());
+        if (!stock.compareAndSet(current, created)) {
+            return null;
+        }
+        if (current != null) {
+            current.discard();
+        }
+        return created;
+    }
+
+    /**
+     * Keeps the spare beans of a single {@link BeanFactory}.
+     */
+    private final class Stock implements Runnable {
+        private final TagInstanceContext context;
+        private final BeanFactory beanFactory;
+        private final BlockingQueue<Object> spares = new ArrayBlockingQueue<>(capacity);
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private volatile boolean disabled;
+
+        Stock(TagInstanceContext context) {
+            this.context = context;
+            BeanFactory bf;
+            try {
+                bf = context.getBeanFactory();
+            } catch (IllegalStateException ex) {
+                // The delegate does not use a BeanFactory
+                bf = null;
+            }
+            this.beanFactory = bf;
+        }
+
+        /**
+         * Checks if this stock serves the given context, which is the case if it belongs
+         * to the same {@link BeanFactory}.
+         */
+        boolean serves(TagInstanceContext requestContext) {
+            return beanFactory == null || beanFactory == requestContext.getBeanFactory();
+        }
+
+        /**
+         * Stops refilling, and releases all beans in stock.
+         */
+        void discard() {
+            disabled = true;
+            drain();
+        }
+
+        /**
+         * Schedules a refill of the stock, unless it is full or a refill is already
+         * scheduled.
+         */
+        void scheduleRefill() {
+            if (disabled || spares.remainingCapacity() == 0 || !refilling.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                EXECUTOR.execute(this);
+            } catch (RejectedExecutionException ex) {
+                refilling.set(false);
+            }
+        }
+
+        /**
+         * Fills the stock with new beans.
+         */
+        @Override
+        public void run() {
+            try {
+                while (!disabled && spares.remainingCapacity() > 0) {
+                    Object instance = delegate.createInstance(context);
+                    if (!spares.offer(instance)) {
+                        delegate.releaseInstance(instance);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                disabled = true;
+                LOG.log(Level.WARNING, "Cannot create spare beans of " + context.getBeanName()
+                        + ", creating them on demand", ex);
+            } finally {
+                refilling.set(false);
+            }
+
+            if (stock.get() != this) {
+                // Stock was discarded while it was refilled
+                drain();
+                return;
+            }
+
+            // Beans may have been taken after the stock was checked the last time
+            scheduleRefill();
+        }
+
+        /**
+         * Releases all beans in stock.
+         */
+        private void drain() {
+            Object instance;
+            while ((instance = spares.poll()) != null) {
+                delegate.releaseInstance(instance);
+            }
+        }
+    }
+
+}
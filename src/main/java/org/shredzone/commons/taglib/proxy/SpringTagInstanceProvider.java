@@ -0,0 +1,55 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.springframework.beans.factory.BeanFactory;
+
+/**
+ * The default {@link TagInstanceProvider}. It fetches the target bean from Spring's
+ * {@link BeanFactory}, so all Spring features like dependency injection can be used in
+ * the tag implementation. The bean must be prototype scoped.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class SpringTagInstanceProvider implements TagInstanceProvider {
+
+    @Override
+    public Object createInstance(TagInstanceContext context) {
+        BeanFactory bf = context.getBeanFactory();
+
+        String beanName = context.getBeanName();
+        if (!bf.isPrototype(beanName)) {
+            throw new IllegalStateException("Bean " + beanName + " must be prototype scoped!");
+        }
+
+        return bf.getBean(beanName);
+    }
+
+    @Override
+    public void releaseInstance(Object instance) {
+        // Prototype beans are not managed by Spring after creation
+    }
+
+}
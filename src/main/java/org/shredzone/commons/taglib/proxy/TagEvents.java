@@ -0,0 +1,186 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Emits Java Flight Recorder events of the proxy runtime. If Flight Recorder is not
+ * available on the running JVM, no events are emitted.
+ * <p>
+ * If enabled, the bytes allocated by bean creations and lifecycle phases are also
+ * counted in the {@link AllocationStats} of the tag. While a {@link WarmupServlet} warms
+ * up the tags, their timings are recorded as well.
+ * <p>
+ * The events themselves are found in {@link JfrTagEvents}, which accesses the Flight
+ * Recorder API reflectively, so this class can be safely used on all JVMs.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+final class TagEvents {
+
+    private static final boolean AVAILABLE = JfrTagEvents.isAvailable();
+
+    private TagEvents() {}
+
+    /**
+     * Starts a bean creation event.
+     *
+     * @return Event to be passed to {@link #endBeanCreation(Object, String)}, or
+     *         {@code null} if the event is disabled
+     */
+    static @Nullable Object beginBeanCreation() {
+        Object event = AVAILABLE ? JfrTagEvents.beginBeanCreation() : null;
+        return isMeasuring() ? new Measurement(event) : event;
+    }
+
+    /**
+     * Ends and commits a bean creation event.
+     *
+     * @param event
+     *            Event returned by {@link #beginBeanCreation()}
+     * @param beanName
+     *            Name of the created bean
+     */
+    static void endBeanCreation(@Nullable Object event, String beanName) {
+        if (event instanceof Measurement) {
+            Measurement measurement = (Measurement) event;
+            long nanos = measurement.getElapsedNanos();
+            long bytes = measurement.getAllocatedBytes();
+            if (bytes >= 0L) {
+                AllocationStats.forBean(beanName).countCreation(bytes);
+            }
+            WarmupRecorder.recordCreation(beanName, nanos);
+            event = measurement.event;
+        }
+        if (event != null) {
+            JfrTagEvents.endBeanCreation(event, beanName);
+        }
+    }
+
+    /**
+     * Starts a tag lifecycle phase event.
+     *
+     * @return Event to be passed to {@link #endPhase(Object, String, String)}, or
+     *         {@code null} if the event is disabled
+     */
+    static @Nullable Object beginPhase() {
+        Object event = AVAILABLE ? JfrTagEvents.beginPhase() : null;
+        return isMeasuring() ? new Measurement(event) : event;
+    }
+
+    /**
+     * Ends and commits a tag lifecycle phase event.
+     *
+     * @param event
+     *            Event returned by {@link #beginPhase()}
+     * @param beanName
+     *            Name of the tag bean
+     * @param phase
+     *            Name of the lifecycle method
+     */
+    static void endPhase(@Nullable Object event, String beanName, String phase) {
+        if (event instanceof Measurement) {
+            Measurement measurement = (Measurement) event;
+            long nanos = measurement.getElapsedNanos();
+            long bytes = measurement.getAllocatedBytes();
+            if (bytes >= 0L) {
+                AllocationStats.forBean(beanName).countRendering(bytes);
+            }
+            WarmupRecorder.recordRendering(beanName, nanos);
+            event = measurement.event;
+        }
+        if (event != null) {
+            JfrTagEvents.endPhase(event, beanName, phase);
+        }
+    }
+
+    /**
+     * Starts a BeanFactory discovery miss event.
+     *
+     * @return Event to be passed to {@link #endBeanFactoryMiss(Object, boolean)}, or
+     *         {@code null} if the event is disabled
+     */
+    static @Nullable Object beginBeanFactoryMiss() {
+        return AVAILABLE ? JfrTagEvents.beginBeanFactoryMiss() : null;
+    }
+
+    /**
+     * Ends and commits a BeanFactory discovery miss event.
+     *
+     * @param event
+     *            Event returned by {@link #beginBeanFactoryMiss()}
+     * @param found
+     *            {@code true} if a BeanFactory was finally found
+     */
+    static void endBeanFactoryMiss(@Nullable Object event, boolean found) {
+        if (event != null) {
+            JfrTagEvents.endBeanFactoryMiss(event, found);
+        }
+    }
+
+    /**
+     * Checks if allocations or timings are measured for the current thread.
+     */
+    private static boolean isMeasuring() {
+        return AllocationStats.isEnabled() || WarmupRecorder.isRecording();
+    }
+
+    /**
+     * Wraps an event, and keeps the start time and the number of bytes that were
+     * allocated by the current thread when the event was started.
+     */
+    private static final class Measurement {
+        private final Object event;
+        private final boolean allocation;
+        private final long startBytes;
+        private final long startNanos;
+
+        Measurement(@Nullable Object event) {
+            this.event = event;
+            long bytes = AllocationStats.isEnabled() ? AllocationStats.currentThreadAllocatedBytes() : -1L;
+            this.allocation = bytes >= 0L;
+            this.startBytes = bytes;
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Returns the number of nanoseconds since the event was started.
+         */
+        long getElapsedNanos() {
+            return System.nanoTime() - startNanos;
+        }
+
+        /**
+         * Returns the number of bytes allocated by the current thread since the event
+         * was started. -1 if allocation accounting was not enabled for the entire event.
+         */
+        long getAllocatedBytes() {
+            if (!allocation || !AllocationStats.isEnabled()) {
+                return -1L;
+            }
+            long currentBytes = AllocationStats.currentThreadAllocatedBytes();
+            return currentBytes >= 0L ? currentBytes - startBytes : -1L;
+        }
+    }
+
+}
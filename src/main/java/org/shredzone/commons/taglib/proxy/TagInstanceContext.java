@@ -0,0 +1,141 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.servlet.jsp.JspContext;
+
+import org.springframework.beans.factory.BeanFactory;
+
+/**
+ * Describes the tag whose target bean is to be created by a
+ * {@link TagInstanceProvider}. Each proxy keeps one instance and reuses it, so no
+ * object needs to be allocated for a bean creation.
+ * <p>
+ * A {@link #detach()}ed context can be used for creating beans in the background. It
+ * has no {@link JspContext}.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+public final class TagInstanceContext {
+
+    private final AbstractTagProxy<?> proxy;
+    private final String beanName;
+    private final Class<?> beanClass;
+    private final BeanFactory beanFactory;
+    private JspContext jspContext;
+
+    TagInstanceContext(AbstractTagProxy<?> proxy) {
+        this.proxy = proxy;
+        this.beanName = null;
+        this.beanClass = null;
+        this.beanFactory = null;
+    }
+
+    private TagInstanceContext(String beanName, @Nullable Class<?> beanClass, @Nullable BeanFactory beanFactory) {
+        this.proxy = null;
+        this.beanName = beanName;
+        this.beanClass = beanClass;
+        this.beanFactory = beanFactory;
+    }
+
+    /**
+     * Sets the {@link JspContext} of the current bean creation. {@code null} when the
+     * bean was created.
+     */
+    void setJspContext(@Nullable JspContext jspContext) {
+        this.jspContext = jspContext;
+    }
+
+    /**
+     * Creates a copy of this context that is independent of the proxy and the current
+     * request, so it can be kept and used in other threads. The {@link BeanFactory} is
+     * looked up now, if available.
+     *
+     * @return Detached {@link TagInstanceContext}. It has no {@link JspContext}.
+     */
+    public @Nonnull TagInstanceContext detach() {
+        if (proxy == null) {
+            return this;
+        }
+
+        BeanFactory bf;
+        try {
+            bf = getBeanFactory();
+        } catch (IllegalStateException | NullPointerException ex) {
+            // There is no BeanFactory, so providers must do without
+            bf = null;
+        }
+        return new TagInstanceContext(getBeanName(), getBeanClass(), bf);
+    }
+
+    /**
+     * Name of the target bean.
+     */
+    public @Nonnull String getBeanName() {
+        return proxy != null ? proxy.getBeanName() : beanName;
+    }
+
+    /**
+     * Class of the target bean, or {@code null} if it is unknown.
+     */
+    public @Nullable Class<?> getBeanClass() {
+        return proxy != null ? proxy.getBeanClass() : beanClass;
+    }
+
+    /**
+     * {@link JspContext} the tag is rendered in.
+     *
+     * @throws IllegalStateException
+     *             if there is no {@link JspContext}, e.g. because the context was
+     *             detached
+     */
+    public @Nonnull JspContext getJspContext() {
+        if (jspContext == null) {
+            throw new IllegalStateException("No JSP context available");
+        }
+        return jspContext;
+    }
+
+    /**
+     * Gets the {@link BeanFactory} of the tag. It is only looked up when this method is
+     * invoked, so providers that do not use Spring do not need a {@link BeanFactory}.
+     *
+     * @return {@link BeanFactory}
+     * @throws IllegalStateException
+     *             if there is no {@link BeanFactory}
+     * @see AbstractTagProxy#getBeanFactory(JspContext)
+     */
+    public @Nonnull BeanFactory getBeanFactory() {
+        if (proxy == null) {
+            if (beanFactory == null) {
+                throw new IllegalStateException("No BeanFactory available");
+            }
+            return beanFactory;
+        }
+        return proxy.getBeanFactory(getJspContext());
+    }
+
+}
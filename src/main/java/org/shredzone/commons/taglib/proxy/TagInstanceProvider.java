@@ -0,0 +1,57 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Creates the target bean instances of tag proxies. The default implementation is
+ * {@link SpringTagInstanceProvider}, which fetches prototype beans from Spring's
+ * {@link org.springframework.beans.factory.BeanFactory}. Other implementations can be
+ * selected per tag or per tag library, using the
+ * {@link org.shredzone.commons.taglib.annotation.InstanceProvider} annotation.
+ * <p>
+ * Each proxy class uses its own provider instance. Implementations must be thread-safe
+ * and must have a public no-argument constructor.
+ *
+ * @author Richard "Shred" Körber
+ */
+public interface TagInstanceProvider {
+
+    /**
+     * Creates a new target bean instance.
+     *
+     * @param context
+     *            {@link TagInstanceContext} describing the tag. It is only valid while
+     *            this method is invoked.
+     * @return Target bean instance
+     */
+    @Nonnull Object createInstance(TagInstanceContext context);
+
+    /**
+     * Releases a target bean instance that was created by this provider, after the tag
+     * was rendered. The instance is not used by the proxy afterwards.
+     *
+     * @param instance
+     *            Target bean instance
+     */
+    void releaseInstance(Object instance);
+
+}
@@ -19,9 +19,12 @@
  */
 package org.shredzone.commons.taglib.proxy;
 
+import java.io.IOException;
+
 import javax.annotation.Nonnull;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.BodyTag;
 import javax.servlet.jsp.tagext.Tag;
 import javax.servlet.jsp.tagext.TryCatchFinally;
 
@@ -35,20 +38,58 @@ import javax.servlet.jsp.tagext.TryCatchFinally;
  */
 public abstract class TagProxy<T extends Tag> extends AbstractTagProxy<T> implements Tag {
 
+    private PageContext pageContext;
+
     @Override
     public void setPageContext(PageContext pageContext) {
-        initTargetBean(pageContext);
+        this.pageContext = pageContext;
+
+        // A target bean of a previous use is reused, as it keeps its attributes. It is
+        // also kept if the tag is skipped, so it still receives all attributes.
+        if (!hasTargetBean()) {
+            initTargetBean(pageContext);
+        }
         getTargetBean().setPageContext(pageContext);
+
+        if (checkRenderDeadline(pageContext)) {
+            acquireRenderPermit();
+        }
     }
 
     @Override
     public int doEndTag() throws JspException {
-        return getTargetBean().doEndTag();
+        try {
+            if (isFallback()) {
+                return EVAL_PAGE;
+            }
+
+            Object event = TagEvents.beginPhase();
+            int result = getTargetBean().doEndTag();
+            TagEvents.endPhase(event, getBeanName(), "doEndTag");
+            flushOutput(pageContext);
+            return result;
+        } catch (IOException ex) {
+            throw new JspException(ex);
+        } finally {
+            releaseRenderPermit();
+        }
     }
 
     @Override
     public int doStartTag() throws JspException {
-        return getTargetBean().doStartTag();
+        if (isFallback()) {
+            try {
+                writeFallback(pageContext);
+            } catch (IOException ex) {
+                throw new JspException(ex);
+            }
+            return SKIP_BODY;
+        }
+
+        Object event = TagEvents.beginPhase();
+        int result = getTargetBean().doStartTag();
+        TagEvents.endPhase(event, getBeanName(), "doStartTag");
+        return result;
     }
 
     @Override
@@ -58,7 +99,8 @@ public abstract class TagProxy<T extends Tag> extends AbstractTagProxy<T> implem
 
     @Override
     public void release() {
-        getTargetBean().release();
+        releaseRenderPermit();
+        releaseResources();
     }
 
     @Override
@@ -74,7 +116,7 @@ public abstract class TagProxy<T extends Tag> extends AbstractTagProxy<T> implem
      */
     public void doCatch(@Nonnull Throwable t)
     throws Throwable {
-        T target = getTargetBean();
+        T target = hasTargetBean() ? getTargetBean() : null;
         if (target instanceof TryCatchFinally) {
             TryCatchFinally tcf = (TryCatchFinally) target;
             tcf.doCatch(t);
@@ -84,13 +126,54 @@ public abstract class TagProxy<T extends Tag> extends AbstractTagProxy<T> implem
     }
 
     /**
-     * Handles {@link TryCatchFinally} implementations.
+     * Handles {@link TryCatchFinally} implementations. Afterwards, all references to the
+     * page are cleared, so the page can be garbage collected while the proxy is kept in
+     * a tag handler pool. The target bean keeps its attributes.
      */
     public void doFinally() {
-        T target = getTargetBean();
-        if (target instanceof TryCatchFinally) {
-            TryCatchFinally tcf = (TryCatchFinally) target;
-            tcf.doFinally();
+        releaseRenderPermit();
+        T target = hasTargetBean() ? getTargetBean() : null;
+        try {
+            if (target instanceof TryCatchFinally) {
+                TryCatchFinally tcf = (TryCatchFinally) target;
+                tcf.doFinally();
+            }
+        } finally {
+            pageContext = null;
+            if (target != null) {
+                clearPageReferences(target);
+            }
+        }
+    }
+
+    /**
+     * Clears the references of the target bean to the page. They are set again by the
+     * web container before the next use.
+     */
+    private void clearPageReferences(T target) {
+        if (target instanceof BodyTag) {
+            ((BodyTag) target).setBodyContent(null);
+        }
+        target.setParent(null);
+        target.setPageContext(null);
+    }
+
+    /**
+     * Releases the target bean and all references to the page. It is invoked by
+     * {@link #release()}, when the web container discards this proxy. Until then, the
+     * target bean is kept for reuse, like the state of any other tag handler. The target
+     * bean's {@link Tag#release()} method is invoked before it is passed back to its
+     * {@link TagInstanceProvider}.
+     */
+    private void releaseResources() {
+        T target = hasTargetBean() ? getTargetBean() : null;
+        pageContext = null;
+        try {
+            if (target != null) {
+                target.release();
+            }
+        } finally {
+            releaseTargetBean();
         }
     }
 
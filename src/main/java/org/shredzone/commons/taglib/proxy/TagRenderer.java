@@ -0,0 +1,170 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.jsp.JspException;
+
+import org.springframework.beans.factory.BeanFactory;
+
+/**
+ * Renders simple tags outside of a JSP page, for example for HTML mails or for
+ * fragments that are returned by AJAX endpoints. No servlet request and no JSP engine
+ * is required.
+ * <p>
+ * The tag is rendered through its generated proxy, so the target bean is created by the
+ * {@link TagInstanceProvider} of the tag, and all proxy features are applied. The
+ * tag attributes are set by name. The tag is rendered without a body, and without a
+ * servlet request. There is no session scope, and no expression language support.
+ * <p>
+ * Only tags with {@code @Tag(type = SimpleTag.class)} can be rendered, as classic tags
+ * need a full {@link javax.servlet.jsp.PageContext}.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public final class TagRenderer {
+
+    private final Map<String, Object> applicationScope = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link TagRenderer} without a {@link BeanFactory}. It can only render
+     * tags that do not need a {@link BeanFactory}, e.g. because they use the
+     * {@link ConstructorTagInstanceProvider}.
+     */
+    public TagRenderer() {
+        // nothing to do
+    }
+
+    /**
+     * Creates a {@link TagRenderer}.
+     *
+     * @param beanFactory
+     *            {@link BeanFactory} that creates the target beans
+     */
+    public TagRenderer(BeanFactory beanFactory) {
+        applicationScope.put(AbstractTagProxy.TAGPROXY_BEANFACTORY_CACHE, beanFactory);
+    }
+
+    /**
+     * Sets an application scoped attribute that is visible to all rendered tags. It
+     * can also be used for passing a {@link BeanFactory} to tags with a
+     * {@link org.shredzone.commons.taglib.annotation.BeanFactoryReference}.
+     *
+     * @param name
+     *            Attribute name
+     * @param value
+     *            Attribute value, or {@code null} to remove the attribute
+     */
+    public void setAttribute(String name, @Nullable Object value) {
+        if (value != null) {
+            applicationScope.put(name, value);
+        } else {
+            applicationScope.remove(name);
+        }
+    }
+
+    /**
+     * Renders a tag into a string.
+     *
+     * @param proxyClass
+     *            Generated proxy class of the tag
+     * @param attributes
+     *            Tag attributes, by their name
+     * @return Rendered tag
+     * @throws JspException
+     *             if the tag failed
+     * @throws IllegalArgumentException
+     *             if the tag has no such attribute, or the value does not match the
+     *             attribute type
+     */
+    public @Nonnull String render(Class<? extends SimpleTagProxy<?>> proxyClass, Map<String, ?> attributes)
+    throws JspException {
+        StringWriter out = new StringWriter();
+        try {
+            render(proxyClass, attributes, out);
+        } catch (IOException ex) {
+            // StringWriter does not throw IOException
+            throw new JspException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Renders a tag into a {@link Writer}.
+     *
+     * @param proxyClass
+     *            Generated proxy class of the tag
+     * @param attributes
+     *            Tag attributes, by their name
+     * @param out
+     *            {@link Writer} to write the rendered tag to
+     * @throws JspException
+     *             if the tag failed
+     * @throws IOException
+     *             if the output could not be written
+     * @throws IllegalArgumentException
+     *             if the tag has no such attribute, or the value does not match the
+     *             attribute type
+     */
+    public void render(Class<? extends SimpleTagProxy<?>> proxyClass, Map<String, ?> attributes, Writer out)
+    throws JspException, IOException {
+        SimpleTagProxy<?> proxy;
+        try {
+            proxy = proxyClass.getDeclaredConstructor().newInstance();
+        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException ex) {
+            throw new IllegalArgumentException("Cannot create tag proxy " + proxyClass.getName(), ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Tag proxy " + proxyClass.getName() + " failed", ex.getCause());
+        }
+
+        proxy.setJspContext(new HeadlessJspContext(out, applicationScope));
+
+        boolean ready = false;
+        try {
+            for (Map.Entry<String, ?> entry : attributes.entrySet()) {
+                try {
+                    proxy.setTagAttribute(entry.getKey(), entry.getValue());
+                } catch (ClassCastException ex) {
+                    throw new IllegalArgumentException("Attribute " + entry.getKey() + " has a wrong type", ex);
+                }
+            }
+            ready = true;
+        } finally {
+            if (!ready) {
+                proxy.releaseResources();
+            }
+        }
+
+        proxy.doTag();
+    }
+
+}
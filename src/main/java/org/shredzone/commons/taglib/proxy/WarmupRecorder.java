@@ -0,0 +1,221 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Records the timings of bean creations and tag lifecycle phases while the tags are
+ * warmed up by a {@link WarmupServlet}. Only the thread that runs the warm-up is
+ * recorded. The timings are kept per warm-up iteration, so the report shows when the
+ * code paths of a tag were compiled.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class WarmupRecorder {
+
+    private static final int INITIAL_SERIES_SIZE = 16;
+
+    private static volatile WarmupRecorder active;
+
+    private final Thread owner = Thread.currentThread();
+    private final Map<String, Series> creations = new TreeMap<>();
+    private final Map<String, Series> renderings = new TreeMap<>();
+    private final int maxIterations;
+    private int iteration = -1;
+
+    /**
+     * Creates a new {@link WarmupRecorder} for the current thread.
+     *
+     * @param maxIterations
+     *            Maximum number of iterations to be recorded
+     */
+    WarmupRecorder(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Checks if the current thread is being recorded.
+     */
+    static boolean isRecording() {
+        return current() != null;
+    }
+
+    /**
+     * Records a bean creation, if the current thread is being recorded.
+     */
+    static void recordCreation(String beanName, long nanos) {
+        WarmupRecorder recorder = current();
+        if (recorder != null) {
+            recorder.record(recorder.creations, beanName, nanos);
+        }
+    }
+
+    /**
+     * Records a tag lifecycle phase, if the current thread is being recorded.
+     */
+    static void recordRendering(String beanName, long nanos) {
+        WarmupRecorder recorder = current();
+        if (recorder != null) {
+            recorder.record(recorder.renderings, beanName, nanos);
+        }
+    }
+
+    /**
+     * Starts recording.
+     */
+    void start() {
+        active = this;
+    }
+
+    /**
+     * Stops recording.
+     */
+    void stop() {
+        if (active == this) {
+            active = null;
+        }
+    }
+
+    /**
+     * Starts the next iteration.
+     *
+     * @return {@code true} if the iteration was started, {@code false} if the maximum
+     *         number of iterations has been reached
+     */
+    boolean nextIteration() {
+        if (iteration + 1 >= maxIterations) {
+            return false;
+        }
+        iteration++;
+        return true;
+    }
+
+    /**
+     * Number of iterations that have been started.
+     */
+    int getIterations() {
+        return iteration + 1;
+    }
+
+    /**
+     * Writes a report of the recorded timings. For each tag, it shows the average time
+     * of the first and the last iteration, and the iteration after which the average
+     * time stayed below twice the time of the last iteration.
+     *
+     * @param sb
+     *            {@link StringBuilder} to write the report to
+     */
+    void writeReport(StringBuilder sb) {
+        for (Map.Entry<String, Series> entry : creations.entrySet()) {
+            entry.getValue().writeReport(sb, entry.getKey() + " creation");
+        }
+        for (Map.Entry<String, Series> entry : renderings.entrySet()) {
+            entry.getValue().writeReport(sb, entry.getKey() + " rendering");
+        }
+    }
+
+    /**
+     * Returns the active recorder, if it records the current thread.
+     */
+    private static @CheckForNull WarmupRecorder current() {
+        WarmupRecorder recorder = active;
+        return recorder != null && recorder.owner == Thread.currentThread() ? recorder : null;
+    }
+
+    /**
+     * Records a timing of the current iteration.
+     */
+    private void record(Map<String, Series> map, String beanName, long nanos) {
+        if (iteration < 0) {
+            return;
+        }
+
+        Series series = map.get(beanName);
+        if (series == null) {
+            series = new Series();
+            map.put(beanName, series);
+        }
+        series.add(iteration, nanos);
+    }
+
+    /**
+     * Timings of a tag, per iteration. The arrays grow with the number of iterations
+     * that were actually run, so a high maximum does not allocate memory in advance.
+     */
+    private final class Series {
+        private long[] nanos = new long[INITIAL_SERIES_SIZE];
+        private int[] counts = new int[INITIAL_SERIES_SIZE];
+
+        void add(int ix, long time) {
+            if (ix >= counts.length) {
+                int size = Math.max(ix + 1, Math.min(counts.length * 2, maxIterations));
+                nanos = Arrays.copyOf(nanos, size);
+                counts = Arrays.copyOf(counts, size);
+            }
+            nanos[ix] += time;
+            counts[ix]++;
+        }
+
+        void writeReport(StringBuilder sb, @Nonnull String label) {
+            int first = -1;
+            int last = -1;
+            int size = Math.min(iteration + 1, counts.length);
+            for (int ix = 0; ix < size; ix++) {
+                if (counts[ix] > 0) {
+                    if (first < 0) {
+                        first = ix;
+                    }
+                    last = ix;
+                }
+            }
+            if (first < 0) {
+                return;
+            }
+
+            long lastAverage = average(last);
+            int stable = first;
+            for (int ix = first; ix <= last; ix++) {
+                if (counts[ix] > 0 && average(ix) > 2 * lastAverage) {
+                    stable = ix + 1;
+                }
+            }
+
+            sb.append("\n  ").append(label).append(": ")
+              .append(average(first)).append(" ns -> ")
+              .append(lastAverage).append(" ns, stable after ")
+              .append(stable).append(" iterations");
+        }
+
+        private long average(int ix) {
+            return nanos[ix] / counts[ix];
+        }
+    }
+
+}
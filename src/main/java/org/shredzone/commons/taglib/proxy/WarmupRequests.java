@@ -0,0 +1,311 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Creates synthetic requests, responses and sessions for the {@link WarmupServlet}. The
+ * warm-up runs in a background thread, so it cannot use the request of the container,
+ * which is recycled as soon as the readiness check was answered.
+ * <p>
+ * The objects are dynamic proxies of the servlet API interfaces of the running
+ * container, so they are independent of its servlet API version. Methods that are not
+ * emulated return {@code null}, {@code false} or {@code 0}.
+ *
+ * @author Richard "Shred" Körber
+ */
+@ParametersAreNonnullByDefault
+final class WarmupRequests {
+
+    private static final Object NOT_HANDLED = new Object();
+
+    private final ServletContext servletContext;
+    private final String scheme;
+    private final String serverName;
+    private final int serverPort;
+    private final String contextPath;
+    private final Locale locale;
+    private final HttpSession session;
+
+    /**
+     * Takes a snapshot of the given request. It must be invoked in the thread of the
+     * request.
+     *
+     * @param servletContext
+     *            {@link ServletContext} of the web application
+     * @param req
+     *            {@link HttpServletRequest} the warm-up was triggered by
+     */
+    WarmupRequests(ServletContext servletContext, HttpServletRequest req) {
+        this.servletContext = servletContext;
+        this.scheme = req.getScheme();
+        this.serverName = req.getServerName();
+        this.serverPort = req.getServerPort();
+        this.contextPath = req.getContextPath();
+        this.locale = req.getLocale();
+        this.session = (HttpSession) newProxy(HttpSession.class, new SessionHandler());
+    }
+
+    /**
+     * Creates a new request for rendering the given page. Each request has its own
+     * attributes, but all requests share the same session.
+     *
+     * @param page
+     *            Path of the page, relative to the context path
+     * @return Synthetic {@link HttpServletRequest}
+     */
+    @Nonnull HttpServletRequest createRequest(String page) {
+        return (HttpServletRequest) newProxy(HttpServletRequest.class, new RequestHandler(page));
+    }
+
+    /**
+     * Creates a new response that discards all output.
+     *
+     * @return Synthetic {@link HttpServletResponse}
+     */
+    @Nonnull HttpServletResponse createResponse() {
+        return (HttpServletResponse) newProxy(HttpServletResponse.class, new ResponseHandler());
+    }
+
+    /**
+     * Creates a dynamic proxy of the given servlet API interface.
+     */
+    private static Object newProxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * Handles the methods of {@link Object}, and returns a default value for all other
+     * methods.
+     */
+    private abstract static class DefaultHandler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return getClass().getSimpleName() + '@' + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        /**
+         * Returns the default value of the given return type.
+         */
+        static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            } else if (!type.isPrimitive() || type == void.class) {
+                return null;
+            }
+            throw new UnsupportedOperationException("Unexpected return type " + type);
+        }
+
+        /**
+         * Handles attribute methods.
+         *
+         * @return Result of the attribute method, or {@link #NOT_HANDLED} if the method
+         *         was not an attribute method
+         */
+        static Object handleAttributes(Map<String, Object> attributes, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getAttribute":
+                    return attributes.get((String) args[0]);
+                case "getAttributeNames":
+                    return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+                case "setAttribute":
+                    if (args[1] != null) {
+                        attributes.put((String) args[0], args[1]);
+                    } else {
+                        attributes.remove(args[0]);
+                    }
+                    return null;
+                case "removeAttribute":
+                    attributes.remove(args[0]);
+                    return null;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    }
+
+    /**
+     * Emulates a GET request of a page, without parameters.
+     */
+    private class RequestHandler extends DefaultHandler {
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final String page;
+        private String characterEncoding = "UTF-8";
+
+        RequestHandler(String page) {
+            this.page = page;
+            attributes.put(WarmupServlet.WARMUP_ATTRIBUTE, Boolean.TRUE);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            Object result = handleAttributes(attributes, method, args);
+            if (result != NOT_HANDLED) {
+                return result;
+            }
+
+            switch (method.getName()) {
+                case "getMethod":           return "GET";
+                case "getProtocol":         return "HTTP/1.1";
+                case "getScheme":           return scheme;
+                case "getServerName":       return serverName;
+                case "getServerPort":       return serverPort;
+                case "isSecure":            return "https".equals(scheme);
+                case "getContextPath":      return contextPath;
+                case "getServletPath":      return page;
+                case "getRequestURI":       return contextPath + page;
+                case "getRequestURL":       return new StringBuffer(scheme).append("://")
+                                                    .append(serverName).append(':').append(serverPort)
+                                                    .append(contextPath).append(page);
+                case "getLocale":           return locale;
+                case "getLocales":          return Collections.enumeration(Collections.singleton(locale));
+                case "getCharacterEncoding": return characterEncoding;
+                case "setCharacterEncoding": characterEncoding = (String) args[0]; return null;
+                case "getParameterMap":     return Collections.emptyMap();
+                case "getParameterNames":
+                case "getHeaderNames":
+                case "getHeaders":          return Collections.emptyEnumeration();
+                case "getIntHeader":        return -1;
+                case "getDateHeader":       return -1L;
+                case "getContentLength":    return -1;
+                case "getRemoteAddr":
+                case "getLocalAddr":        return "127.0.0.1";
+                case "getRemoteHost":
+                case "getLocalName":        return "localhost";
+                case "getLocalPort":        return serverPort;
+                case "getSession":          return session;
+                case "getServletContext":   return servletContext;
+                case "getRequestDispatcher":
+                    String path = (String) args[0];
+                    return path.startsWith("/") ? servletContext.getRequestDispatcher(path) : null;
+                default:                    return super.invoke(proxy, method, args);
+            }
+        }
+    }
+
+    /**
+     * Emulates a response that discards all output.
+     */
+    private class ResponseHandler extends DefaultHandler {
+        private final ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                // discard
+            }
+        };
+        private final PrintWriter writer = new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                // discard
+            }
+
+            @Override
+            public void flush() {
+                // nothing to flush
+            }
+
+            @Override
+            public void close() {
+                // nothing to close
+            }
+        });
+        private String characterEncoding = StandardCharsets.UTF_8.name();
+        private String contentType;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getWriter":           return writer;
+                case "getOutputStream":     return stream;
+                case "getCharacterEncoding": return characterEncoding;
+                case "setCharacterEncoding": characterEncoding = (String) args[0]; return null;
+                case "getContentType":      return contentType;
+                case "setContentType":      contentType = (String) args[0]; return null;
+                case "getLocale":           return locale;
+                case "getBufferSize":       return 8192;
+                case "getStatus":           return HttpServletResponse.SC_OK;
+                case "encodeURL":
+                case "encodeUrl":
+                case "encodeRedirectURL":
+                case "encodeRedirectUrl":   return args[0];
+                default:                    return super.invoke(proxy, method, args);
+            }
+        }
+    }
+
+    /**
+     * Emulates a session that is shared by all requests of a warm-up.
+     */
+    private class SessionHandler extends DefaultHandler {
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final long creationTime = System.currentTimeMillis();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            Object result = handleAttributes(attributes, method, args);
+            if (result != NOT_HANDLED) {
+                return result;
+            }
+
+            switch (method.getName()) {
+                case "getId":               return "warmup";
+                case "getCreationTime":
+                case "getLastAccessedTime": return creationTime;
+                case "getServletContext":   return servletContext;
+                case "isNew":               return Boolean.TRUE;
+                default:                    return super.invoke(proxy, method, args);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Warms up the tags before the node takes traffic. It is meant to be used as readiness
+ * check of a load balancer.
+ * <p>
+ * The first request starts a background thread that renders the configured JSP pages
+ * through the real tag proxies, either for the given number of iterations, or until the
+ * time budget is used up. The output of the pages is discarded. Meanwhile, all requests
+ * are answered with status 503. After the warm-up, the servlet answers with status 200
+ * and a report of the timings of each tag, and sets the {@link #READY_ATTRIBUTE}
+ * servlet context attribute.
+ * <p>
+ * These init parameters are accepted:
+ * <ul>
+ *   <li>{@code pages}: Paths of the JSP pages to be rendered, separated by commas or
+ *   whitespaces. The pages should not depend on request parameters or a session.</li>
+ *   <li>{@code iterations}: Maximum number of warm-up iterations. Defaults to 1000.</li>
+ *   <li>{@code timeBudget}: Maximum warm-up time, in seconds. Defaults to 60.</li>
+ * </ul>
+ * The pages are rendered with synthetic requests, which have no parameters, and share
+ * a synthetic session. The {@link #WARMUP_ATTRIBUTE} request attribute is set, so the
+ * application is able to detect these requests.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class WarmupServlet extends HttpServlet {
+    private static final long serialVersionUID = 4106218375509331827L;
+
+    public static final String READY_ATTRIBUTE = WarmupServlet.class.getName() + ".ready";
+    public static final String WARMUP_ATTRIBUTE = WarmupServlet.class.getName() + ".warmup";
+
+    private static final Logger LOG = Logger.getLogger(WarmupServlet.class.getName());
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean ready;
+    private volatile boolean stopped;
+    private volatile String report = "ready";
+    private String[] pages;
+    private int iterations;
+    private long timeBudget;
+
+    @Override
+    public void init() throws ServletException {
+        String pagesParam = getInitParameter("pages");
+        pages = pagesParam != null ? pagesParam.trim().split("[,\\s]+") : new String[0];
+        iterations = getIntParameter("iterations", 1000);
+        timeBudget = TimeUnit.SECONDS.toNanos(getIntParameter("timeBudget", 60));
+
+        if (pages.length == 0 || pages[0].isEmpty()) {
+            setReady();
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException {
+        if (!ready && started.compareAndSet(false, true)) {
+            startWarmup(new WarmupRequests(getServletContext(), req));
+        }
+
+        if (!ready) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Warming up");
+            return;
+        }
+
+        resp.setContentType("text/plain;charset=UTF-8");
+        resp.getWriter().write(report);
+    }
+
+    @Override
+    public void destroy() {
+        stopped = true;
+        super.destroy();
+    }
+
+    /**
+     * Starts the warm-up in a background thread.
+     *
+     * @param requests
+     *            {@link WarmupRequests} that creates the synthetic requests
+     */
+    private void startWarmup(final WarmupRequests requests) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    report = warmup(requests);
+                    LOG.info(report);
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.SEVERE, "Warm-up failed", ex);
+                } finally {
+                    if (!stopped) {
+                        setReady();
+                    }
+                }
+            }
+        }, "commons-taglib warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Renders the configured pages, and records the tag timings.
+     *
+     * @return Report of the warm-up
+     */
+    private String warmup(WarmupRequests requests) {
+        Set<String> failed = new HashSet<>();
+        WarmupRecorder recorder = new WarmupRecorder(iterations);
+
+        long start = System.nanoTime();
+        recorder.start();
+        try {
+            while (!stopped && System.nanoTime() - start < timeBudget && recorder.nextIteration()) {
+                for (String page : pages) {
+                    if (failed.contains(page)) {
+                        continue;
+                    }
+
+                    try {
+                        RequestDispatcher rd = getServletContext().getRequestDispatcher(page);
+                        if (rd == null) {
+                            throw new ServletException("No dispatcher for " + page);
+                        }
+                        rd.include(requests.createRequest(page), requests.createResponse());
+                    } catch (ServletException | IOException | RuntimeException ex) {
+                        LOG.log(Level.WARNING, "Warm-up of " + page + " failed, skipping it", ex);
+                        failed.add(page);
+                    }
+                }
+            }
+        } finally {
+            recorder.stop();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Tag warm-up: ").append(recorder.getIterations()).append(" iterations of ")
+          .append(pages.length - failed.size()).append(" pages in ")
+          .append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).append(" ms");
+        recorder.writeReport(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Marks the warm-up as completed.
+     */
+    private void setReady() {
+        ready = true;
+        getServletContext().setAttribute(READY_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    /**
+     * Gets an integer init parameter.
+     */
+    private int getIntParameter(String name, int defaultValue) throws ServletException {
+        String value = getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new ServletException("Invalid init parameter " + name + ": " + value);
+        }
+    }
+
+}
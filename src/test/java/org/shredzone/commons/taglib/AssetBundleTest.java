@@ -0,0 +1,150 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AssetBundle}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class AssetBundleTest {
+
+    private static final List<String> PATHS = Arrays.asList("/css/a.css", "/css/b.css");
+
+    private Map<String, String> resources;
+    private List<String> read;
+
+    @Before
+    public void setup() {
+        resources = new HashMap<>();
+        resources.put("/css/a.css", "a { color: red; }");
+        resources.put("/css/b.css", "/* comment */ b { color: blue; }");
+        resources.put("/WEB-INF/secret.css", "secret");
+        read = new ArrayList<>();
+    }
+
+    /**
+     * A bundle that is not cached anymore is rebuilt from its asset paths.
+     */
+    @Test
+    public void testRebuild() throws IOException {
+        AssetBundle bundle = AssetBundle.forAssets(createServletContext(), AssetBundle.Type.CSS, PATHS);
+        assertEquals(PATHS, bundle.getPaths());
+
+        ServletContext restarted = createServletContext();
+        assertNull(AssetBundle.forName(restarted, bundle.getName()));
+
+        AssetBundle rebuilt = AssetBundle.forName(restarted, bundle.getName(), bundle.getPaths());
+        assertNotNull(rebuilt);
+        assertEquals(bundle.getName(), rebuilt.getName());
+        assertEquals(toString(bundle), toString(rebuilt));
+        assertSame(rebuilt, AssetBundle.forName(restarted, bundle.getName()));
+        assertSame(rebuilt, AssetBundle.forAssets(restarted, AssetBundle.Type.CSS, PATHS));
+    }
+
+    /**
+     * Assets that do not match the bundle name are neither returned nor cached.
+     */
+    @Test
+    public void testRebuildMismatch() throws IOException {
+        AssetBundle bundle = AssetBundle.forAssets(createServletContext(), AssetBundle.Type.CSS, PATHS);
+
+        resources.put("/css/b.css", "b { color: green; }");
+        ServletContext changed = createServletContext();
+        assertNull(AssetBundle.forName(changed, bundle.getName(), bundle.getPaths()));
+        assertNull(AssetBundle.forName(changed, bundle.getName()));
+
+        List<String> reversed = Arrays.asList("/css/b.css", "/css/a.css");
+        assertNull(AssetBundle.forName(createServletContext(), bundle.getName(), reversed));
+    }
+
+    /**
+     * Only public assets of the bundle's type are read.
+     */
+    @Test
+    public void testRebuildRefusesPaths() throws IOException {
+        String name = "0123456789abcdef.css";
+        for (String path : Arrays.asList("/WEB-INF/secret.css", "/web-inf/secret.css",
+                        "/css/../WEB-INF/secret.css", "//WEB-INF/secret.css", "/./WEB-INF/secret.css",
+                        "/META-INF/context.css", "css/a.css", "/css/a.js", "/css/a.css;.js")) {
+            assertNull(path, AssetBundle.forName(createServletContext(), name, Collections.singletonList(path)));
+        }
+        assertNull(AssetBundle.forName(createServletContext(), "0123456789abcdef.txt", PATHS));
+        assertNull(AssetBundle.forName(createServletContext(), name, Collections.<String>emptyList()));
+        assertTrue(read.toString(), read.isEmpty());
+    }
+
+    private static String toString(AssetBundle bundle) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bundle.writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Creates a {@link ServletContext} with an empty attribute map, serving the
+     * resources of the test.
+     */
+    private ServletContext createServletContext() {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] {ServletContext.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getAttribute":
+                        return attributes.get(args[0]);
+
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+
+                    case "getResourceAsStream":
+                        read.add((String) args[0]);
+                        String content = resources.get(args[0]);
+                        return content != null ? new ByteArrayInputStream(content.getBytes("UTF-8")) : null;
+
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+
+}
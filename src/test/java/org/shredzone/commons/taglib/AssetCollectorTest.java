@@ -0,0 +1,110 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.jsp.PageContext;
+
+import org.junit.Test;
+import org.shredzone.commons.taglib.proxy.TestPageContext;
+
+/**
+ * Unit tests for {@link AssetCollector}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class AssetCollectorTest {
+
+    /**
+     * Assets are collected once, in the order they were required first.
+     */
+    @Test
+    public void testRequire() {
+        TestPageContext page = new TestPageContext();
+        AssetCollector.require(page, "/css/a.css");
+        AssetCollector.require(page, "/js/a.js");
+        AssetCollector.require(page, "/css/b.css");
+        AssetCollector.require(page, "/css/a.css");
+
+        assertEquals(Arrays.asList("/css/a.css", "/css/b.css"),
+                        AssetCollector.takeRequired(page, AssetBundle.Type.CSS));
+        assertTrue(AssetCollector.takeRequired(page, AssetBundle.Type.CSS).isEmpty());
+        assertEquals(Arrays.asList("/js/a.js"),
+                        AssetCollector.takeRequired(page, AssetBundle.Type.JAVASCRIPT));
+    }
+
+    /**
+     * A prepared collection is shared with a copy of the request scope, like the one of
+     * an asynchronously rendered tag.
+     */
+    @Test
+    public void testPreparedAssetsAreShared() {
+        ServletRequest request = createRequest();
+        AssetCollector.prepare(request);
+
+        TestPageContext page = new TestPageContext();
+        TestPageContext copy = new TestPageContext();
+        Object assets = request.getAttribute(AssetCollector.ASSETS_ATTRIBUTE);
+        assertNotNull(assets);
+        page.setAttribute(AssetCollector.ASSETS_ATTRIBUTE, assets, PageContext.REQUEST_SCOPE);
+        copy.setAttribute(AssetCollector.ASSETS_ATTRIBUTE, assets, PageContext.REQUEST_SCOPE);
+
+        AssetCollector.require(copy, "/css/async.css");
+        assertEquals(Arrays.asList("/css/async.css"),
+                        AssetCollector.takeRequired(page, AssetBundle.Type.CSS));
+
+        AssetCollector.prepare(request);
+        assertSame(assets, request.getAttribute(AssetCollector.ASSETS_ATTRIBUTE));
+    }
+
+    /**
+     * Creates a {@link ServletRequest} that only supports attributes.
+     */
+    private static ServletRequest createRequest() {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (ServletRequest) Proxy.newProxyInstance(AssetCollectorTest.class.getClassLoader(),
+                        new Class<?>[] {ServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getAttribute":
+                        return attributes.get(args[0]);
+
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link WhitespaceCompactingWriter}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class WhitespaceCompactingWriterTest {
+
+    /**
+     * Whitespaces in text are compacted, the content of raw elements is kept.
+     */
+    @Test
+    public void testCompact() throws IOException {
+        assertEquals("<p> a b\n</p>\n<pre>  x\n\n  y</pre> z",
+                compact("<p>  a   b \n  </p>\n\n<pre>  x\n\n  y</pre>   z"));
+        assertEquals("<div  class=\"a  b\">\n</div>",
+                compact("<div  class=\"a  b\">\n\t</div>"));
+    }
+
+    /**
+     * Quotes in unquoted attribute values are not attribute delimiters.
+     */
+    @Test
+    public void testUnquotedAttribute() throws IOException {
+        assertEquals("<p title=it's> a </p><pre>  x  </pre> b",
+                compact("<p title=it's>  a  </p><pre>  x  </pre>  b"));
+        assertEquals("<p title = 'a>b' data-x=\"\"> a </p>",
+                compact("<p title = 'a>b' data-x=\"\">  a  </p>"));
+    }
+
+    /**
+     * Quotes in text and in comments are ignored, comments are kept as they are.
+     */
+    @Test
+    public void testTextAndComment() throws IOException {
+        assertEquals("<p>don't <b>x</b> y</p>", compact("<p>don't   <b>x</b>   y</p>"));
+        assertEquals("<!-- don't  <pre> -- > --> a <pre>  x  </pre>",
+                compact("<!-- don't  <pre> -- > -->   a   <pre>  x  </pre>"));
+        assertEquals("<!DOCTYPE html>\n<p> a </p>", compact("<!DOCTYPE html>\n\n<p>  a  </p>"));
+    }
+
+    /**
+     * The state is kept between single writes.
+     */
+    @Test
+    public void testSingleChars() throws IOException {
+        String html = "<!-- it's --> <p title=it's>  a  </p><pre>  x  </pre>  b";
+        StringWriter sw = new StringWriter();
+        WhitespaceCompactingWriter writer = new WhitespaceCompactingWriter(sw);
+        for (char ch : html.toCharArray()) {
+            writer.write(ch);
+        }
+        writer.finish();
+        assertEquals(compact(html), sw.toString());
+    }
+
+    private static String compact(String html) throws IOException {
+        StringWriter sw = new StringWriter();
+        WhitespaceCompactingWriter writer = new WhitespaceCompactingWriter(sw);
+        writer.write(html);
+        writer.finish();
+        return sw.toString();
+    }
+
+}
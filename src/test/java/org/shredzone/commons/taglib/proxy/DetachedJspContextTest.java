@@ -0,0 +1,111 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.jsp.PageContext;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DetachedJspContext}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class DetachedJspContextTest {
+
+    /**
+     * The page and request scopes are copied, the application scope is shared.
+     */
+    @Test
+    public void testScopes() {
+        final Map<String, Object> application = new ConcurrentHashMap<>();
+        final ServletContext servletContext = createServletContext(application);
+        TestPageContext page = new TestPageContext(application) {
+            @Override
+            public ServletContext getServletContext() {
+                return servletContext;
+            }
+        };
+        page.setAttribute("p", "page", PageContext.PAGE_SCOPE);
+        page.setAttribute("r", "request", PageContext.REQUEST_SCOPE);
+        application.put("a", "application");
+
+        DetachedJspContext detached = new DetachedJspContext(page);
+        assertEquals("page", detached.findAttribute("p"));
+        assertEquals("request", detached.findAttribute("r"));
+        assertEquals("application", detached.findAttribute("a"));
+        assertNull(detached.getAttribute("s", PageContext.SESSION_SCOPE));
+
+        page.setAttribute("r", "changed", PageContext.REQUEST_SCOPE);
+        detached.setAttribute("p", "detached", PageContext.PAGE_SCOPE);
+        assertEquals("request", detached.getAttribute("r", PageContext.REQUEST_SCOPE));
+        assertEquals("page", page.getAttribute("p"));
+
+        application.put("b", "late");
+        detached.setAttribute("c", "async", PageContext.APPLICATION_SCOPE);
+        detached.removeAttribute("a", PageContext.APPLICATION_SCOPE);
+        assertEquals("late", detached.getAttribute("b", PageContext.APPLICATION_SCOPE));
+        assertEquals("async", application.get("c"));
+        assertFalse(application.containsKey("a"));
+        assertEquals(PageContext.APPLICATION_SCOPE, detached.getAttributesScope("b"));
+        assertEquals(2, Collections.list(detached.getAttributeNamesInScope(PageContext.APPLICATION_SCOPE)).size());
+    }
+
+    /**
+     * Creates a {@link ServletContext} that is backed by the given attribute map.
+     */
+    private static ServletContext createServletContext(final Map<String, Object> attributes) {
+        return (ServletContext) Proxy.newProxyInstance(DetachedJspContextTest.class.getClassLoader(),
+                        new Class<?>[] {ServletContext.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getAttribute":
+                        return attributes.get(args[0]);
+
+                    case "getAttributeNames":
+                        return Collections.enumeration(attributes.keySet());
+
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+
+                    case "removeAttribute":
+                        attributes.remove(args[0]);
+                        return null;
+
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.SimpleTagSupport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.shredzone.commons.taglib.proxy.TagProxyTest.CountingInstanceProvider;
+
+/**
+ * Renders pages with Edge Side Includes, and assembles them by a
+ * {@link LocalEsiProcessor}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class EsiSupportTest {
+
+    private static final CountingInstanceProvider PROVIDER = new CountingInstanceProvider();
+
+    private LocalEsiProcessor processor;
+    private List<String> surrogateControl;
+    private boolean committed;
+
+    @Before
+    public void setup() {
+        processor = new LocalEsiProcessor();
+        surrogateControl = new ArrayList<>();
+        committed = false;
+    }
+
+    /**
+     * The includes are assembled by the surrogate, and equal includes are only fetched
+     * once.
+     */
+    @Test
+    public void testAssemble() throws JspException, IOException {
+        TestPageContext page = createPage();
+        page.getOut().write("<p>");
+        renderTag(page, "world", 2);
+        page.getOut().write("</p><p>");
+        renderTag(page, "world", 2);
+        page.getOut().write("</p><p>");
+        renderTag(page, "a&b", 1);
+        page.getOut().write("</p>");
+
+        String content = page.getContent();
+        assertTrue(content, content.startsWith("<p><esi:include src=\"/taglib-esi/" + EsiTestTagProxy.class.getName()
+                        + "?count=2&amp;name=world\"/></p>"));
+        assertEquals(1, surrogateControl.size());
+        assertEquals("content=\"ESI/1.0\"", surrogateControl.get(0));
+
+        assertEquals("<p>world world </p><p>world world </p><p>a&b </p>",
+                        processor.process(content, surrogateControl.get(0)));
+        assertEquals(2, processor.getFetches());
+    }
+
+    /**
+     * A surrogate does not process the includes without a {@code Surrogate-Control}
+     * header.
+     */
+    @Test
+    public void testUnmarkedPage() throws JspException, IOException {
+        committed = true;
+        TestPageContext page = createPage();
+        renderTag(page, "world", 1);
+
+        String content = page.getContent();
+        assertTrue(surrogateControl.isEmpty());
+        assertEquals(content, processor.process(content, null));
+        assertEquals(0, processor.getFetches());
+    }
+
+    /**
+     * A request with an invalid attribute is rejected, and the target bean is released.
+     */
+    @Test
+    public void testBadRequest() {
+        int released = PROVIDER.released.get();
+        try {
+            processor.fetch("/taglib-esi/" + EsiTestTagProxy.class.getName() + "?count=many");
+            fail("bad request was accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith("status 400"));
+        }
+        assertEquals(released + 1, PROVIDER.released.get());
+    }
+
+    /**
+     * Tags that are not marked for ESI are not rendered.
+     */
+    @Test
+    public void testNotFound() {
+        try {
+            processor.fetch("/taglib-esi/" + TagProxyTest.TestTagProxy.class.getName());
+            fail("non-ESI tag was rendered");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith("status 404"));
+        }
+    }
+
+    private static void renderTag(TestPageContext page, String name, int count) throws JspException, IOException {
+        EsiTestTagProxy proxy = new EsiTestTagProxy();
+        proxy.setJspContext(page);
+        proxy.setParent(null);
+        proxy.setName(name);
+        proxy.setCount(count);
+        proxy.doTag();
+    }
+
+    /**
+     * Creates a page with ESI mode enabled, and a response that records the
+     * {@code Surrogate-Control} header.
+     */
+    private TestPageContext createPage() {
+        final ServletResponse response = (ServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "isCommitted":
+                        return committed;
+
+                    case "addHeader":
+                        assertEquals("Surrogate-Control", args[0]);
+                        surrogateControl.add((String) args[1]);
+                        return null;
+
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+
+        TestPageContext page = new TestPageContext() {
+            @Override
+            public ServletResponse getResponse() {
+                return response;
+            }
+        };
+        page.setAttribute(EsiSupport.ENABLED_ATTRIBUTE, true, PageContext.REQUEST_SCOPE);
+        return page;
+    }
+
+    /**
+     * A tag that writes its name a number of times.
+     */
+    public static class EsiTestTag extends SimpleTagSupport {
+        private String name;
+        private int count;
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void doTag() throws IOException {
+            for (int ix = 0; ix < count; ix++) {
+                getJspContext().getOut().write(name + ' ');
+            }
+        }
+    }
+
+    /**
+     * A proxy like the one generated for {@link EsiTestTag}.
+     */
+    public static class EsiTestTagProxy extends SimpleTagProxy<EsiTestTag> {
+        @Override
+        protected String getBeanName() {
+            return "esiTestTag";
+        }
+
+        @Override
+        protected Class<?> getBeanClass() {
+            return EsiTestTag.class;
+        }
+
+        @Override
+        protected TagInstanceProvider getInstanceProvider() {
+            return PROVIDER;
+        }
+
+        @Override
+        protected boolean isEsi() {
+            return true;
+        }
+
+        @Override
+        protected void setEsiAttribute(String name, String value) {
+            if ("count".equals(name)) {
+                setCount(Integer.parseInt(value));
+                return;
+            }
+            if ("name".equals(name)) {
+                setName(value);
+                return;
+            }
+            super.setEsiAttribute(name, value);
+        }
+
+        public void setCount(int count) {
+            if (isEsiInclude()) {
+                addEsiAttribute("count", count);
+                return;
+            }
+            if (!isFallback()) getTargetBean().setCount(count);
+        }
+
+        public void setName(String name) {
+            if (isEsiInclude()) {
+                addEsiAttribute("name", name);
+                return;
+            }
+            if (!isFallback()) getTargetBean().setName(name);
+        }
+    }
+
+}
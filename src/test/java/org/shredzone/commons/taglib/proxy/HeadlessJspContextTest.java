@@ -0,0 +1,65 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.jsp.PageContext;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HeadlessJspContext}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class HeadlessJspContextTest {
+
+    /**
+     * Removing an attribute by name must not remove it from the shared application
+     * scope.
+     */
+    @Test
+    public void testRemoveKeepsApplicationScope() {
+        Map<String, Object> application = new ConcurrentHashMap<>();
+        application.put(AbstractTagProxy.TAGPROXY_BEANFACTORY_CACHE, "factory");
+        application.put("a", "application");
+
+        HeadlessJspContext context = new HeadlessJspContext(new StringWriter(), application);
+        context.setAttribute("a", "page");
+        context.setAttribute("a", "request", PageContext.REQUEST_SCOPE);
+
+        context.removeAttribute("a");
+        context.removeAttribute(AbstractTagProxy.TAGPROXY_BEANFACTORY_CACHE);
+
+        assertNull(context.getAttribute("a", PageContext.PAGE_SCOPE));
+        assertNull(context.getAttribute("a", PageContext.REQUEST_SCOPE));
+        assertEquals("application", context.findAttribute("a"));
+        assertEquals("factory", application.get(AbstractTagProxy.TAGPROXY_BEANFACTORY_CACHE));
+
+        context.removeAttribute("a", PageContext.APPLICATION_SCOPE);
+        assertFalse(application.containsKey("a"));
+    }
+
+}
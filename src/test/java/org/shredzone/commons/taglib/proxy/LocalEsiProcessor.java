@@ -0,0 +1,216 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.jsp.JspEngineInfo;
+import javax.servlet.jsp.JspFactory;
+import javax.servlet.jsp.PageContext;
+
+/**
+ * A local stand-in for a caching reverse proxy with ESI/1.0 support. Like a surrogate
+ * that follows the Edge Architecture specification, it only processes pages that were
+ * marked by a {@code Surrogate-Control: content="ESI/1.0"} header. Each
+ * {@code <esi:include>} element is replaced by the fragment that is rendered by the
+ * {@link EsiFragmentServlet}. Fragments are cached by their URL.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class LocalEsiProcessor {
+
+    private static final Pattern INCLUDE = Pattern.compile("<esi:include src=\"([^\"]*)\"/>");
+
+    private final EsiFragmentServlet servlet = new EsiFragmentServlet();
+    private final Map<String, String> cache = new HashMap<>();
+    private int fetches;
+
+    /**
+     * Processes a page.
+     *
+     * @param page
+     *            Page content
+     * @param surrogateControl
+     *            Value of the page's {@code Surrogate-Control} header, or {@code null}
+     * @return Assembled page
+     * @throws IOException
+     *             if a fragment could not be fetched
+     */
+    public String process(String page, String surrogateControl) throws IOException {
+        if (surrogateControl == null || !surrogateControl.contains("content=\"ESI/1.0\"")) {
+            return page;
+        }
+
+        StringBuffer sb = new StringBuffer();
+        Matcher m = INCLUDE.matcher(page);
+        while (m.find()) {
+            String src = m.group(1).replace("&amp;", "&");
+            String fragment = cache.get(src);
+            if (fragment == null) {
+                fragment = fetch(src);
+                cache.put(src, fragment);
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(fragment));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Number of fragments that were fetched from the {@link EsiFragmentServlet}.
+     */
+    public int getFetches() {
+        return fetches;
+    }
+
+    /**
+     * Fetches a fragment from the {@link EsiFragmentServlet}.
+     *
+     * @param src
+     *            Fragment URL
+     * @return Rendered fragment
+     * @throws IOException
+     *             if the servlet did not render the fragment
+     */
+    public String fetch(String src) throws IOException {
+        if (!src.startsWith(EsiSupport.DEFAULT_ENDPOINT + '/')) {
+            throw new IOException("Unknown endpoint: " + src);
+        }
+
+        int query = src.indexOf('?');
+        String pathInfo = src.substring(EsiSupport.DEFAULT_ENDPOINT.length(), query >= 0 ? query : src.length());
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (query >= 0) {
+            for (String pair : src.substring(query + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                                URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+
+        final TestPageContext fragmentPage = new TestPageContext();
+        JspFactory previous = JspFactory.getDefaultFactory();
+        JspFactory.setDefaultFactory(new JspFactory() {
+            @Override
+            public PageContext getPageContext(Servlet servlet, ServletRequest request, ServletResponse response,
+                            String errorPageURL, boolean needsSession, int buffer, boolean autoflush) {
+                return fragmentPage;
+            }
+
+            @Override
+            public void releasePageContext(PageContext pc) {
+                // nothing to release
+            }
+
+            @Override
+            public JspEngineInfo getEngineInfo() {
+                return null;
+            }
+        });
+
+        int[] status = {HttpServletResponse.SC_OK};
+        try {
+            fetches++;
+            servlet.doGet(createRequest(pathInfo, parameters), createResponse(status));
+        } catch (ServletException ex) {
+            throw new IOException(ex);
+        } finally {
+            JspFactory.setDefaultFactory(previous);
+        }
+
+        if (status[0] != HttpServletResponse.SC_OK) {
+            throw new IOException("Fragment " + src + " failed with status " + status[0]);
+        }
+        return fragmentPage.getContent();
+    }
+
+    /**
+     * Creates the fragment request.
+     */
+    private static HttpServletRequest createRequest(final String pathInfo, final Map<String, String> parameters) {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (HttpServletRequest) Proxy.newProxyInstance(LocalEsiProcessor.class.getClassLoader(),
+                        new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getPathInfo":
+                        return pathInfo;
+
+                    case "getParameterNames":
+                        return Collections.enumeration(parameters.keySet());
+
+                    case "getParameter":
+                        return parameters.get(args[0]);
+
+                    case "getAttribute":
+                        return attributes.get(args[0]);
+
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the fragment response, which records the status.
+     */
+    private static HttpServletResponse createResponse(final int[] status) {
+        return (HttpServletResponse) Proxy.newProxyInstance(LocalEsiProcessor.class.getClassLoader(),
+                        new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "setContentType":
+                        return null;
+
+                    case "sendError":
+                        status[0] = (Integer) args[0];
+                        return null;
+
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.BodyTag;
+import javax.servlet.jsp.tagext.BodyTagSupport;
+import javax.servlet.jsp.tagext.IterationTag;
+import javax.servlet.jsp.tagext.JspTag;
+import javax.servlet.jsp.tagext.SimpleTagSupport;
+import javax.servlet.jsp.tagext.Tag;
+import javax.servlet.jsp.tagext.TagSupport;
+import javax.servlet.jsp.tagext.TryCatchFinally;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * A load harness that renders pages of realistic shapes through the tag proxies, and
+ * reports the throughput, latency percentiles and allocation rate per page.
+ * <p>
+ * There is no JSP compiler in the test environment, so the pages are written in Java,
+ * the way a JSP compiler like Jasper would translate them. Classic tag handlers are
+ * pooled per thread and reused, and {@link BodyTag} bodies are pushed on the
+ * {@link PageContext}, just like in a web container. The output is kept in memory.
+ * <p>
+ * By default, the harness only runs a short load, so it can be run as unit test. The
+ * load can be configured by system properties:
+ * <ul>
+ * <li>{@code taglib.bench.threads}: number of concurrent threads (default: 4)</li>
+ * <li>{@code taglib.bench.pages}: number of measured pages per shape (default: 200)</li>
+ * <li>{@code taglib.bench.warmup}: number of warm-up pages per thread (default: 20)</li>
+ * </ul>
+ *
+ * @author Richard "Shred" Körber
+ */
+public class PageRenderingBenchmarkTest {
+
+    private static final int THREADS = Integer.getInteger("taglib.bench.threads", 4);
+    private static final int PAGES = Integer.getInteger("taglib.bench.pages", 200);
+    private static final int WARMUP = Integer.getInteger("taglib.bench.warmup", 20);
+
+    private static final int NESTING_DEPTH = 50;
+    private static final int ROWS = 1000;
+    private static final int BODY_TAGS = 200;
+
+    private static boolean allocationCounting;
+
+    @BeforeClass
+    public static void setupClass() {
+        allocationCounting = AllocationCounter.enable();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        AllocationCounter.disable();
+    }
+
+    /**
+     * Deeply nested classic tags.
+     */
+    @Test
+    public void testDeepNesting() throws Exception {
+        String content = benchmark("deep nesting", new Page() {
+            @Override
+            public void render(PageContext pc, HandlerPool pool) throws Exception {
+                nest(pc, pool, null, NESTING_DEPTH);
+            }
+        });
+
+        assertEquals(NESTING_DEPTH, count(content, "<div>"));
+        assertEquals(NESTING_DEPTH, count(content, "</div>"));
+        assertEquals(1, count(content, "depth 0"));
+    }
+
+    /**
+     * An iteration tag with a large number of rows, each one rendering a simple tag.
+     */
+    @Test
+    public void testLargeIteration() throws Exception {
+        String content = benchmark("iteration", new Page() {
+            @Override
+            public void render(final PageContext pc, HandlerPool pool) throws Exception {
+                pc.getOut().write("<table>");
+                RowsTagProxy rows = pool.get(RowsTagProxy.class, pc, null);
+                rows.setCount(ROWS);
+                rows.setVar("row");
+                invoke(rows, pc, new Body() {
+                    @Override
+                    public void render(Tag parent) throws Exception {
+                        pc.getOut().write("<tr><td>");
+                        value(pc, parent, pc.getAttribute("row"));
+                        pc.getOut().write("</td></tr>");
+                    }
+                });
+                pool.reuse(rows);
+                pc.getOut().write("</table>");
+            }
+        });
+
+        assertEquals(ROWS, count(content, "<tr>"));
+        assertTrue(content.contains("<td>0</td>"));
+        assertTrue(content.contains("<td>" + (ROWS - 1) + "</td>"));
+    }
+
+    /**
+     * Many {@link BodyTag} that buffer and transform their bodies.
+     */
+    @Test
+    public void testBodyTags() throws Exception {
+        String content = benchmark("body tags", new Page() {
+            @Override
+            public void render(final PageContext pc, HandlerPool pool) throws Exception {
+                for (int ix = 0; ix < BODY_TAGS; ix++) {
+                    final int index = ix;
+                    UpperTagProxy upper = pool.get(UpperTagProxy.class, pc, null);
+                    invoke(upper, pc, new Body() {
+                        @Override
+                        public void render(Tag parent) throws Exception {
+                            pc.getOut().write("<p>paragraph ");
+                            value(pc, parent, index);
+                            pc.getOut().write("</p>\n");
+                        }
+                    });
+                    pool.reuse(upper);
+                }
+            }
+        });
+
+        assertEquals(BODY_TAGS, count(content, "<P>PARAGRAPH "));
+        assertFalse(content.contains("paragraph"));
+    }
+
+    /**
+     * Renders a page concurrently, prints the results, and returns the content of the
+     * last rendered page.
+     */
+    private static String benchmark(String name, final Page page) throws Exception {
+        final int perThread = Math.max(PAGES / THREADS, 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int ix = 0; ix < THREADS; ix++) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        return renderPages(page, perThread, start);
+                    }
+                }));
+            }
+
+            long startTime = System.nanoTime();
+            start.countDown();
+
+            long[] latencies = new long[0];
+            long bytes = 0;
+            String content = null;
+            for (Future<Result> future : futures) {
+                Result result = future.get();
+                int offset = latencies.length;
+                latencies = Arrays.copyOf(latencies, offset + result.latencies.length);
+                System.arraycopy(result.latencies, 0, latencies, offset, result.latencies.length);
+                bytes += result.bytes;
+                assertTrue("different page contents", content == null || content.equals(result.content));
+                content = result.content;
+            }
+            long elapsed = System.nanoTime() - startTime;
+
+            Arrays.sort(latencies);
+            System.out.printf(Locale.ENGLISH,
+                    "%-14s %2d threads %6d pages %9.1f pages/s  p50 %7.3f ms  p90 %7.3f ms  p99 %7.3f ms  %s%n",
+                    name, THREADS, latencies.length,
+                    latencies.length * 1.0e9 / elapsed,
+                    percentile(latencies, 50) / 1.0e6,
+                    percentile(latencies, 90) / 1.0e6,
+                    percentile(latencies, 99) / 1.0e6,
+                    allocationCounting
+                        ? String.format(Locale.ENGLISH, "%9.1f KiB/page", bytes / 1024.0 / latencies.length)
+                        : "allocation n/a");
+            return content;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Renders the pages of a single thread. Warm-up pages are rendered before waiting for
+     * the start signal.
+     */
+    private static Result renderPages(Page page, int pages, CountDownLatch start) throws Exception {
+        HandlerPool pool = new HandlerPool();
+        try {
+            for (int ix = 0; ix < WARMUP; ix++) {
+                page.render(new TestPageContext(), pool);
+            }
+
+            start.await();
+
+            Result result = new Result();
+            result.latencies = new long[pages];
+            for (int ix = 0; ix < pages; ix++) {
+                TestPageContext pc = new TestPageContext();
+                long bytesBefore = allocationCounting ? AllocationCounter.currentThreadAllocatedBytes() : 0L;
+                long before = System.nanoTime();
+                page.render(pc, pool);
+                result.latencies[ix] = System.nanoTime() - before;
+                if (allocationCounting) {
+                    result.bytes += AllocationCounter.currentThreadAllocatedBytes() - bytesBefore;
+                }
+                result.content = pc.getContent();
+            }
+            return result;
+        } finally {
+            pool.releaseAll();
+        }
+    }
+
+    /**
+     * Renders nested tags recursively.
+     */
+    private static void nest(final PageContext pc, final HandlerPool pool, Tag parent, final int depth)
+    throws Exception {
+        if (depth == 0) {
+            value(pc, parent, "depth 0");
+            return;
+        }
+
+        NestTagProxy nest = pool.get(NestTagProxy.class, pc, parent);
+        invoke(nest, pc, new Body() {
+            @Override
+            public void render(Tag parent) throws Exception {
+                nest(pc, pool, parent, depth - 1);
+            }
+        });
+        pool.reuse(nest);
+    }
+
+    /**
+     * Renders a simple tag. Simple tags are never pooled.
+     */
+    private static void value(PageContext pc, JspTag parent, Object value) throws JspException, IOException {
+        ValueTagProxy tag = new ValueTagProxy();
+        tag.setJspContext(pc);
+        tag.setParent(parent);
+        tag.setValue(value);
+        tag.doTag();
+    }
+
+    /**
+     * Runs the lifecycle of a classic tag handler that was set up by
+     * {@link HandlerPool#get(Class, PageContext, Tag)}, like the code generated by a JSP
+     * compiler.
+     */
+    private static <T extends Tag & TryCatchFinally> void invoke(T handler, PageContext pc, Body body)
+    throws Exception {
+        try {
+            int result = handler.doStartTag();
+            if (result != Tag.SKIP_BODY) {
+                if (result != Tag.EVAL_BODY_INCLUDE) {
+                    BodyContent bodyContent = pc.pushBody();
+                    ((BodyTag) handler).setBodyContent(bodyContent);
+                    ((BodyTag) handler).doInitBody();
+                }
+                try {
+                    do {
+                        body.render(handler);
+                    } while (handler instanceof IterationTag
+                            && ((IterationTag) handler).doAfterBody() == IterationTag.EVAL_BODY_AGAIN);
+                } finally {
+                    if (result != Tag.EVAL_BODY_INCLUDE) {
+                        pc.popBody();
+                    }
+                }
+            }
+            handler.doEndTag();
+        } catch (Throwable t) {
+            try {
+                handler.doCatch(t);
+            } catch (Exception | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new JspException(ex);
+            }
+        } finally {
+            handler.doFinally();
+        }
+    }
+
+    /**
+     * Counts the occurrences of a string.
+     */
+    private static int count(String content, String str) {
+        int count = 0;
+        for (int ix = content.indexOf(str); ix >= 0; ix = content.indexOf(str, ix + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the percentile of the sorted values.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    /**
+     * A page, translated to Java.
+     */
+    private interface Page {
+        void render(PageContext pc, HandlerPool pool) throws Exception;
+    }
+
+    /**
+     * A tag body, translated to Java.
+     */
+    private interface Body {
+        void render(Tag parent) throws Exception;
+    }
+
+    /**
+     * Results of a thread.
+     */
+    private static class Result {
+        long[] latencies;
+        long bytes;
+        String content;
+    }
+
+    /**
+     * A pool of classic tag handlers, like the tag handler pools of a web container.
+     */
+    private static class HandlerPool {
+        private final Map<Class<?>, Deque<Tag>> handlers = new HashMap<>();
+
+        <T extends Tag> T get(Class<T> type, PageContext pc, Tag parent) throws ReflectiveOperationException {
+            Deque<Tag> pooled = handlers.get(type);
+            Tag handler = pooled != null ? pooled.poll() : null;
+            T result = type.cast(handler != null ? handler : type.getConstructor().newInstance());
+            result.setPageContext(pc);
+            result.setParent(parent);
+            return result;
+        }
+
+        void reuse(Tag handler) {
+            Deque<Tag> pooled = handlers.get(handler.getClass());
+            if (pooled == null) {
+                pooled = new ArrayDeque<>();
+                handlers.put(handler.getClass(), pooled);
+            }
+            pooled.push(handler);
+        }
+
+        void releaseAll() {
+            for (Deque<Tag> pooled : handlers.values()) {
+                for (Tag handler : pooled) {
+                    handler.release();
+                }
+            }
+            handlers.clear();
+        }
+    }
+
+    /**
+     * Writes a {@code div} element around its body.
+     */
+    public static class NestTag extends TagSupport {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int doStartTag() throws JspException {
+            try {
+                pageContext.getOut().write("<div>");
+            } catch (IOException ex) {
+                throw new JspException(ex);
+            }
+            return EVAL_BODY_INCLUDE;
+        }
+
+        @Override
+        public int doEndTag() throws JspException {
+            try {
+                pageContext.getOut().write("</div>");
+            } catch (IOException ex) {
+                throw new JspException(ex);
+            }
+            return EVAL_PAGE;
+        }
+    }
+
+    /**
+     * Iterates over a number of rows.
+     */
+    public static class RowsTag extends TagSupport {
+        private static final long serialVersionUID = 1L;
+
+        private int count;
+        private String var;
+        private int index;
+
+        public void setCount(int count) { this.count = count; }
+        public void setVar(String var)  { this.var = var; }
+
+        @Override
+        public int doStartTag() {
+            index = 0;
+            if (index >= count) {
+                return SKIP_BODY;
+            }
+            pageContext.setAttribute(var, index);
+            return EVAL_BODY_INCLUDE;
+        }
+
+        @Override
+        public int doAfterBody() {
+            if (++index >= count) {
+                return SKIP_BODY;
+            }
+            pageContext.setAttribute(var, index);
+            return EVAL_BODY_AGAIN;
+        }
+
+        @Override
+        public int doEndTag() {
+            pageContext.removeAttribute(var, PageContext.PAGE_SCOPE);
+            return EVAL_PAGE;
+        }
+    }
+
+    /**
+     * Converts its buffered body to upper case.
+     */
+    public static class UpperTag extends BodyTagSupport {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int doEndTag() throws JspException {
+            try {
+                pageContext.getOut().write(getBodyContent().getString().toUpperCase(Locale.ENGLISH));
+            } catch (IOException ex) {
+                throw new JspException(ex);
+            }
+            return EVAL_PAGE;
+        }
+    }
+
+    /**
+     * Writes a value.
+     */
+    public static class ValueTag extends SimpleTagSupport {
+        private Object value;
+
+        public void setValue(Object value) { this.value = value; }
+
+        @Override
+        public void doTag() throws IOException {
+            getJspContext().getOut().write(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Proxies, like the ones generated by the annotation processor.
+     */
+    public static class NestTagProxy extends TagProxy<NestTag> implements TryCatchFinally {
+        private static final TagInstanceProvider PROVIDER = new ConstructorTagInstanceProvider();
+
+        @Override protected String getBeanName()                     { return "benchNestTag"; }
+        @Override protected Class<?> getBeanClass()                  { return NestTag.class; }
+        @Override protected TagInstanceProvider getInstanceProvider() { return PROVIDER; }
+    }
+
+    public static class RowsTagProxy extends IterationTagProxy<RowsTag> implements TryCatchFinally {
+        private static final TagInstanceProvider PROVIDER = new ConstructorTagInstanceProvider();
+
+        @Override protected String getBeanName()                     { return "benchRowsTag"; }
+        @Override protected Class<?> getBeanClass()                  { return RowsTag.class; }
+        @Override protected TagInstanceProvider getInstanceProvider() { return PROVIDER; }
+
+        public void setCount(int count) { getTargetBean().setCount(count); }
+        public void setVar(String var)  { getTargetBean().setVar(var); }
+    }
+
+    public static class UpperTagProxy extends BodyTagProxy<UpperTag> implements TryCatchFinally {
+        private static final TagInstanceProvider PROVIDER = new ConstructorTagInstanceProvider();
+
+        @Override protected String getBeanName()                     { return "benchUpperTag"; }
+        @Override protected Class<?> getBeanClass()                  { return UpperTag.class; }
+        @Override protected TagInstanceProvider getInstanceProvider() { return PROVIDER; }
+    }
+
+    public static class ValueTagProxy extends SimpleTagProxy<ValueTag> {
+        private static final TagInstanceProvider PROVIDER = new ConstructorTagInstanceProvider();
+
+        @Override protected String getBeanName()                     { return "benchValueTag"; }
+        @Override protected Class<?> getBeanClass()                  { return ValueTag.class; }
+        @Override protected TagInstanceProvider getInstanceProvider() { return PROVIDER; }
+
+        public void setValue(Object value) { getTargetBean().setValue(value); }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import javax.servlet.jsp.tagext.TagSupport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.shredzone.commons.taglib.proxy.TagProxyTest.CountingInstanceProvider;
+
+/**
+ * Unit tests for {@link PooledTagInstanceProvider}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class PooledTagInstanceProviderTest {
+
+    private CountingInstanceProvider delegate;
+    private PooledTagInstanceProvider provider;
+
+    @Before
+    public void setup() {
+        delegate = new CountingInstanceProvider();
+        provider = new PooledTagInstanceProvider(delegate, 2);
+    }
+
+    /**
+     * Reusable beans are reset and cleared before they are pooled, and then reused.
+     */
+    @Test
+    public void testReusableBeanIsReset() {
+        ReusableTestTag tag = new ReusableTestTag();
+        tag.setPageContext(new TestPageContext());
+        tag.setParent(new TagSupport());
+        tag.setValue("foo");
+
+        provider.releaseInstance(tag);
+
+        assertNull(tag.getPageContext());
+        assertNull(tag.getParent());
+        assertNull(tag.value);
+        assertEquals(1, provider.getIdleCount());
+        assertEquals(0, delegate.released.get());
+
+        assertSame(tag, provider.createInstance(createContext()));
+        assertEquals(0, provider.getIdleCount());
+        assertEquals(0, delegate.created.get());
+    }
+
+    /**
+     * Beans that do not implement {@link ReusableTag} are never pooled.
+     */
+    @Test
+    public void testOtherBeansAreNotPooled() {
+        TagSupport tag = new TagSupport();
+        provider.releaseInstance(tag);
+
+        assertEquals(0, provider.getIdleCount());
+        assertEquals(1, delegate.released.get());
+    }
+
+    /**
+     * Beans exceeding the maximum number of idle beans are passed back to the delegate.
+     */
+    @Test
+    public void testMaxIdle() {
+        provider.releaseInstance(new ReusableTestTag());
+        provider.releaseInstance(new ReusableTestTag());
+        provider.releaseInstance(new ReusableTestTag());
+
+        assertEquals(2, provider.getIdleCount());
+        assertEquals(1, delegate.released.get());
+    }
+
+    private TagInstanceContext createContext() {
+        return new TagInstanceContext(new TagProxyTest.TestTagProxy(provider));
+    }
+
+    /**
+     * A tag that can be reused.
+     */
+    public static class ReusableTestTag extends TagSupport implements ReusableTag {
+        private static final long serialVersionUID = 1L;
+
+        private String value;
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+
+        public javax.servlet.jsp.PageContext getPageContext() {
+            return pageContext;
+        }
+
+        @Override
+        public void reset() {
+            value = null;
+        }
+    }
+
+}
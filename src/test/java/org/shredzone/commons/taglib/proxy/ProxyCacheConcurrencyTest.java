@@ -0,0 +1,163 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.shredzone.commons.taglib.proxy.TagProxyTest.TestTag;
+import org.shredzone.commons.taglib.proxy.TagProxyTest.TestTagProxy;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+/**
+ * Checks the caches of the proxy runtime under racing first requests. Each round starts
+ * with empty caches, and a number of threads access them at the same time.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class ProxyCacheConcurrencyTest {
+
+    private static final String SERVLET_CONTEXT_PREFIX = "org.springframework.web.servlet.FrameworkServlet.CONTEXT.";
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * All racing requests find the same {@link BeanFactory}, and the cache refers to it.
+     * <p>
+     * The application scope is a {@link ConcurrentHashMap}, as servlet context
+     * attributes are thread-safe in all containers. So this test does not look for an
+     * unsafe publication of the cache entry, which the servlet context rules out. It
+     * proves that the proxy keeps no lazily initialized state of its own besides the
+     * attribute, and that racing lookups agree on the {@link BeanFactory} and the cache.
+     */
+    @Test
+    public void testBeanFactoryCache() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            final Map<String, Object> applicationScope = new ConcurrentHashMap<>();
+            BeanFactory bf = new DefaultListableBeanFactory();
+            applicationScope.put(SERVLET_CONTEXT_PREFIX + "round" + round, bf);
+
+            final TestTagProxy proxy = new TestTagProxy(new ConstructorTagInstanceProvider());
+            List<BeanFactory> results = race(new Callable<BeanFactory>() {
+                @Override
+                public BeanFactory call() {
+                    return proxy.getBeanFactory(new TestPageContext(applicationScope));
+                }
+            });
+
+            for (BeanFactory result : results) {
+                assertSame(bf, result);
+            }
+            assertSame(bf, applicationScope.get(AbstractTagProxy.TAGPROXY_BEANFACTORY_CACHE));
+        }
+    }
+
+    /**
+     * All racing requests get the same {@link RenderGuard} of a tag.
+     */
+    @Test
+    public void testRenderGuardCache() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            final String beanName = "racingGuard" + round;
+            List<RenderGuard> results = race(new Callable<RenderGuard>() {
+                @Override
+                public RenderGuard call() {
+                    return RenderGuard.forBean(beanName);
+                }
+            });
+
+            for (RenderGuard result : results) {
+                assertSame(RenderGuard.forBean(beanName), result);
+            }
+        }
+    }
+
+    /**
+     * All racing requests can use the constructor cache of a
+     * {@link ConstructorTagInstanceProvider}.
+     */
+    @Test
+    public void testConstructorCache() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            final ConstructorTagInstanceProvider provider = new ConstructorTagInstanceProvider();
+            final TestTagProxy proxy = new TestTagProxy(provider);
+            List<Object> results = race(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return provider.createInstance(new TagInstanceContext(proxy));
+                }
+            });
+
+            for (Object result : results) {
+                assertTrue(result instanceof TestTag);
+            }
+        }
+    }
+
+    /**
+     * Invokes the {@link Callable} by all threads at the same time, and returns the
+     * results.
+     */
+    private <T> List<T> race(final Callable<T> callable) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int ix = 0; ix < THREADS; ix++) {
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    barrier.await();
+                    return callable.call();
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+}
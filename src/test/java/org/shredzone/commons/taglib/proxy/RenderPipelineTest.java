@@ -0,0 +1,262 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.SimpleTagSupport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.shredzone.commons.taglib.proxy.TagProxyTest.CountingInstanceProvider;
+
+/**
+ * Unit tests for {@link RenderPipeline}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class RenderPipelineTest {
+
+    private QueueingExecutor executor;
+    private RenderPipeline pipeline;
+    private AtomicInteger rendered;
+    private AtomicInteger released;
+
+    @Before
+    public void setup() {
+        executor = new QueueingExecutor();
+        pipeline = RenderPipeline.start(createRequest(), executor);
+        rendered = new AtomicInteger();
+        released = new AtomicInteger();
+    }
+
+    /**
+     * A completed rendering is written by finish(), and released once.
+     */
+    @Test
+    public void testCompletedRendering() throws IOException {
+        StringWriter page = new StringWriter();
+        pipeline.submit(page, "div", "wait", new CountingRenderer("done"), new CountingRelease());
+        assertEquals(0, released.get());
+
+        executor.runAll();
+        assertEquals(1, rendered.get());
+        assertEquals(1, released.get());
+
+        StringWriter out = new StringWriter();
+        pipeline.finish(out);
+        assertTrue(page.toString().endsWith("\">wait</div>"));
+        assertTrue(out.toString().contains("\"done\""));
+        assertEquals(1, released.get());
+    }
+
+    /**
+     * A rendering that is cancelled while it is still queued is released, although its
+     * renderer is never invoked.
+     */
+    @Test
+    public void testCancelQueuedRendering() throws IOException {
+        pipeline.submit(new StringWriter(), "div", "", new CountingRenderer("never"), new CountingRelease());
+
+        pipeline.cancel();
+        assertEquals(0, rendered.get());
+        assertEquals(1, released.get());
+
+        executor.runAll();
+        assertEquals(0, rendered.get());
+        assertEquals(1, released.get());
+    }
+
+    /**
+     * A queued asynchronous tag that is cancelled returns its render permit and its
+     * target bean.
+     */
+    @Test
+    public void testCancelQueuedTag() throws JspException, IOException {
+        CountingInstanceProvider provider = new CountingInstanceProvider();
+        RenderGuard guard = RenderGuard.forBean("asyncTestTag");
+
+        for (int ix = 0; ix < 3; ix++) {
+            TestPageContext page = new TestPageContext();
+            page.setAttribute(RenderPipeline.PIPELINE_ATTRIBUTE, pipeline, PageContext.REQUEST_SCOPE);
+
+            AsyncTestTagProxy proxy = new AsyncTestTagProxy(provider);
+            proxy.setJspContext(page);
+            proxy.setParent(null);
+            proxy.doTag();
+
+            assertTrue(page.getContent().endsWith("\">wait</div>"));
+            assertEquals(1, guard.getActive());
+
+            pipeline.cancel();
+            assertEquals(0, guard.getActive());
+            assertEquals(ix + 1, provider.released.get());
+
+            pipeline = RenderPipeline.start(createRequest(), executor);
+        }
+
+        executor.runAll();
+        assertEquals(3, provider.created.get());
+        assertEquals(3, provider.released.get());
+        assertEquals(0, guard.getActive());
+    }
+
+    /**
+     * Creates a {@link ServletRequest} that only supports attributes.
+     */
+    private static ServletRequest createRequest() {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (ServletRequest) Proxy.newProxyInstance(RenderPipelineTest.class.getClassLoader(),
+                        new Class<?>[] {ServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getAttribute":
+                        return attributes.get(args[0]);
+
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+
+                    case "removeAttribute":
+                        attributes.remove(args[0]);
+                        return null;
+
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * An {@link Executor} that queues all tasks until {@link #runAll()} is invoked.
+     */
+    private static class QueueingExecutor implements Executor {
+        private final List<Runnable> queue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        public void runAll() {
+            for (Runnable command : queue) {
+                command.run();
+            }
+            queue.clear();
+        }
+    }
+
+    /**
+     * A renderer that counts its invocations.
+     */
+    private class CountingRenderer implements Callable<String> {
+        private final String content;
+
+        public CountingRenderer(String content) {
+            this.content = content;
+        }
+
+        @Override
+        public String call() {
+            rendered.incrementAndGet();
+            return content;
+        }
+    }
+
+    /**
+     * A release hook that counts its invocations.
+     */
+    private class CountingRelease implements Runnable {
+        @Override
+        public void run() {
+            released.incrementAndGet();
+        }
+    }
+
+    /**
+     * An asynchronous tag.
+     */
+    public static class AsyncTestTag extends SimpleTagSupport {
+        @Override
+        public void doTag() throws IOException {
+            getJspContext().getOut().write("async");
+        }
+    }
+
+    /**
+     * A proxy like the one generated for {@link AsyncTestTag}, with a concurrency limit.
+     */
+    public static class AsyncTestTagProxy extends SimpleTagProxy<AsyncTestTag> {
+        private final TagInstanceProvider provider;
+
+        public AsyncTestTagProxy(TagInstanceProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        protected String getBeanName() {
+            return "asyncTestTag";
+        }
+
+        @Override
+        protected Class<?> getBeanClass() {
+            return AsyncTestTag.class;
+        }
+
+        @Override
+        protected TagInstanceProvider getInstanceProvider() {
+            return provider;
+        }
+
+        @Override
+        protected int getMaxConcurrency() {
+            return 1;
+        }
+
+        @Override
+        protected boolean isAsync() {
+            return true;
+        }
+
+        @Override
+        protected String getPlaceholder() {
+            return "wait";
+        }
+    }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.Tag;
+import javax.servlet.jsp.tagext.TagSupport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the target bean lifecycle of {@link TagProxy}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class TagProxyTest {
+
+    private CountingInstanceProvider provider;
+    private TestTagProxy proxy;
+
+    @Before
+    public void setup() {
+        provider = new CountingInstanceProvider();
+        proxy = new TestTagProxy(provider);
+    }
+
+    /**
+     * The target bean is kept after the tag lifecycle, so a reused proxy still knows the
+     * attributes that were set before.
+     */
+    @Test
+    public void testBeanIsKeptForReuse() throws JspException {
+        proxy.setPageContext(new TestPageContext());
+        proxy.setParent(null);
+        proxy.setValue("foo");
+        runLifecycle(proxy);
+
+        TestTag target = proxy.getTargetBean();
+        assertFalse(target.released);
+        assertEquals(1, provider.created.get());
+        assertEquals(0, provider.released.get());
+
+        TestPageContext nextPage = new TestPageContext();
+        proxy.setPageContext(nextPage);
+        proxy.setParent(null);
+        assertSame(nextPage, target.getPageContext());
+        runLifecycle(proxy);
+
+        assertSame(target, proxy.getTargetBean());
+        assertNull(target.getPageContext());
+        assertEquals("foo", target.value);
+        assertEquals(1, provider.created.get());
+        assertEquals(0, provider.released.get());
+    }
+
+    /**
+     * The target bean is released when the container releases the proxy.
+     */
+    @Test
+    public void testBeanIsReleased() throws JspException {
+        proxy.setPageContext(new TestPageContext());
+        proxy.setParent(null);
+        runLifecycle(proxy);
+        TestTag target = proxy.getTargetBean();
+
+        proxy.release();
+
+        assertTrue(target.released);
+        assertFalse(proxy.hasTargetBean());
+        assertEquals(1, provider.created.get());
+        assertEquals(1, provider.released.get());
+
+        try {
+            proxy.getTargetBean();
+            fail("target bean is still accessible");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * A released proxy that is still referenced, e.g. by a tag handler pool, does not
+     * keep its target bean or the page alive.
+     */
+    @Test
+    public void testReleasedProxyRetainsNothing() throws JspException {
+        TestPageContext page = new TestPageContext();
+        page.setAttribute("payload", new byte[1024 * 1024]);
+        proxy.setPageContext(page);
+        proxy.setParent(null);
+        runLifecycle(proxy);
+
+        WeakReference<TestPageContext> pageRef = new WeakReference<>(page);
+        WeakReference<TestTag> targetRef = new WeakReference<>(proxy.getTargetBean());
+        page = null;
+
+        proxy.release();
+
+        assertTrue("page is retained", isCollected(pageRef));
+        assertTrue("target bean is retained", isCollected(targetRef));
+        assertNotNull(proxy);
+    }
+
+    /**
+     * A proxy that is kept for reuse, but was not released, does not keep the previous
+     * page alive.
+     */
+    @Test
+    public void testReusedProxyRetainsNoPage() throws JspException {
+        TestPageContext page = new TestPageContext();
+        page.setAttribute("payload", new byte[1024 * 1024]);
+        proxy.setPageContext(page);
+        proxy.setParent(new TagSupport());
+        proxy.setValue("foo");
+        runLifecycle(proxy);
+
+        WeakReference<TestPageContext> pageRef = new WeakReference<>(page);
+        page = null;
+
+        assertTrue("page is retained", isCollected(pageRef));
+        assertTrue(proxy.hasTargetBean());
+        assertNull(proxy.getTargetBean().getParent());
+        assertEquals("foo", proxy.getTargetBean().value);
+    }
+
+    /**
+     * A skipped tag keeps its target bean, so attributes that are set while it is
+     * skipped are still known on the next use.
+     */
+    @Test
+    public void testSkippedTagKeepsBean() throws JspException {
+        LimitedTestTagProxy running = new LimitedTestTagProxy(provider);
+        LimitedTestTagProxy skipped = new LimitedTestTagProxy(provider);
+
+        TestPageContext runningPage = new TestPageContext();
+        running.setPageContext(runningPage);
+        running.setParent(null);
+
+        TestPageContext skippedPage = new TestPageContext();
+        skipped.setPageContext(skippedPage);
+        skipped.setParent(null);
+        skipped.setValue("bar");
+        assertTrue(skipped.isFallback());
+        runLifecycle(skipped);
+        assertEquals("skipped", skippedPage.getContent());
+
+        runLifecycle(running);
+
+        TestTag target = skipped.getTargetBean();
+        assertEquals("bar", target.value);
+
+        skipped.setPageContext(new TestPageContext());
+        skipped.setParent(null);
+        assertFalse(skipped.isFallback());
+        assertSame(target, skipped.getTargetBean());
+        assertEquals("bar", target.value);
+        runLifecycle(skipped);
+        assertEquals(0, provider.released.get());
+    }
+
+    /**
+     * Runs the part of the lifecycle that is repeated on each use of the tag.
+     */
+    private static void runLifecycle(TestTagProxy proxy) throws JspException {
+        try {
+            assertEquals(Tag.SKIP_BODY, proxy.doStartTag());
+            assertEquals(Tag.EVAL_PAGE, proxy.doEndTag());
+        } finally {
+            proxy.doFinally();
+        }
+    }
+
+    /**
+     * Runs the garbage collector until the referenced object was collected, or gives up
+     * after a while.
+     */
+    private static boolean isCollected(WeakReference<?> ref) {
+        for (int ix = 0; ix < 50 && ref.get() != null; ix++) {
+            System.gc();
+            try {
+                Thread.sleep(20L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return ref.get() == null;
+    }
+
+    /**
+     * A tag that records its attribute and whether it was released.
+     */
+    public static class TestTag extends TagSupport {
+        private static final long serialVersionUID = 1L;
+
+        private String value;
+        private boolean released;
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+
+        public javax.servlet.jsp.PageContext getPageContext() {
+            return pageContext;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+            super.release();
+        }
+    }
+
+    /**
+     * A proxy like the one generated for {@link TestTag}.
+     */
+    public static class TestTagProxy extends TagProxy<TestTag> {
+        private final TagInstanceProvider provider;
+
+        public TestTagProxy(TagInstanceProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        protected String getBeanName() {
+            return "testTag";
+        }
+
+        @Override
+        protected Class<?> getBeanClass() {
+            return TestTag.class;
+        }
+
+        @Override
+        protected TagInstanceProvider getInstanceProvider() {
+            return provider;
+        }
+
+        public void setValue(String value) {
+            getTargetBean().setValue(value);
+        }
+    }
+
+    /**
+     * A {@link TestTagProxy} that can only be rendered once at a time.
+     */
+    public static class LimitedTestTagProxy extends TestTagProxy {
+        public LimitedTestTagProxy(TagInstanceProvider provider) {
+            super(provider);
+        }
+
+        @Override
+        protected String getBeanName() {
+            return "limitedTestTag";
+        }
+
+        @Override
+        protected int getMaxConcurrency() {
+            return 1;
+        }
+
+        @Override
+        protected String getFallback() {
+            return "skipped";
+        }
+    }
+
+    /**
+     * A {@link TagInstanceProvider} that counts the created and released beans, without
+     * keeping references to them.
+     */
+    public static class CountingInstanceProvider extends ConstructorTagInstanceProvider {
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+
+        @Override
+        public Object createInstance(TagInstanceContext context) {
+            created.incrementAndGet();
+            return super.createInstance(context);
+        }
+
+        @Override
+        public void releaseInstance(Object instance) {
+            released.incrementAndGet();
+            super.releaseInstance(instance);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.BodyContent;
+
+/**
+ * A {@link BodyContent} for unit tests, which buffers the body in memory.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class TestBodyContent extends BodyContent {
+
+    private final CharArrayWriter buffer = new CharArrayWriter();
+
+    /**
+     * Creates a new {@link TestBodyContent}.
+     *
+     * @param enclosing
+     *            Enclosing {@link JspWriter}
+     */
+    public TestBodyContent(JspWriter enclosing) {
+        super(enclosing);
+    }
+
+    @Override
+    public Reader getReader() {
+        return new StringReader(getString());
+    }
+
+    @Override
+    public String getString() {
+        return buffer.toString();
+    }
+
+    @Override
+    public void writeOut(Writer out) throws IOException {
+        buffer.writeTo(out);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        buffer.write(cbuf, off, len);
+    }
+
+    @Override
+    public void newLine()                 { buffer.append('\n'); }
+
+    @Override
+    public void print(boolean b)          { buffer.append(String.valueOf(b)); }
+
+    @Override
+    public void print(char c)             { buffer.append(c); }
+
+    @Override
+    public void print(int i)              { buffer.append(String.valueOf(i)); }
+
+    @Override
+    public void print(long l)             { buffer.append(String.valueOf(l)); }
+
+    @Override
+    public void print(float f)            { buffer.append(String.valueOf(f)); }
+
+    @Override
+    public void print(double d)           { buffer.append(String.valueOf(d)); }
+
+    @Override
+    public void print(char[] s)           { buffer.append(new String(s)); }
+
+    @Override
+    public void print(String s)           { buffer.append(String.valueOf(s)); }
+
+    @Override
+    public void print(Object obj)         { buffer.append(String.valueOf(obj)); }
+
+    @Override
+    public void println()                 { newLine(); }
+
+    @Override
+    public void println(boolean x)        { print(x); newLine(); }
+
+    @Override
+    public void println(char x)           { print(x); newLine(); }
+
+    @Override
+    public void println(int x)            { print(x); newLine(); }
+
+    @Override
+    public void println(long x)           { print(x); newLine(); }
+
+    @Override
+    public void println(float x)          { print(x); newLine(); }
+
+    @Override
+    public void println(double x)         { print(x); newLine(); }
+
+    @Override
+    public void println(char[] x)         { print(x); newLine(); }
+
+    @Override
+    public void println(String x)         { print(x); newLine(); }
+
+    @Override
+    public void println(Object x)         { print(x); newLine(); }
+
+    @Override
+    public void clear() {
+        buffer.reset();
+    }
+
+    @Override
+    public void clearBuffer() {
+        buffer.reset();
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    @Override
+    public int getRemaining() {
+        return 0;
+    }
+
+}
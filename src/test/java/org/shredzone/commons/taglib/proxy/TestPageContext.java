@@ -0,0 +1,258 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.el.ExpressionEvaluator;
+import javax.servlet.jsp.el.VariableResolver;
+import javax.servlet.jsp.tagext.BodyContent;
+
+/**
+ * A minimal {@link PageContext} for unit tests. It keeps the attributes of all scopes in
+ * maps, and writes the output to a {@link StringWriter}. Bodies can be pushed like in
+ * a web container. Application scoped attributes
+ * can be shared between several instances.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class TestPageContext extends PageContext {
+
+    private final Map<Integer, Map<String, Object>> scopes = new HashMap<>();
+    private final StringWriter buffer = new StringWriter();
+    private final Deque<JspWriter> writers = new ArrayDeque<>();
+
+    /**
+     * Creates a new {@link TestPageContext} with its own application scope.
+     */
+    public TestPageContext() {
+        this(new ConcurrentHashMap<String, Object>());
+    }
+
+    /**
+     * Creates a new {@link TestPageContext}.
+     *
+     * @param applicationScope
+     *            Attributes of the application scope, may be shared with other
+     *            {@link TestPageContext} instances. A shared map must be thread-safe.
+     */
+    public TestPageContext(Map<String, Object> applicationScope) {
+        scopes.put(PAGE_SCOPE, new HashMap<String, Object>());
+        scopes.put(REQUEST_SCOPE, new HashMap<String, Object>());
+        scopes.put(SESSION_SCOPE, new HashMap<String, Object>());
+        scopes.put(APPLICATION_SCOPE, applicationScope);
+        writers.push(new DetachedJspWriter(buffer));
+    }
+
+    /**
+     * Returns the output that has been written so far.
+     */
+    public String getContent() {
+        return buffer.toString();
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        setAttribute(name, value, PAGE_SCOPE);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, int scope) {
+        if (value != null) {
+            scopes.get(scope).put(name, value);
+        } else {
+            scopes.get(scope).remove(name);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return getAttribute(name, PAGE_SCOPE);
+    }
+
+    @Override
+    public Object getAttribute(String name, int scope) {
+        return scopes.get(scope).get(name);
+    }
+
+    @Override
+    public Object findAttribute(String name) {
+        for (int scope = PAGE_SCOPE; scope <= APPLICATION_SCOPE; scope++) {
+            Object value = scopes.get(scope).get(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        for (Map<String, Object> attributes : scopes.values()) {
+            attributes.remove(name);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name, int scope) {
+        scopes.get(scope).remove(name);
+    }
+
+    @Override
+    public int getAttributesScope(String name) {
+        for (int scope = PAGE_SCOPE; scope <= APPLICATION_SCOPE; scope++) {
+            if (scopes.get(scope).containsKey(name)) {
+                return scope;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNamesInScope(int scope) {
+        return Collections.enumeration(new ArrayList<>(scopes.get(scope).keySet()));
+    }
+
+    @Override
+    public JspWriter getOut() {
+        return writers.peek();
+    }
+
+    @Override
+    public BodyContent pushBody() {
+        BodyContent body = new TestBodyContent(writers.peek());
+        writers.push(body);
+        return body;
+    }
+
+    @Override
+    public JspWriter pushBody(Writer writer) {
+        JspWriter out = new DetachedJspWriter(writer);
+        writers.push(out);
+        return out;
+    }
+
+    @Override
+    public JspWriter popBody() {
+        if (writers.size() > 1) {
+            writers.pop();
+        }
+        return writers.peek();
+    }
+
+    @Override
+    public ExpressionEvaluator getExpressionEvaluator() {
+        return null;
+    }
+
+    @Override
+    public VariableResolver getVariableResolver() {
+        return null;
+    }
+
+    @Override
+    public void initialize(Servlet servlet, ServletRequest request, ServletResponse response,
+            String errorPageURL, boolean needsSession, int bufferSize, boolean autoFlush) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void release() {
+        // nothing to release
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return null;
+    }
+
+    @Override
+    public Object getPage() {
+        return null;
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return null;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return null;
+    }
+
+    @Override
+    public Exception getException() {
+        return null;
+    }
+
+    @Override
+    public ServletConfig getServletConfig() {
+        return null;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return null;
+    }
+
+    @Override
+    public void forward(String relativeUrlPath) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void include(String relativeUrlPath) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void include(String relativeUrlPath, boolean flush) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void handlePageException(Exception e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void handlePageException(Throwable t) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.SimpleTagSupport;
+
+import org.junit.Test;
+import org.shredzone.commons.taglib.AssetCollector;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+
+/**
+ * A stress test that renders a tag concurrently from a large number of threads, against
+ * a mock container. The tag beans are prototypes of a Spring {@link
+ * DefaultListableBeanFactory}, which is cached in the application scope, so the bean
+ * factory lookup, the bean creation, the render guard and the asset collector are all
+ * stressed.
+ * <p>
+ * If the JVM supports virtual threads, each rendering runs in its own virtual thread,
+ * and the {@code jdk.VirtualThreadPinned} events are recorded by Flight Recorder. The
+ * test fails if a virtual thread was pinned while the taglib was the innermost
+ * non-JDK code on the stack. On older JVMs, a pool of platform threads is used instead,
+ * and pinning is not checked.
+ * <p>
+ * The number of renderings can be set by the {@code taglib.stress.tasks} system
+ * property (default: 10000).
+ *
+ * @author Richard "Shred" Körber
+ */
+public class VirtualThreadStressTest {
+
+    private static final int TASKS = Integer.getInteger("taglib.stress.tasks", 10000);
+    private static final String TAGLIB_PACKAGE = "org.shredzone.commons.taglib.";
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    @Test
+    public void testConcurrentRendering() throws Exception {
+        final Map<String, Object> applicationScope = new ConcurrentHashMap<>();
+        applicationScope.put(AbstractTagProxy.TAGPROXY_BEANFACTORY_CACHE, createBeanFactory());
+
+        ExecutorService executor = createVirtualThreadExecutor();
+        boolean virtual = executor != null;
+        if (!virtual) {
+            executor = Executors.newFixedThreadPool(64);
+        }
+
+        Object recording = virtual ? startPinningRecording() : null;
+        long startTime = System.nanoTime();
+        try {
+            List<Future<String>> futures = new ArrayList<>(TASKS);
+            for (int ix = 0; ix < TASKS; ix++) {
+                final int id = ix;
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return render(applicationScope, id);
+                    }
+                }));
+            }
+
+            for (int ix = 0; ix < TASKS; ix++) {
+                assertEquals("ok:" + ix, futures.get(ix).get());
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        List<String> pinnings = recording != null ? stopPinningRecording(recording) : null;
+
+        System.out.printf(Locale.ENGLISH, "stress         %s %6d renderings %9.1f renderings/s  %s%n",
+                virtual ? "virtual threads " : "platform threads",
+                TASKS, TASKS * 1.0e9 / elapsed,
+                pinnings != null ? pinnings.size() + " taglib pinnings" : "pinning n/a");
+
+        if (pinnings != null && !pinnings.isEmpty()) {
+            fail("Virtual threads were pinned by the taglib: " + pinnings);
+        }
+    }
+
+    /**
+     * Renders a tag, like a container would do for a request.
+     */
+    private static String render(Map<String, Object> applicationScope, int id) throws JspException, IOException {
+        TestPageContext pc = new TestPageContext(applicationScope);
+        StressTagProxy proxy = new StressTagProxy();
+        proxy.setJspContext(pc);
+        proxy.setParent(null);
+        proxy.setId(id);
+        proxy.doTag();
+        assertNotNull(pc.getAttribute(AssetCollector.ASSETS_ATTRIBUTE, TestPageContext.REQUEST_SCOPE));
+        return pc.getContent();
+    }
+
+    /**
+     * Creates a {@link DefaultListableBeanFactory} with the prototype tag bean.
+     */
+    private static DefaultListableBeanFactory createBeanFactory() {
+        DefaultListableBeanFactory bf = new DefaultListableBeanFactory();
+        RootBeanDefinition definition = new RootBeanDefinition(StressTag.class);
+        definition.setScope(BeanDefinition.SCOPE_PROTOTYPE);
+        bf.registerBeanDefinition("stressTag", definition);
+        return bf;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @return {@link ExecutorService}, or {@code null} if the JVM does not support
+     *         virtual threads
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a Flight Recorder recording of all {@code jdk.VirtualThreadPinned} events.
+     * Flight Recorder is accessed reflectively, like in {@link JfrTagEvents}.
+     */
+    private static Object startPinningRecording() throws ReflectiveOperationException {
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+        Class<?> durationClass = Class.forName("java.time.Duration");
+
+        Object recording = recordingClass.getConstructor().newInstance();
+        Object settings = recordingClass.getMethod("enable", String.class).invoke(recording, PINNED_EVENT);
+        settingsClass.getMethod("withStackTrace").invoke(settings);
+        settingsClass.getMethod("withThreshold", durationClass).invoke(settings, durationClass.getField("ZERO").get(null));
+        recordingClass.getMethod("start").invoke(recording);
+        return recording;
+    }
+
+    /**
+     * Stops the recording, and returns a description of each pinning that was caused by
+     * the taglib.
+     */
+    private static List<String> stopPinningRecording(Object recording) throws Exception {
+        Class<?> recordingClass = recording.getClass();
+        Path file = Files.createTempFile("taglib-stress", ".jfr");
+        try {
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, file);
+
+            Class<?> recordingFileClass = Class.forName("jdk.jfr.consumer.RecordingFile");
+            Method getEventType = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getEventType");
+            Method getEventName = Class.forName("jdk.jfr.EventType").getMethod("getName");
+            Method getStackTrace = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getStackTrace");
+            Method getFrames = Class.forName("jdk.jfr.consumer.RecordedStackTrace").getMethod("getFrames");
+            Method getMethod = Class.forName("jdk.jfr.consumer.RecordedFrame").getMethod("getMethod");
+            Method getType = Class.forName("jdk.jfr.consumer.RecordedMethod").getMethod("getType");
+            Method getMethodName = Class.forName("jdk.jfr.consumer.RecordedMethod").getMethod("getName");
+            Method getClassName = Class.forName("jdk.jfr.consumer.RecordedClass").getMethod("getName");
+
+            List<String> result = new ArrayList<>();
+            List<?> events = (List<?>) recordingFileClass.getMethod("readAllEvents", Path.class).invoke(null, file);
+            for (Object event : events) {
+                // The recording also contains the taglib's own events
+                if (!PINNED_EVENT.equals(getEventName.invoke(getEventType.invoke(event)))) {
+                    continue;
+                }
+
+                Object stackTrace = getStackTrace.invoke(event);
+                if (stackTrace == null) {
+                    continue;
+                }
+                for (Object frame : (List<?>) getFrames.invoke(stackTrace)) {
+                    Object method = getMethod.invoke(frame);
+                    String className = (String) getClassName.invoke(getType.invoke(method));
+                    if (className.startsWith("java.") || className.startsWith("jdk.")
+                            || className.startsWith("sun.")) {
+                        continue;
+                    }
+                    // The innermost non-JDK frame is the code that was pinned
+                    if (className.startsWith(TAGLIB_PACKAGE) && !className.contains("Test")) {
+                        result.add(className + "." + getMethodName.invoke(method));
+                    }
+                    break;
+                }
+            }
+            return result;
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * A tag that requires an asset, blocks for a moment, and then writes its id.
+     */
+    public static class StressTag extends SimpleTagSupport {
+        private int id;
+
+        public void setId(int id) { this.id = id; }
+
+        @Override
+        public void doTag() throws JspException, IOException {
+            AssetCollector.require(getJspContext(), "/css/stress.css");
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new JspException(ex);
+            }
+            getJspContext().getOut().write("ok:" + id);
+        }
+    }
+
+    /**
+     * A proxy like the one generated for {@link StressTag}. The tag beans are fetched
+     * from Spring.
+     */
+    public static class StressTagProxy extends SimpleTagProxy<StressTag> {
+        @Override protected String getBeanName()  { return "stressTag"; }
+        @Override protected int getMaxConcurrency() { return TASKS; }
+
+        public void setId(int id) { getTargetBean().setId(id); }
+    }
+
+}
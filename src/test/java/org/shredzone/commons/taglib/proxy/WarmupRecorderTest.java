@@ -0,0 +1,81 @@
+/*
+ * Shredzone Commons
+ *
+ * Copyright (C) 2012 Richard "Shred" Körber
+ *   http://commons.shredzone.org
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.shredzone.commons.taglib.proxy;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link WarmupRecorder}.
+ *
+ * @author Richard "Shred" Körber
+ */
+public class WarmupRecorderTest {
+
+    /**
+     * A recorder with an unlimited number of iterations only allocates memory for the
+     * iterations that were run.
+     */
+    @Test
+    public void testUnlimitedIterations() {
+        WarmupRecorder recorder = new WarmupRecorder(Integer.MAX_VALUE);
+        recorder.start();
+        try {
+            for (int ix = 0; ix < 100; ix++) {
+                assertTrue(recorder.nextIteration());
+                WarmupRecorder.recordCreation("testTag", ix < 50 ? 10000L : 1000L);
+                WarmupRecorder.recordRendering("testTag", 500L);
+            }
+        } finally {
+            recorder.stop();
+        }
+
+        assertEquals(100, recorder.getIterations());
+
+        StringBuilder sb = new StringBuilder();
+        recorder.writeReport(sb);
+        String report = sb.toString();
+        assertTrue(report, report.contains("testTag creation: 10000 ns -> 1000 ns, stable after 50 iterations"));
+        assertTrue(report, report.contains("testTag rendering: 500 ns -> 500 ns, stable after 0 iterations"));
+    }
+
+    /**
+     * No more iterations are started than the maximum.
+     */
+    @Test
+    public void testMaxIterations() {
+        WarmupRecorder recorder = new WarmupRecorder(20);
+        recorder.start();
+        try {
+            while (recorder.nextIteration()) {
+                WarmupRecorder.recordCreation("testTag", 1000L);
+            }
+        } finally {
+            recorder.stop();
+        }
+
+        assertEquals(20, recorder.getIterations());
+        StringBuilder sb = new StringBuilder();
+        recorder.writeReport(sb);
+        assertTrue(sb.toString().contains("testTag creation: 1000 ns -> 1000 ns"));
+    }
+
+}